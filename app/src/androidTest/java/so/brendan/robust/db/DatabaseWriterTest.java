@@ -0,0 +1,191 @@
+package so.brendan.robust.db;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes to a temporary table, which only the writer's connection can see and which is gone
+ * once the process exits.
+ */
+public class DatabaseWriterTest extends AndroidTestCase {
+    private static final String TABLE = "writer_test";
+
+    private DatabaseWriter mWriter;
+
+    /**
+     * Inserts a value, counting how many times it has been applied.
+     */
+    private static class Insert extends DatabaseWriter.Write<Long> {
+        private final String mValue;
+        final AtomicInteger mApplied = new AtomicInteger();
+
+        Insert(String value) {
+            mValue = value;
+        }
+
+        @Override
+        protected Long apply(SQLiteDatabase db) {
+            mApplied.incrementAndGet();
+            return db.insertOrThrow(TABLE, null, values(mValue));
+        }
+    }
+
+    /**
+     * Holds up the writer until released.
+     */
+    private static class Block extends DatabaseWriter.Write<Void> {
+        final CountDownLatch mApplying = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        protected Void apply(SQLiteDatabase db) {
+            mApplying.countDown();
+
+            try {
+                mRelease.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return null;
+        }
+    }
+
+    private static ContentValues values(String value) {
+        ContentValues values = new ContentValues();
+        values.put("value", value);
+        return values;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWriter = DatabaseWriter.getInstance(getContext());
+
+        mWriter.execute(new DatabaseWriter.Write<Void>() {
+            @Override
+            protected Void apply(SQLiteDatabase db) {
+                db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TABLE +
+                        " (value TEXT UNIQUE NOT NULL)");
+                db.delete(TABLE, null, null);
+                return null;
+            }
+        });
+    }
+
+    private long count(final String value) {
+        return mWriter.execute(new DatabaseWriter.Write<Long>() {
+            @Override
+            protected Long apply(SQLiteDatabase db) {
+                return DatabaseUtils.queryNumEntries(db, TABLE, "value = ?",
+                        new String[] { value });
+            }
+        });
+    }
+
+    /**
+     * Queues writes behind one that holds up the writer, so they are certain to arrive within
+     * one group's window.
+     */
+    private List<Future<Long>> submitGrouped(Insert... inserts) throws InterruptedException {
+        Block block = new Block();
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+
+        mWriter.submit(block);
+        assertTrue(block.mApplying.await(5, TimeUnit.SECONDS));
+
+        for (Insert insert : inserts) {
+            futures.add(mWriter.submit(insert));
+        }
+
+        block.mRelease.countDown();
+
+        return futures;
+    }
+
+    public void testGroupedWritesAllCommit() throws Exception {
+        Insert[] inserts = { new Insert("a"), new Insert("b"), new Insert("c") };
+
+        for (Future<Long> future : submitGrouped(inserts)) {
+            assertTrue(DatabaseWriter.await(future) > 0);
+        }
+
+        for (Insert insert : inserts) {
+            assertEquals(1, insert.mApplied.get());
+            assertEquals(1, count(insert.mValue));
+        }
+    }
+
+    /**
+     * A write that fails takes its group's transaction down with it, so the others are tried
+     * again alone, and only it fails.
+     */
+    public void testFailedWriteFailsAlone() throws Exception {
+        Insert first = new Insert("first");
+        Insert duplicate = new Insert("first");
+        Insert last = new Insert("last");
+
+        List<Future<Long>> futures = submitGrouped(first, duplicate, last);
+
+        DatabaseWriter.await(futures.get(0));
+        DatabaseWriter.await(futures.get(2));
+
+        try {
+            DatabaseWriter.await(futures.get(1));
+            fail();
+        } catch (SQLiteException e) {
+            // Expected.
+        }
+
+        // The group stopped at the duplicate, then each was applied again alone.
+        assertEquals(2, first.mApplied.get());
+        assertEquals(2, duplicate.mApplied.get());
+        assertEquals(1, last.mApplied.get());
+
+        assertEquals(1, count("first"));
+        assertEquals(1, count("last"));
+    }
+
+    public void testWriteThatCantBeSizedFailsAlone() throws Exception {
+        Future<Long> future = mWriter.submit(new Insert("unsized") {
+            @Override
+            protected int getRowCount() {
+                throw new NullPointerException();
+            }
+        });
+
+        try {
+            DatabaseWriter.await(future);
+            fail();
+        } catch (NullPointerException e) {
+            // Expected.
+        }
+
+        // The writer carries on.
+        DatabaseWriter.await(mWriter.submit(new Insert("after")));
+        assertEquals(0, count("unsized"));
+        assertEquals(1, count("after"));
+    }
+
+    public void testWriteBiggerThanQueueGoesThrough() throws Exception {
+        Future<Long> future = mWriter.submit(new Insert("big") {
+            @Override
+            protected int getRowCount() {
+                return DatabaseWriter.MAX_QUEUED_ROWS * 2;
+            }
+        });
+
+        assertTrue(DatabaseWriter.await(future) > 0);
+        assertEquals(1, count("big"));
+    }
+}
@@ -0,0 +1,179 @@
+package so.brendan.robust.models.commands;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class CommandDecoderTest extends TestCase {
+    private static final String USER = "{\"id\":\"12\",\"name\":\"Bob\",\"handle\":\"bob\"," +
+            "\"bio\":\"<b>&</b>\",\"location\":\"Here\",\"timezone\":-300," +
+            "\"twitter_uid\":\"99\",\"display_picture\":\"a.png\"," +
+            "\"display_picture_large\":\"b.png\",\"channels\":[\"#robust\",\"#other\"]}";
+
+    private static final String MESSAGE = "{\"type\":\"message\",\"subtype\":\"text\"," +
+            "\"id\":\"5421\",\"body\":\"Hello \\\"there\\\" \\u00e9\",\"target\":\"#robust\"," +
+            "\"ts\":1428000000000,\"from\":{\"id\":\"12\",\"handle\":\"bob\",\"name\":\"Bob\"}}";
+
+    /** A frame of every type, with every field the adapters know. */
+    private static final String[] FRAMES = {
+            "{\"type\":\"auth\",\"mode\":\"twitter\",\"success\":true," +
+                    "\"challenge\":{\"url\":\"https://example.com\",\"key\":\"k\"," +
+                    "\"secret\":\"s\"},\"data\":{\"key\":\"k2\",\"secret\":\"s2\"}," +
+                    "\"user\":" + USER + "}",
+            MESSAGE,
+            "{\"type\":\"backlog\",\"target\":\"#robust\",\"from_date\":1,\"to_date\":2," +
+                    "\"count\":1,\"messages\":[" + MESSAGE + "]}",
+            "{\"type\":\"user\",\"id\":\"12\",\"user\":" + USER + "}",
+            "{\"type\":\"error\",\"subtype\":\"auth\",\"message\":\"Nope\"}",
+            "{\"type\":\"join\",\"target\":\"#robust\"}",
+            "{\"type\":\"part\",\"target\":\"#robust\"}",
+            "{\"type\":\"compress\",\"mode\":\"zlib\",\"dictionary\":\"robust-1\"," +
+                    "\"success\":true}",
+            "{\"type\":\"framing\",\"mode\":\"cbor\",\"success\":false}",
+            "{\"type\":\"ping\"}",
+            "{\"type\":\"pong\"}",
+    };
+
+    private static final int TIMING_ITERATIONS = 2000;
+
+    private final CommandDecoder mDecoder = CommandDecoder.getInstance();
+
+    public void testFramesRoundTrip() {
+        for (String frame : FRAMES) {
+            RobustCommand command = mDecoder.decode(frame);
+
+            assertNotNull(frame, command);
+            assertEquals(frame, parse(frame).get("type").getAsString(), command.getType());
+            assertEquals(frame, parse(frame), parse(command.toJSON()));
+        }
+    }
+
+    /**
+     * The hand-written adapters must read and write what Gson's reflective adapters did.
+     */
+    public void testAdaptersMatchReflection() {
+        Gson reflective = new Gson();
+
+        for (String frame : FRAMES) {
+            RobustCommand command = mDecoder.decode(frame);
+            RobustCommand viaReflection = reflective.fromJson(frame, command.getClass());
+
+            assertEquals(frame, reflective.toJsonTree(viaReflection), parse(command.toJSON()));
+        }
+    }
+
+    public void testTypeAfterOtherFields() {
+        for (String frame : FRAMES) {
+            JsonObject object = parse(frame);
+            JsonObject reordered = new JsonObject();
+
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                if (!entry.getKey().equals("type")) {
+                    reordered.add(entry.getKey(), entry.getValue());
+                }
+            }
+
+            reordered.add("type", object.get("type"));
+
+            long fallbacks = mDecoder.getFallbackCount();
+            RobustCommand command = mDecoder.decode(reordered.toString());
+
+            assertEquals(frame, object, parse(command.toJSON()));
+
+            if (object.entrySet().size() > 1) {
+                assertEquals(frame, fallbacks + 1, mDecoder.getFallbackCount());
+            }
+        }
+    }
+
+    public void testSkipsUnknownFields() {
+        RobustCommand command = mDecoder.decode("{\"type\":\"join\",\"extra\":{\"a\":[1,2]}," +
+                "\"target\":\"#robust\",\"more\":null}");
+
+        assertEquals("#robust", ((JoinCommand) command).getTarget());
+    }
+
+    public void testUnknownTypeIsNull() {
+        assertNull(mDecoder.decode("{\"type\":\"whatever\",\"a\":{\"b\":1}}"));
+        assertNull(mDecoder.decode("{\"a\":{\"b\":1},\"type\":\"whatever\"}"));
+    }
+
+    public void testRejectsMalformedFrames() {
+        String[] frames = { "[]", "\"message\"", "{}", "{\"target\":\"#robust\"}",
+                "{\"type\":{}}", "{\"type\":\"message\",\"ts\":\"soon\"}" };
+
+        for (String frame : frames) {
+            try {
+                mDecoder.decode(frame);
+                fail(frame);
+            } catch (JsonParseException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /**
+     * Times each type through the adapters against how it was done before them: a tree parse
+     * bound by reflection to decode, and a new <code>Gson</code> for each encode.
+     */
+    public void testFasterThanReflection() {
+        Gson reflective = new Gson();
+        JsonParser parser = new JsonParser();
+        long streamingTotal = 0;
+        long reflectiveTotal = 0;
+
+        for (String frame : FRAMES) {
+            Class<? extends RobustCommand> cls = mDecoder.decode(frame).getClass();
+            long[] streaming = new long[2];
+            long[] reflection = new long[2];
+
+            // The first round warms up the JIT and isn't counted.
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 2; i++) {
+                    streaming[i] = 0;
+                    reflection[i] = 0;
+                }
+
+                for (int i = 0; i < TIMING_ITERATIONS; i++) {
+                    long start = System.nanoTime();
+                    RobustCommand command = mDecoder.decode(frame);
+                    streaming[0] += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    command.toJSON();
+                    streaming[1] += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    command = reflective.fromJson(parser.parse(frame), cls);
+                    reflection[0] += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    new Gson().toJson(command);
+                    reflection[1] += System.nanoTime() - start;
+                }
+            }
+
+            streamingTotal += streaming[0] + streaming[1];
+            reflectiveTotal += reflection[0] + reflection[1];
+
+            Log.i("CommandDecoderTest", String.format("%-8s decode %6s ns (was %6s), " +
+                            "encode %6s ns (was %6s)", parse(frame).get("type").getAsString(),
+                    streaming[0] / TIMING_ITERATIONS, reflection[0] / TIMING_ITERATIONS,
+                    streaming[1] / TIMING_ITERATIONS, reflection[1] / TIMING_ITERATIONS));
+        }
+
+        assertTrue(streamingTotal < reflectiveTotal);
+    }
+
+    private static JsonObject parse(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+}
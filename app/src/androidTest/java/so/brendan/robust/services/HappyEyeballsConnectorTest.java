@@ -0,0 +1,204 @@
+package so.brendan.robust.services;
+
+import junit.framework.TestCase;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+
+public class HappyEyeballsConnectorTest extends TestCase {
+    private static final InetSocketAddress FIRST = new InetSocketAddress("10.0.0.1", 443);
+    private static final InetSocketAddress SECOND = new InetSocketAddress("10.0.0.2", 443);
+
+    /** Long enough that the next attempt only starts early if the last one failed. */
+    private static final long LONG_DELAY_MILLIS = 60000;
+
+    private static final long SHORT_DELAY_MILLIS = 50;
+
+    /**
+     * A connection attempt whose outcome the test decides.
+     */
+    private static class Attempt {
+        final SocketAddress mAddress;
+        final ChannelPromise mPromise;
+
+        Attempt(SocketAddress address, ChannelPromise promise) {
+            mAddress = address;
+            mPromise = promise;
+        }
+    }
+
+    /**
+     * Hands out attempts that never connect on their own.
+     */
+    private class FakeBootstrap extends Bootstrap {
+        @Override
+        public ChannelFuture connect(SocketAddress address) {
+            ChannelPromise promise = new DefaultChannelPromise(new EmbeddedChannel(), mEventLoop);
+
+            mAttempts.add(new Attempt(address, promise));
+            return promise;
+        }
+    }
+
+    private final BlockingQueue<Attempt> mAttempts = new LinkedBlockingQueue<Attempt>();
+
+    private LocalEventLoopGroup mGroup;
+    private EventLoop mEventLoop;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGroup = new LocalEventLoopGroup(1);
+        mEventLoop = mGroup.next();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        super.tearDown();
+    }
+
+    private HappyEyeballsConnector createConnector(long delayMillis,
+                                                   InetSocketAddress... addresses) {
+        return new HappyEyeballsConnector(new FakeBootstrap(), mEventLoop,
+                Arrays.asList(addresses), delayMillis);
+    }
+
+    private Attempt nextAttempt() throws InterruptedException {
+        Attempt attempt = mAttempts.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull("No attempt started", attempt);
+        return attempt;
+    }
+
+    /**
+     * Waits for the event loop to finish what it was given, such as notifying attempt listeners.
+     */
+    private void drainEventLoop() throws Exception {
+        mEventLoop.submit(new Runnable() {
+            @Override
+            public void run() {}
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    public void testFirstToConnectWins() throws Exception {
+        HappyEyeballsConnector connector = createConnector(SHORT_DELAY_MILLIS, FIRST, SECOND);
+        long start = System.nanoTime();
+
+        connector.start();
+
+        Attempt first = nextAttempt();
+        Attempt second = nextAttempt();
+
+        assertEquals(FIRST, first.mAddress);
+        assertEquals(SECOND, second.mAddress);
+        assertTrue(System.nanoTime() - start >= SHORT_DELAY_MILLIS * 1000000);
+
+        second.mPromise.setSuccess();
+
+        assertSame(second.mPromise.channel(), connector.future().get(5, TimeUnit.SECONDS));
+        drainEventLoop();
+        assertFalse(first.mPromise.channel().isOpen());
+
+        // The loser connecting late is closed rather than used.
+        first.mPromise.setSuccess();
+        drainEventLoop();
+        assertSame(second.mPromise.channel(), connector.future().getNow());
+    }
+
+    public void testFailureStartsNextAttemptWithoutWaiting() throws Exception {
+        HappyEyeballsConnector connector = createConnector(LONG_DELAY_MILLIS, FIRST, SECOND);
+
+        connector.start();
+
+        Attempt first = nextAttempt();
+        assertNull(mAttempts.poll(SHORT_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+
+        first.mPromise.setFailure(new ConnectException("Network is unreachable"));
+
+        Attempt second = nextAttempt();
+        assertEquals(SECOND, second.mAddress);
+
+        second.mPromise.setSuccess();
+
+        assertSame(second.mPromise.channel(), connector.future().get(5, TimeUnit.SECONDS));
+    }
+
+    public void testFailsWithLastCause() throws Exception {
+        HappyEyeballsConnector connector = createConnector(LONG_DELAY_MILLIS, FIRST, SECOND);
+        ConnectException cause = new ConnectException("Connection refused");
+
+        connector.start();
+
+        nextAttempt().mPromise.setFailure(new ConnectException("Network is unreachable"));
+        nextAttempt().mPromise.setFailure(cause);
+
+        try {
+            connector.future().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(cause, e.getCause());
+        }
+    }
+
+    public void testCancelClosesEveryAttempt() throws Exception {
+        HappyEyeballsConnector connector = createConnector(SHORT_DELAY_MILLIS, FIRST, SECOND);
+
+        connector.start();
+
+        Attempt first = nextAttempt();
+        Attempt second = nextAttempt();
+
+        connector.cancel();
+
+        try {
+            connector.future().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (CancellationException e) {
+            // Expected.
+        }
+
+        assertFalse(first.mPromise.channel().isOpen());
+        assertFalse(second.mPromise.channel().isOpen());
+
+        second.mPromise.setSuccess();
+        drainEventLoop();
+        assertTrue(connector.future().isCancelled());
+    }
+
+    public void testNoAddresses() {
+        HappyEyeballsConnector connector = new HappyEyeballsConnector(new FakeBootstrap(),
+                mEventLoop, Collections.<InetSocketAddress>emptyList(), LONG_DELAY_MILLIS);
+
+        try {
+            connector.start();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testReturnsFirstAttemptsChannel() throws Exception {
+        HappyEyeballsConnector connector = createConnector(LONG_DELAY_MILLIS, FIRST);
+        Channel channel = connector.start();
+
+        assertSame(nextAttempt().mPromise.channel(), channel);
+    }
+}
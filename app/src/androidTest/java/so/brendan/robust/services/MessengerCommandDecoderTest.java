@@ -0,0 +1,160 @@
+package so.brendan.robust.services;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+
+public class MessengerCommandDecoderTest extends TestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Small enough that the backlogs below are streamed rather than decoded whole. */
+    private static final int STREAMED_FRAME_LENGTH = 512;
+
+    private static final int MESSAGES = 8;
+
+    private static final byte[] PING = "{\"type\":\"ping\"}\n".getBytes(UTF_8);
+
+    /**
+     * Returns a backlog frame whose message bodies contain the characters the stream decoder
+     * has to look past: quotes, brackets, braces and escapes.
+     */
+    private static byte[] backlog(boolean typeFirst) {
+        StringBuilder sb = new StringBuilder("{");
+
+        if (typeFirst) {
+            sb.append("\"type\":\"backlog\", ");
+        }
+
+        sb.append("\"target\":\"#robust\", \"messages\": [ ");
+
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+
+            sb.append("{\"type\":\"message\",\"id\":\"m").append(i)
+                    .append("\",\"target\":\"#robust\",\"body\":\"[{\\\"quoted\\\"}] \\\\ ")
+                    .append("\\u00e9 \\n ], {\",\"ts\":").append(1428000000000L + i)
+                    .append(",\"from\":{\"id\":\"12\",\"handle\":\"bob\",\"name\":\"Bob\"}}");
+        }
+
+        sb.append(" ]");
+
+        if (!typeFirst) {
+            sb.append(", \"type\":\"backlog\"");
+        }
+
+        return sb.append("}\n").toString().getBytes(UTF_8);
+    }
+
+    public void testWholeBacklogSplitAtEveryByte() {
+        assertSplitAtEveryByte(backlog(true), MessengerChannelInitializer.MAX_FRAME_LENGTH);
+    }
+
+    public void testStreamedBacklogSplitAtEveryByte() {
+        byte[] frame = backlog(true);
+
+        assertTrue(frame.length > STREAMED_FRAME_LENGTH);
+        assertSplitAtEveryByte(frame, STREAMED_FRAME_LENGTH);
+    }
+
+    /**
+     * Until the type arrives the messages are held, so they have to fit the frame limit even
+     * though the frame doesn't.
+     */
+    public void testStreamedBacklogWithTypeLastSplitAtEveryByte() {
+        byte[] frame = backlog(false);
+
+        assertSplitAtEveryByte(frame, frame.length - 2);
+    }
+
+    public void testHeldMessagesOverLimitAreDiscarded() {
+        EmbeddedChannel channel = createChannel(STREAMED_FRAME_LENGTH);
+
+        try {
+            channel.writeInbound(Unpooled.wrappedBuffer(backlog(false)));
+            fail();
+        } catch (TooLongFrameException e) {
+            // Expected.
+        }
+
+        channel.writeInbound(Unpooled.wrappedBuffer(PING));
+
+        assertEquals(RobustCommand.TYPE_PING, ((RobustCommand) channel.readInbound()).getType());
+        assertNull(channel.readInbound());
+    }
+
+    public void testStreamedBacklogOneByteAtATime() {
+        byte[] frame = backlog(true);
+        EmbeddedChannel channel = createChannel(STREAMED_FRAME_LENGTH);
+
+        for (byte b : frame) {
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[] { b }));
+        }
+
+        channel.writeInbound(Unpooled.wrappedBuffer(PING));
+        assertDecoded(channel, "one byte at a time");
+    }
+
+    /**
+     * Feeds the frame in two reads for every place it can be split, each to a new decoder,
+     * followed by a ping to show the decoder found the end of the frame.
+     */
+    private static void assertSplitAtEveryByte(byte[] frame, int maxFrameLength) {
+        for (int split = 1; split < frame.length; split++) {
+            EmbeddedChannel channel = createChannel(maxFrameLength);
+
+            channel.writeInbound(Unpooled.wrappedBuffer(frame, 0, split));
+            channel.writeInbound(Unpooled.wrappedBuffer(frame, split, frame.length - split));
+            channel.writeInbound(Unpooled.wrappedBuffer(PING));
+
+            assertDecoded(channel, "split at " + split);
+        }
+    }
+
+    private static EmbeddedChannel createChannel(int maxFrameLength) {
+        return new EmbeddedChannel(new MessengerCommandDecoder(maxFrameLength,
+                MessengerChannelInitializer.MAX_BINARY_FRAME_LENGTH));
+    }
+
+    /**
+     * Asserts that every message of the backlog came out in order, with only the last chunk
+     * not partial, followed by the ping.
+     */
+    private static void assertDecoded(EmbeddedChannel channel, String where) {
+        List<MessageCommand> messages = new ArrayList<MessageCommand>();
+        boolean partial = true;
+        Object msg;
+
+        while ((msg = channel.readInbound()) instanceof BacklogCommand) {
+            BacklogCommand chunk = (BacklogCommand) msg;
+
+            assertTrue(where, partial);
+            assertEquals(where, "#robust", chunk.getTarget());
+
+            messages.addAll(chunk.getMessages());
+            partial = chunk.isPartial();
+        }
+
+        assertFalse(where, partial);
+        assertEquals(where, MESSAGES, messages.size());
+
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(where, "m" + i, messages.get(i).getId());
+            assertEquals(where, "[{\"quoted\"}] \\ \u00e9 \n ], {", messages.get(i).getBody());
+        }
+
+        assertTrue(where, msg instanceof RobustCommand);
+        assertEquals(where, RobustCommand.TYPE_PING, ((RobustCommand) msg).getType());
+        assertNull(where, channel.readInbound());
+    }
+}
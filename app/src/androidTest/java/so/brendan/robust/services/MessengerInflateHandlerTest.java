@@ -0,0 +1,240 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+
+public class MessengerInflateHandlerTest extends TestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAX_CHUNK = 8192;
+
+    private static final byte[] REPLY =
+            "{\"type\":\"compress\",\"success\":true}\n".getBytes(UTF_8);
+
+    private MessengerInflateHandler mInflate;
+    private EmbeddedChannel mChannel;
+    private final List<Integer> mChunkSizes = new ArrayList<Integer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        createChannel();
+    }
+
+    private void createChannel() {
+        mChunkSizes.clear();
+        mInflate = new MessengerInflateHandler();
+        mChannel = new EmbeddedChannel(mInflate, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                mChunkSizes.add(((ByteBuf) msg).readableBytes());
+                ctx.fireChannelRead(msg);
+            }
+        }, new MessengerCommandDecoder(MessengerChannelInitializer.MAX_FRAME_LENGTH,
+                MessengerChannelInitializer.MAX_BINARY_FRAME_LENGTH));
+        mInflate.arm();
+    }
+
+    private static String message(int i) {
+        return "{\"type\":\"message\",\"id\":\"m" + i + "\",\"target\":\"#robust\"," +
+                "\"body\":\"hello hello hello hello " + i + "\",\"ts\":" + (1428000000000L + i) +
+                ",\"from\":{\"id\":\"12\",\"handle\":\"bob\",\"name\":\"Bob\"}}";
+    }
+
+    private static byte[] deflate(String text) {
+        return deflate(text, null);
+    }
+
+    private static byte[] deflate(String text, byte[] dictionary) {
+        Deflater deflater = new Deflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+
+        deflater.setInput(text.getBytes(UTF_8));
+        deflater.finish();
+
+        while (!deflater.finished()) {
+            out.write(buf, 0, deflater.deflate(buf));
+        }
+
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    public void testLargeBacklogIsPassedOnInChunks() {
+        StringBuilder backlog = new StringBuilder("{\"type\":\"backlog\",\"target\":\"#robust\"," +
+                "\"messages\":[");
+
+        for (int i = 0; i < 2000; i++) {
+            backlog.append(i > 0 ? "," : "").append(message(i));
+        }
+
+        backlog.append("]}\n");
+
+        byte[] compressed = deflate(backlog.toString());
+
+        // All of it in one read, as the reply and the stream may arrive together.
+        mChannel.writeInbound(Unpooled.wrappedBuffer(concat(REPLY, compressed)));
+
+        assertEquals(RobustCommand.TYPE_COMPRESS, ((RobustCommand) mChannel.readInbound())
+                .getType());
+
+        int messages = 0;
+        Object msg;
+
+        while ((msg = mChannel.readInbound()) != null) {
+            messages += ((BacklogCommand) msg).getMessages().size();
+        }
+
+        assertEquals(2000, messages);
+        assertTrue(mChunkSizes.size() > 2);
+
+        for (int size : mChunkSizes) {
+            assertTrue("Chunk of " + size, size > 0 && size <= MAX_CHUNK);
+        }
+    }
+
+    public void testStreamSplitAtEveryByte() {
+        String plain = message(0) + "\n" + message(1) + "\n";
+        byte[] input = concat(REPLY, deflate(plain), (message(2) + "\n").getBytes(UTF_8));
+
+        for (int split = 1; split < input.length; split++) {
+            mChannel.finish();
+            createChannel();
+
+            mChannel.writeInbound(Unpooled.wrappedBuffer(input, 0, split));
+            mChannel.writeInbound(Unpooled.wrappedBuffer(input, split, input.length - split));
+
+            String where = "split at " + split;
+
+            assertEquals(where, RobustCommand.TYPE_COMPRESS,
+                    ((RobustCommand) mChannel.readInbound()).getType());
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(where, "m" + i, ((MessageCommand) mChannel.readInbound()).getId());
+            }
+
+            assertNull(where, mChannel.readInbound());
+
+            // The stream ended, so the last message was passed through as it was.
+            assertFalse(where, mInflate.isInflating());
+        }
+    }
+
+    /**
+     * Stands in for the server: compresses traffic shaped like a catch-up after a day away, and
+     * reports what compression saves and what inflating it costs.
+     */
+    public void testSavingsOnRecordedTraffic() {
+        String[] words = { "the", "build", "is", "green", "again", "lunch?", "merged", "ok",
+                "looks", "good", "to", "me", "deploying", "now", "ping", "@bob", "thanks" };
+        String[][] senders = { { "12", "bob", "Bob" }, { "40", "alice", "Alice Smith" },
+                { "77", "carol", "Carol" } };
+        Random random = new Random(42);
+        StringBuilder traffic = new StringBuilder();
+
+        for (String target : new String[] { "#robust", "#general", "#random" }) {
+            traffic.append("{\"type\":\"join\",\"target\":\"").append(target).append("\"}\n");
+            traffic.append("{\"type\":\"backlog\",\"target\":\"").append(target)
+                    .append("\",\"messages\":[");
+
+            for (int i = 0; i < 500; i++) {
+                String[] sender = senders[random.nextInt(senders.length)];
+                StringBuilder body = new StringBuilder();
+
+                for (int j = 1 + random.nextInt(12); j > 0; j--) {
+                    body.append(words[random.nextInt(words.length)]).append(j > 1 ? " " : "");
+                }
+
+                traffic.append(i > 0 ? "," : "").append("{\"type\":\"message\",\"subtype\":" +
+                        "\"text\",\"id\":\"").append(target).append(i)
+                        .append("\",\"body\":\"").append(body)
+                        .append("\",\"target\":\"").append(target)
+                        .append("\",\"ts\":").append(1428000000000L + i * 60000L + random.nextInt(60000))
+                        .append(",\"from\":{\"id\":\"").append(sender[0])
+                        .append("\",\"handle\":\"").append(sender[1])
+                        .append("\",\"name\":\"").append(sender[2]).append("\"}}");
+            }
+
+            traffic.append("]}\n");
+        }
+
+        String plain = traffic.toString();
+        int plainLength = plain.getBytes(UTF_8).length;
+
+        long start = System.nanoTime();
+        byte[] compressed = deflate(plain, MessengerInflateHandler.DICTIONARY);
+        long deflateNanos = System.nanoTime() - start;
+
+        int withoutDictionary = deflate(plain).length;
+
+        start = System.nanoTime();
+        mChannel.writeInbound(Unpooled.wrappedBuffer(concat(REPLY, compressed)));
+        long decodeNanos = System.nanoTime() - start;
+
+        int messages = 0;
+        Object msg;
+
+        while ((msg = mChannel.readInbound()) != null) {
+            if (msg instanceof BacklogCommand) {
+                messages += ((BacklogCommand) msg).getMessages().size();
+            }
+        }
+
+        assertEquals(1500, messages);
+        assertEquals(compressed.length, mInflate.getCompressedBytes());
+        assertEquals(plainLength, mInflate.getInflatedBytes());
+
+        // Repetitive JSON should compress several times over; the dictionary helps a little more.
+        assertTrue(compressed.length * 4 < plainLength);
+        assertTrue(compressed.length <= withoutDictionary);
+
+        Log.i("MessengerInflateHandlerTest", String.format("%s bytes plain, %s compressed " +
+                        "(%s without the dictionary), %.0f%% saved; deflated in %.1f ms, " +
+                        "inflated in %s ms of %.1f ms decoding",
+                plainLength, compressed.length, withoutDictionary,
+                100.0 * (plainLength - compressed.length) / plainLength, deflateNanos / 1e6,
+                mInflate.getInflateTimeMillis(), decodeNanos / 1e6));
+    }
+
+    public void testDisarmedPassesThrough() {
+        mInflate.disarm();
+        mChannel.writeInbound(Unpooled.wrappedBuffer(REPLY));
+
+        assertEquals(RobustCommand.TYPE_COMPRESS,
+                ((RobustCommand) mChannel.readInbound()).getType());
+        assertFalse(mInflate.isInflating());
+        assertEquals(0, mInflate.getCompressedBytes());
+    }
+}
@@ -0,0 +1,131 @@
+package so.brendan.robust.services;
+
+import junit.framework.TestCase;
+
+import java.nio.channels.ClosedChannelException;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+
+public class MessengerPriorityHandlerTest extends TestCase {
+    /** A writability bit of the test's own, so the channel can be made unwritable by hand. */
+    private static final int CONGESTED = 1;
+
+    private EmbeddedChannel mChannel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mChannel = new EmbeddedChannel(new MessengerPriorityHandler());
+    }
+
+    private static RobustCommand message(String body) {
+        return new MessageCommand.Builder().setTarget("#robust").setBody(body).build();
+    }
+
+    private static RobustCommand backlog(String target) {
+        return new BacklogCommand.Builder().setTarget(target).setCount(50).build();
+    }
+
+    private void setWritable(boolean writable) {
+        mChannel.unsafe().outboundBuffer().setUserDefinedWritability(CONGESTED, writable);
+        mChannel.runPendingTasks();
+    }
+
+    private void assertOutbound(RobustCommand... expected) {
+        for (RobustCommand command : expected) {
+            assertSame(command, mChannel.readOutbound());
+        }
+
+        assertNull(mChannel.readOutbound());
+    }
+
+    public void testLanes() {
+        assertEquals(MessengerPriorityHandler.LANE_CONTROL,
+                MessengerPriorityHandler.getLane(RobustCommand.createPing()));
+        assertEquals(MessengerPriorityHandler.LANE_INTERACTIVE,
+                MessengerPriorityHandler.getLane(message("hi")));
+        assertEquals(MessengerPriorityHandler.LANE_BULK,
+                MessengerPriorityHandler.getLane(backlog("#robust")));
+    }
+
+    public void testFlushWritesHighestLaneFirst() {
+        RobustCommand bulk = backlog("#robust");
+        RobustCommand first = message("first");
+        RobustCommand ping = RobustCommand.createPing();
+        RobustCommand second = message("second");
+
+        mChannel.write(bulk);
+        mChannel.write(first);
+        mChannel.write(ping);
+        mChannel.write(second);
+        assertOutbound();
+
+        mChannel.flush();
+        assertOutbound(ping, first, second, bulk);
+    }
+
+    public void testUnwritableHoldsBackAllButControl() {
+        RobustCommand bulk = backlog("#robust");
+        RobustCommand message = message("hi");
+        RobustCommand ping = RobustCommand.createPing();
+
+        setWritable(false);
+
+        ChannelFuture bulkFuture = mChannel.writeAndFlush(bulk);
+        ChannelFuture messageFuture = mChannel.writeAndFlush(message);
+        mChannel.writeAndFlush(ping);
+
+        assertOutbound(ping);
+        assertFalse(bulkFuture.isDone());
+        assertFalse(messageFuture.isDone());
+
+        // A message typed while congested still goes ahead of the bulk request before it.
+        setWritable(true);
+
+        assertOutbound(message, bulk);
+        assertTrue(messageFuture.isSuccess());
+        assertTrue(bulkFuture.isSuccess());
+    }
+
+    public void testOrderKeptWithinLane() {
+        RobustCommand[] messages = { message("one"), message("two"), message("three") };
+        RobustCommand[] backlogs = { backlog("#a"), backlog("#b") };
+
+        setWritable(false);
+
+        mChannel.writeAndFlush(backlogs[0]);
+        mChannel.writeAndFlush(messages[0]);
+        mChannel.writeAndFlush(backlogs[1]);
+        mChannel.writeAndFlush(messages[1]);
+        mChannel.writeAndFlush(messages[2]);
+        assertOutbound();
+
+        setWritable(true);
+        assertOutbound(messages[0], messages[1], messages[2], backlogs[0], backlogs[1]);
+    }
+
+    public void testCloseFailsWaitingCommands() {
+        setWritable(false);
+
+        ChannelFuture message = mChannel.writeAndFlush(message("hi"));
+        ChannelFuture bulk = mChannel.writeAndFlush(backlog("#robust"));
+
+        mChannel.close();
+
+        assertTrue(message.cause() instanceof ClosedChannelException);
+        assertTrue(bulk.cause() instanceof ClosedChannelException);
+    }
+
+    public void testOtherMessagesPassThrough() {
+        Object other = "not a command";
+
+        setWritable(false);
+        mChannel.writeAndFlush(other);
+
+        assertSame(other, mChannel.readOutbound());
+    }
+}
@@ -0,0 +1,197 @@
+package so.brendan.robust.services;
+
+import junit.framework.TestCase;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeoutException;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Future;
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+
+/**
+ * The wheel is ticked by hand, so timeouts don't depend on how long the test takes.
+ */
+public class PendingRequestsTest extends TestCase {
+    private EmbeddedChannel mChannel;
+    private PendingRequests mRequests;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mChannel = new EmbeddedChannel();
+        mRequests = new PendingRequests(mChannel);
+    }
+
+    private static BacklogCommand request(String target, int count) {
+        return new BacklogCommand.Builder().setTarget(target).setCount(count).build();
+    }
+
+    private static BacklogCommand reply(String target) {
+        return BacklogCommand.fromJSON("{\"type\":\"backlog\",\"target\":\"" + target +
+                "\",\"messages\":[]}");
+    }
+
+    private static void tick(PendingRequests requests, int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            requests.tick();
+        }
+    }
+
+    private static void assertTimedOut(Future<RobustCommand> future) {
+        assertTrue(future.isDone());
+        assertTrue(future.cause() instanceof TimeoutException);
+    }
+
+    public void testReplyCompletesOldestRequestForItsKey() {
+        BacklogCommand first = request("#robust", 10);
+        BacklogCommand second = request("#robust", 20);
+        Future<RobustCommand> firstFuture = mRequests.add(first, 1000);
+        Future<RobustCommand> secondFuture = mRequests.add(second, 1000);
+        Future<RobustCommand> otherFuture = mRequests.add(request("#other", 10), 1000);
+
+        assertSame(first, mChannel.readOutbound());
+        assertSame(second, mChannel.readOutbound());
+        assertEquals(3, mRequests.size());
+
+        RobustCommand reply = reply("#robust");
+
+        assertTrue(mRequests.complete(reply));
+        assertSame(reply, firstFuture.getNow());
+        assertFalse(secondFuture.isDone());
+        assertFalse(otherFuture.isDone());
+
+        assertTrue(mRequests.complete(reply("#robust")));
+        assertTrue(secondFuture.isSuccess());
+        assertFalse(mRequests.complete(reply("#robust")));
+        assertEquals(1, mRequests.size());
+    }
+
+    public void testIdenticalRequestIsSentOnce() {
+        Future<RobustCommand> first = mRequests.add(request("#robust", 10), 1000);
+        Future<RobustCommand> second = mRequests.add(request("#robust", 10), 1000);
+
+        assertNotNull(mChannel.readOutbound());
+        assertNull(mChannel.readOutbound());
+        assertEquals(1, mRequests.size());
+
+        RobustCommand reply = reply("#robust");
+        mRequests.complete(reply);
+
+        assertSame(reply, first.getNow());
+        assertSame(reply, second.getNow());
+    }
+
+    public void testRequestWithoutKeyFails() {
+        Future<RobustCommand> future = mRequests.add(RobustCommand.createPing(), 1000);
+
+        assertTrue(future.cause() instanceof IllegalArgumentException);
+        assertEquals(0, mRequests.size());
+    }
+
+    public void testTimesOutOnItsTick() {
+        // Rounded up to three ticks.
+        Future<RobustCommand> future = mRequests.add(request("#robust", 10),
+                2 * PendingRequests.TICK_MILLIS + 1);
+
+        tick(mRequests, 2);
+        assertFalse(future.isDone());
+
+        tick(mRequests, 1);
+        assertTimedOut(future);
+        assertEquals(0, mRequests.size());
+
+        // A late reply has nothing left to complete.
+        assertFalse(mRequests.complete(reply("#robust")));
+    }
+
+    public void testLongTimeoutGoesRoundTheWheel() {
+        int ticks = 2 * PendingRequests.WHEEL_SIZE + 5;
+        Future<RobustCommand> future = mRequests.add(request("#robust", 10),
+                ticks * PendingRequests.TICK_MILLIS);
+        Future<RobustCommand> wholeTurn = mRequests.add(request("#other", 10),
+                PendingRequests.WHEEL_SIZE * PendingRequests.TICK_MILLIS);
+
+        tick(mRequests, PendingRequests.WHEEL_SIZE - 1);
+        assertFalse(wholeTurn.isDone());
+
+        tick(mRequests, 1);
+        assertTimedOut(wholeTurn);
+
+        tick(mRequests, ticks - PendingRequests.WHEEL_SIZE - 1);
+        assertFalse(future.isDone());
+
+        tick(mRequests, 1);
+        assertTimedOut(future);
+    }
+
+    public void testCancellingOneCallerLeavesTheOther() {
+        Future<RobustCommand> first = mRequests.add(request("#robust", 10), 1000);
+        Future<RobustCommand> second = mRequests.add(request("#robust", 10), 1000);
+
+        first.cancel(false);
+
+        RobustCommand reply = reply("#robust");
+
+        assertTrue(mRequests.complete(reply));
+        assertTrue(first.isCancelled());
+        assertSame(reply, second.getNow());
+    }
+
+    public void testCloseFailsEveryRequest() {
+        Future<RobustCommand> first = mRequests.add(request("#robust", 10), 1000);
+        Future<RobustCommand> second = mRequests.add(request("#other", 10), 1000);
+
+        mChannel.close();
+
+        assertTrue(first.cause() instanceof ClosedChannelException);
+        assertTrue(second.cause() instanceof ClosedChannelException);
+        assertEquals(0, mRequests.size());
+
+        // Nothing more is accepted once closed.
+        assertTrue(mRequests.add(request("#robust", 10), 1000).cause()
+                instanceof ClosedChannelException);
+    }
+
+    /**
+     * A transferred request keeps the ticks it had left, however far round the wheels are.
+     */
+    public void testTransferKeepsRemainingTime() {
+        EmbeddedChannel otherChannel = new EmbeddedChannel();
+        PendingRequests other = new PendingRequests(otherChannel);
+        int ticks = PendingRequests.WHEEL_SIZE + 10;
+
+        // Put the new wheel's cursor somewhere else.
+        other.add(request("#elsewhere", 10), 1000);
+        tick(other, 7);
+
+        Future<RobustCommand> future = mRequests.add(request("#robust", 10),
+                ticks * PendingRequests.TICK_MILLIS);
+        Future<RobustCommand> shortFuture = mRequests.add(request("#other", 10),
+                4 * PendingRequests.TICK_MILLIS);
+
+        tick(mRequests, 3);
+        mRequests.transferTo(other);
+
+        // Each is sent again on the new channel, and nothing waits on the old one.
+        assertNotNull(otherChannel.readOutbound());
+        assertNotNull(otherChannel.readOutbound());
+        assertNotNull(otherChannel.readOutbound());
+        assertEquals(0, mRequests.size());
+        assertEquals(3, other.size());
+
+        mChannel.close();
+        assertFalse(future.isDone());
+        assertFalse(shortFuture.isDone());
+
+        tick(other, 1);
+        assertTimedOut(shortFuture);
+
+        tick(other, ticks - 3 - 2);
+        assertFalse(future.isDone());
+
+        tick(other, 1);
+        assertTimedOut(future);
+    }
+}
@@ -0,0 +1,232 @@
+package so.brendan.robust.services;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import so.brendan.robust.listeners.OnSessionEventListener;
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.CommandDecoder;
+import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+
+public class WireReplayTest extends TestCase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private WireCapture mCapture;
+    private final List<RobustCommand> mReceived = new ArrayList<RobustCommand>();
+
+    private final OnSessionEventListener mListener = new OnSessionEventListener() {
+        @Override
+        public void onSessionStateChange(RobustSession session, boolean connectionChanged,
+                                         boolean authChanged) {
+            fail("A replay must not change session state.");
+        }
+
+        @Override
+        public void onSessionFinished(RobustSession session) {
+            fail("A replay must not finish a session.");
+        }
+
+        @Override
+        public void onAuthenticatorMissing(RobustSession session) {
+            fail("A replay must not authenticate.");
+        }
+
+        @Override
+        public void onCommandReceived(RobustSession session, RobustCommand command) {
+            mReceived.add(command);
+        }
+
+        @Override
+        public List<RobustCommand> getCatchUpRequests(RobustSession session,
+                                                      List<String> targets) {
+            return new ArrayList<RobustCommand>();
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCapture = WireCapture.getInstance();
+        mCapture.clear();
+        mCapture.setEnabled(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCapture.setEnabled(false);
+        mCapture.clear();
+        super.tearDown();
+    }
+
+    private static final String AUTH_REPLY = "{\"type\":\"auth\",\"mode\":\"twitter\"," +
+            "\"success\":true,\"data\":{\"key\":\"k\",\"secret\":\"hunter2\"}}\n";
+
+    private static String message(int i) {
+        return "{\"type\":\"message\",\"id\":\"m" + i + "\",\"target\":\"#robust\"," +
+                "\"body\":\"hello " + i + "\",\"ts\":" + (1428000000000L + i) +
+                ",\"from\":{\"id\":\"12\",\"handle\":\"bob\",\"name\":\"Bob\"}}\n";
+    }
+
+    /**
+     * Captures a session over two connections: a backlog and messages split across reads, a
+     * write, and a frame cut off by the first connection closing.
+     */
+    private void captureSession() {
+        EmbeddedChannel first = new EmbeddedChannel(new WireCaptureHandler(mCapture));
+
+        first.writeOutbound(Unpooled.copiedBuffer("{\"type\":\"ping\"}\n", UTF_8));
+        first.writeInbound(Unpooled.copiedBuffer("{\"type\":\"pong\"}\n{\"type\":\"back",
+                UTF_8));
+        first.writeInbound(Unpooled.copiedBuffer("log\",\"target\":\"#robust\",\"messages\":[" +
+                message(0).trim() + "," + message(1).trim() + "]}\n" + message(2), UTF_8));
+
+        String third = message(3);
+        first.writeInbound(Unpooled.copiedBuffer(third.substring(0, 20), UTF_8));
+        first.writeInbound(Unpooled.copiedBuffer(third.substring(20), UTF_8));
+
+        // Cut off by the connection closing, so never decoded.
+        first.writeInbound(Unpooled.copiedBuffer(message(4).substring(0, 30), UTF_8));
+        first.finish();
+
+        EmbeddedChannel second = new EmbeddedChannel(new WireCaptureHandler(mCapture));
+
+        second.writeInbound(Unpooled.copiedBuffer(message(5), UTF_8));
+        second.finish();
+    }
+
+    public void testReplaysCapturedSession() throws Exception {
+        captureSession();
+
+        WireReplay.Result result = new WireReplay(mListener).replay(mCapture.getEntries(), false);
+
+        assertEquals(6, result.getReadCount());
+        assertEquals(5, result.getCommandCount());
+        assertEquals(0, result.getErrorCount());
+        assertReceived();
+    }
+
+    public void testReplaysCaptureReadBackFromStream() throws Exception {
+        captureSession();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mCapture.writeTo(out);
+
+        List<WireCapture.Entry> entries = WireCapture.readFrom(
+                new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(mCapture.getEntries().size(), entries.size());
+
+        new WireReplay(mListener).replay(entries, false);
+        assertReceived();
+    }
+
+    private void assertReceived() {
+        assertEquals(5, mReceived.size());
+        assertEquals(RobustCommand.TYPE_PONG, mReceived.get(0).getType());
+
+        BacklogCommand backlog = (BacklogCommand) mReceived.get(1);
+        assertEquals(2, backlog.getMessages().size());
+        assertEquals("m0", backlog.getMessages().get(0).getId());
+        assertEquals("m1", backlog.getMessages().get(1).getId());
+
+        assertEquals("m2", ((MessageCommand) mReceived.get(2)).getId());
+        assertEquals("hello 3", ((MessageCommand) mReceived.get(3)).getBody());
+
+        // The cut off frame was dropped with its connection rather than joined to the next.
+        assertEquals("m5", ((MessageCommand) mReceived.get(4)).getId());
+    }
+
+    public void testRecordsNothingWhenDisabled() {
+        mCapture.setEnabled(false);
+
+        EmbeddedChannel channel = new EmbeddedChannel(new WireCaptureHandler(mCapture));
+
+        channel.writeInbound(Unpooled.copiedBuffer(message(0), UTF_8));
+        channel.finish();
+
+        assertTrue(mCapture.getEntries().isEmpty());
+    }
+
+    public void testLeavesOutAuthentication() throws Exception {
+        EmbeddedChannel channel = createDecodingChannel();
+
+        channel.writeOutbound(Unpooled.copiedBuffer(AUTH_REPLY, UTF_8));
+        channel.writeOutbound(Unpooled.copiedBuffer("{\"type\":\"ping\"}\n", UTF_8));
+
+        // The auth reply split across reads, then a message split across reads.
+        String message = message(0);
+        channel.writeInbound(Unpooled.copiedBuffer("{\"type\":\"compress\",\"success\":false}\n" +
+                AUTH_REPLY.substring(0, 40), UTF_8));
+        channel.writeInbound(Unpooled.copiedBuffer(AUTH_REPLY.substring(40) +
+                message.substring(0, 20), UTF_8));
+        channel.writeInbound(Unpooled.copiedBuffer(message.substring(20), UTF_8));
+        channel.writeInbound(Unpooled.copiedBuffer(message(1), UTF_8));
+        channel.finish();
+
+        for (WireCapture.Entry entry : mCapture.getEntries()) {
+            String data = new String(entry.getData(), UTF_8);
+
+            assertFalse(data, data.contains("hunter2"));
+            assertFalse(data, data.contains("auth"));
+        }
+
+        // Recording starts with the first read to start a frame after the auth reply.
+        new WireReplay(mListener).replay(mCapture.getEntries(), false);
+
+        assertEquals(1, mReceived.size());
+        assertEquals("m1", ((MessageCommand) mReceived.get(0)).getId());
+    }
+
+    public void testLeavesOutBinaryAuthentication() throws Exception {
+        EmbeddedChannel channel = createDecodingChannel();
+
+        channel.writeOutbound(Unpooled.wrappedBuffer(binaryFrame(AUTH_REPLY)));
+
+        channel.writeInbound(Unpooled.copiedBuffer(
+                "{\"type\":\"framing\",\"mode\":\"cbor\",\"success\":true}\n", UTF_8));
+        channel.writeInbound(Unpooled.wrappedBuffer(binaryFrame(AUTH_REPLY)));
+        channel.writeInbound(Unpooled.wrappedBuffer(binaryFrame(message(0))));
+        channel.finish();
+
+        for (WireCapture.Entry entry : mCapture.getEntries()) {
+            assertFalse(new String(entry.getData(), UTF_8).contains("hunter2"));
+        }
+
+        // The replay is told of the binary framing, so it decodes the message.
+        WireReplay.Result result = new WireReplay(mListener).replay(mCapture.getEntries(), false);
+
+        assertEquals(0, result.getErrorCount());
+        assertEquals(2, mReceived.size());
+        assertEquals(RobustCommand.TYPE_FRAMING, mReceived.get(0).getType());
+        assertEquals("m0", ((MessageCommand) mReceived.get(1)).getId());
+    }
+
+    private EmbeddedChannel createDecodingChannel() {
+        return new EmbeddedChannel(new WireCaptureHandler(mCapture),
+                new MessengerCommandDecoder(MessengerChannelInitializer.MAX_FRAME_LENGTH,
+                        MessengerChannelInitializer.MAX_BINARY_FRAME_LENGTH));
+    }
+
+    private static byte[] binaryFrame(String json) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        CommandDecoder.getInstance().decode(json.trim()).toCBOR(body);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frame);
+
+        out.writeInt(body.size());
+        body.writeTo(out);
+
+        return frame.toByteArray();
+    }
+}
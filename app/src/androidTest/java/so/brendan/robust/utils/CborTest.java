@@ -0,0 +1,218 @@
+package so.brendan.robust.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonToken;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.CommandDecoder;
+import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+
+public class CborTest extends TestCase {
+    private final TypeAdapter<JsonElement> mElementAdapter =
+            GsonProvider.getInstance().getAdapter(JsonElement.class);
+
+    public void testIntegersRoundTrip() throws IOException {
+        long[] values = { 0, 1, 23, 24, 255, 256, 65535, 65536, 0xffffffffL, 0x100000000L,
+                Long.MAX_VALUE, -1, -24, -25, -256, -257, -65537, Long.MIN_VALUE };
+
+        for (long value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new CborWriter(out).value(value).flush();
+
+            CborReader in = reader(out.toByteArray());
+            assertEquals(JsonToken.NUMBER, in.peek());
+            assertEquals(value, in.nextLong());
+        }
+    }
+
+    public void testStringsRoundTrip() throws IOException {
+        StringBuilder longString = new StringBuilder();
+
+        for (int i = 0; i < 70000; i++) {
+            longString.append((char) ('a' + i % 26));
+        }
+
+        String[] values = { "", "a", "h\u00e9llo w\u00f6rld", "\u65e5\u672c\u8a9e",
+                "\ud83d\ude00", longString.toString() };
+
+        for (String value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new CborWriter(out).value(value).flush();
+
+            assertEquals(value, reader(out.toByteArray()).nextString());
+        }
+    }
+
+    public void testDocumentsRoundTrip() throws IOException {
+        String[] documents = {
+                "{}",
+                "[]",
+                "{\"a\":null,\"b\":true,\"c\":false,\"d\":1.5,\"e\":-0.25,\"f\":42}",
+                "[1,[2,[3,[4,[]]]],{\"x\":{\"y\":{\"z\":[null]}}}]",
+                "{\"type\":\"message\",\"id\":\"1\",\"body\":\"hi\",\"ts\":1428000000000," +
+                        "\"from\":{\"id\":\"2\",\"handle\":\"bob\",\"name\":\"Bob\"}}",
+        };
+
+        for (String document : documents) {
+            JsonElement element = new JsonParser().parse(document);
+            assertEquals(element, mElementAdapter.read(reader(toCbor(element))));
+        }
+    }
+
+    public void testCommandsRoundTrip() throws IOException {
+        MessageCommand message = new MessageCommand.Builder()
+                .setId("5421")
+                .setTarget("#robust")
+                .setBody("Hello, \u4e16\u754c")
+                .setTimestamp(1428000000000L)
+                .setSender("12", "bob", "Bob")
+                .build();
+
+        RobustCommand[] commands = { message, BacklogCommand.sinceTimestamp(1428000000000L),
+                RobustCommand.createPing() };
+
+        for (RobustCommand command : commands) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            command.toCBOR(out);
+
+            RobustCommand decoded = CommandDecoder.getInstance().decode(
+                    reader(out.toByteArray()));
+
+            assertNotNull(decoded);
+            assertEquals(command.getClass(), decoded.getClass());
+            assertEquals(command.toJSON(), decoded.toJSON());
+        }
+    }
+
+    /**
+     * Compares a backlog as JSON and as CBOR: how big each is, and how long each takes to decode.
+     */
+    public void testSmallerThanJson() throws IOException {
+        StringBuilder json = new StringBuilder("{\"type\":\"backlog\",\"target\":\"#robust\"," +
+                "\"from_date\":1428000000000,\"to_date\":1428030000000,\"count\":500," +
+                "\"messages\":[");
+
+        for (int i = 0; i < 500; i++) {
+            json.append(i > 0 ? "," : "").append(new MessageCommand.Builder()
+                    .setId(String.valueOf(5000 + i))
+                    .setTarget("#robust")
+                    .setBody("Message " + i + ", \u4e16\u754c")
+                    .setTimestamp(1428000000000L + i * 60000L)
+                    .setSender(String.valueOf(i % 7), "user" + i % 7, "User " + i % 7)
+                    .build()
+                    .toJSON());
+        }
+
+        String frame = json.append("]}").toString();
+        byte[] jsonBytes = frame.getBytes(Charset.forName("UTF-8"));
+        byte[] cborBytes = toCbor(new JsonParser().parse(frame));
+        CommandDecoder decoder = CommandDecoder.getInstance();
+
+        assertEquals(decoder.decode(frame).toJSON(), decoder.decode(reader(cborBytes)).toJSON());
+
+        long jsonNanos = 0;
+        long cborNanos = 0;
+
+        // The first round warms up the JIT and isn't counted.
+        for (int round = 0; round < 2; round++) {
+            jsonNanos = 0;
+            cborNanos = 0;
+
+            for (int i = 0; i < 50; i++) {
+                long start = System.nanoTime();
+                decoder.decode(frame);
+                jsonNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                decoder.decode(reader(cborBytes));
+                cborNanos += System.nanoTime() - start;
+            }
+        }
+
+        assertTrue(cborBytes.length < jsonBytes.length);
+
+        Log.i("CborTest", String.format("Backlog of 500: JSON %s bytes, decoded in %.2f ms; " +
+                        "CBOR %s bytes, decoded in %.2f ms", jsonBytes.length, jsonNanos / 50e6,
+                cborBytes.length, cborNanos / 50e6));
+    }
+
+    /**
+     * Items from the examples in appendix A of RFC 7049, in forms the writer never produces.
+     */
+    public void testReadsOtherEncodings() throws IOException {
+        // 1000 as a two byte integer.
+        assertEquals(1000, reader(0x19, 0x03, 0xe8).nextLong());
+
+        // Half and single precision floats.
+        assertEquals(1.0, reader(0xf9, 0x3c, 0x00).nextDouble());
+        assertEquals(-4.0, reader(0xf9, 0xc4, 0x00).nextDouble());
+        assertEquals(100000.0, reader(0xfa, 0x47, 0xc3, 0x50, 0x00).nextDouble());
+
+        // An indefinite length string in two chunks.
+        assertEquals("streaming", reader(0x7f, 0x65, 0x73, 0x74, 0x72, 0x65, 0x61, 0x64,
+                0x6d, 0x69, 0x6e, 0x67, 0xff).nextString());
+
+        // Definite and indefinite maps and arrays, nested.
+        assertEquals(new JsonParser().parse("{\"a\":1,\"b\":[2,3]}"),
+                mElementAdapter.read(reader(0xa2, 0x61, 0x61, 0x01, 0x61, 0x62, 0x82, 0x02,
+                        0x03)));
+        assertEquals(new JsonParser().parse("{\"a\":1,\"b\":[2,3]}"),
+                mElementAdapter.read(reader(0xbf, 0x61, 0x61, 0x01, 0x61, 0x62, 0x9f, 0x02,
+                        0x03, 0xff, 0xff)));
+
+        // A tagged date string; the tag is skipped.
+        assertEquals("2013-03-21T20:04:00Z", reader(0xc0, 0x74, 0x32, 0x30, 0x31, 0x33, 0x2d,
+                0x30, 0x33, 0x2d, 0x32, 0x31, 0x54, 0x32, 0x30, 0x3a, 0x30, 0x34, 0x3a, 0x30,
+                0x30, 0x5a).nextString());
+    }
+
+    public void testSkipsValues() throws IOException {
+        JsonElement element = new JsonParser().parse(
+                "{\"skip\":{\"a\":[1,2,{\"b\":\"c\"}],\"d\":null},\"keep\":7}");
+        CborReader in = reader(toCbor(element));
+
+        in.beginObject();
+        assertEquals("skip", in.nextName());
+        in.skipValue();
+        assertEquals("keep", in.nextName());
+        assertEquals(7, in.nextInt());
+        assertFalse(in.hasNext());
+        in.endObject();
+    }
+
+    private byte[] toCbor(JsonElement element) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(out);
+
+        mElementAdapter.write(writer, element);
+        writer.flush();
+
+        return out.toByteArray();
+    }
+
+    private static CborReader reader(byte[] bytes) {
+        return new CborReader(new ByteArrayInputStream(bytes));
+    }
+
+    private static CborReader reader(int... bytes) {
+        byte[] b = new byte[bytes.length];
+
+        for (int i = 0; i < bytes.length; i++) {
+            b[i] = (byte) bytes[i];
+        }
+
+        return reader(b);
+    }
+}
@@ -0,0 +1,102 @@
+package so.brendan.robust.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class DecorrelatedJitterPolicyTest extends TestCase {
+    private static final long BASE = 100;
+    private static final long CAP = 10000;
+    private static final long STABLE = 60000;
+
+    private static class FakeClock implements Clock {
+        long mNow = 1000;
+
+        @Override
+        public long elapsedRealtime() {
+            return mNow;
+        }
+    }
+
+    private FakeClock mClock;
+    private DecorrelatedJitterPolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new FakeClock();
+        mPolicy = new DecorrelatedJitterPolicy(mClock, new Random(42), BASE, CAP, STABLE);
+    }
+
+    public void testDelaysStayBetweenBaseAndCap() {
+        long previous = BASE;
+
+        for (int i = 0; i < 1000; i++) {
+            long delay = mPolicy.nextDelayMillis();
+
+            assertTrue("Below base: " + delay, delay >= BASE);
+            assertTrue("Above cap: " + delay, delay <= CAP);
+            assertTrue("More than three times the last: " + delay, delay <= previous * 3);
+
+            previous = delay;
+        }
+
+        assertEquals(1000, mPolicy.getAttempts());
+    }
+
+    public void testDelaysGrowTowardsCap() {
+        long first = mPolicy.nextDelayMillis();
+        long max = first;
+
+        for (int i = 0; i < 50; i++) {
+            max = Math.max(max, mPolicy.nextDelayMillis());
+        }
+
+        assertTrue(first <= BASE * 3);
+        assertTrue("Never grew past half the cap: " + max, max > CAP / 2);
+    }
+
+    public void testSameSeedGivesSameDelays() {
+        DecorrelatedJitterPolicy other = new DecorrelatedJitterPolicy(new FakeClock(),
+                new Random(42), BASE, CAP, STABLE);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(other.nextDelayMillis(), mPolicy.nextDelayMillis());
+        }
+    }
+
+    public void testStableConnectionResets() {
+        for (int i = 0; i < 50; i++) {
+            mPolicy.nextDelayMillis();
+        }
+
+        mPolicy.onConnected();
+        mClock.mNow += STABLE;
+
+        assertTrue(mPolicy.nextDelayMillis() <= BASE * 3);
+        assertEquals(1, mPolicy.getAttempts());
+    }
+
+    public void testShortConnectionKeepsBackingOff() {
+        for (int i = 0; i < 50; i++) {
+            mPolicy.nextDelayMillis();
+        }
+
+        mPolicy.onConnected();
+        mClock.mNow += STABLE - 1;
+        mPolicy.nextDelayMillis();
+
+        assertEquals(51, mPolicy.getAttempts());
+    }
+
+    public void testConnectionOnlyCountsOnce() {
+        mPolicy.onConnected();
+        mPolicy.nextDelayMillis();
+
+        // The connection dropped, so time since then doesn't make the next one stable.
+        mClock.mNow += STABLE;
+        mPolicy.nextDelayMillis();
+
+        assertEquals(2, mPolicy.getAttempts());
+    }
+}
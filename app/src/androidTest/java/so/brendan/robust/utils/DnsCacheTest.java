@@ -0,0 +1,77 @@
+package so.brendan.robust.utils;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+public class DnsCacheTest extends TestCase {
+    private static InetAddress v4(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) last });
+    }
+
+    private static InetAddress v6(int last) throws UnknownHostException {
+        byte[] address = new byte[16];
+
+        address[0] = 0x20;
+        address[1] = 0x01;
+        address[15] = (byte) last;
+
+        return InetAddress.getByAddress(address);
+    }
+
+    public void testInterleavesStartingWithIpv6() throws UnknownHostException {
+        InetAddress[] addresses = { v6(1), v6(2), v6(3), v4(1), v4(2) };
+
+        assertEquals(Arrays.asList(v6(1), v4(1), v6(2), v4(2), v6(3)),
+                DnsCache.interleave(addresses));
+    }
+
+    public void testInterleavesStartingWithIpv4() throws UnknownHostException {
+        InetAddress[] addresses = { v4(1), v6(1), v6(2), v4(2), v6(3) };
+
+        assertEquals(Arrays.asList(v4(1), v6(1), v4(2), v6(2), v6(3)),
+                DnsCache.interleave(addresses));
+    }
+
+    public void testSingleFamilyKeepsItsOrder() throws UnknownHostException {
+        InetAddress[] addresses = { v4(3), v4(1), v4(2) };
+
+        assertEquals(Arrays.asList(addresses), DnsCache.interleave(addresses));
+    }
+
+    public void testNoAddresses() {
+        assertTrue(DnsCache.interleave(new InetAddress[0]).isEmpty());
+    }
+
+    /**
+     * A literal address resolves without asking DNS, so exercises the cache on its own.
+     */
+    public void testReusesAndForgetsAddresses() throws UnknownHostException {
+        DnsCache cache = DnsCache.getInstance();
+        String host = "10.0.0.7";
+
+        cache.invalidate(host);
+        assertNull(cache.getCached(host));
+
+        int misses = cache.getMissCount();
+        int hits = cache.getHitCount();
+        List<InetAddress> resolved = cache.resolve(host);
+
+        assertEquals(Arrays.asList(v4(7)), resolved);
+        assertEquals(misses + 1, cache.getMissCount());
+
+        assertEquals(resolved, cache.resolve(host));
+        assertEquals(resolved, cache.getCached(host));
+        assertEquals(hits + 2, cache.getHitCount());
+
+        // Callers get copies, so can't change what is cached.
+        resolved.clear();
+        assertEquals(Arrays.asList(v4(7)), cache.getCached(host));
+
+        cache.invalidate(host);
+        assertNull(cache.getCached(host));
+    }
+}
@@ -0,0 +1,144 @@
+package so.brendan.robust.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs without <code>init(Context)</code>, so nothing is saved; each test uses networks of its
+ * own.
+ */
+public class HeartbeatIntervalsTest extends TestCase {
+    private static final long MINUTE = 60 * 1000;
+
+    private static int sNetworks = 0;
+
+    private final HeartbeatIntervals mIntervals = HeartbeatIntervals.getInstance();
+
+    private String network() {
+        return getName() + ":" + sNetworks++;
+    }
+
+    /**
+     * Answers heartbeats at the current interval until it changes, returning the new interval.
+     */
+    private long survive(String key) {
+        long interval = mIntervals.getInterval(key);
+
+        for (int i = 0; i < 10 && mIntervals.getInterval(key) == interval; i++) {
+            mIntervals.onSuccess(key, interval, 100);
+        }
+
+        return mIntervals.getInterval(key);
+    }
+
+    public void testStartsAtInitialInterval() {
+        assertEquals(HeartbeatIntervals.INITIAL_INTERVAL_MILLIS,
+                mIntervals.getInterval(network()));
+    }
+
+    public void testProbesLongerAfterThreeSuccesses() {
+        String key = network();
+        long interval = mIntervals.getInterval(key);
+
+        mIntervals.onSuccess(key, interval, 100);
+        mIntervals.onSuccess(key, interval, 100);
+        assertEquals(interval, mIntervals.getInterval(key));
+
+        mIntervals.onSuccess(key, interval, 100);
+        assertEquals(interval * 3 / 2, mIntervals.getInterval(key));
+    }
+
+    public void testShortIdleDoesNotCount() {
+        String key = network();
+        long interval = mIntervals.getInterval(key);
+
+        for (int i = 0; i < 10; i++) {
+            mIntervals.onSuccess(key, interval - 1, 100);
+        }
+
+        assertEquals(interval, mIntervals.getInterval(key));
+    }
+
+    public void testFailureCountsAgainstPromotion() {
+        String key = network();
+        long interval = mIntervals.getInterval(key);
+
+        mIntervals.onSuccess(key, interval, 100);
+        mIntervals.onSuccess(key, interval, 100);
+        mIntervals.onFailure(key, interval * 2);
+        mIntervals.onSuccess(key, interval, 100);
+
+        assertEquals(interval, mIntervals.getInterval(key));
+    }
+
+    /**
+     * Grows until a probe fails, then bisects between what works and what failed until the two
+     * are within a minute.
+     */
+    public void testBisectsAfterProbeFails() {
+        String key = network();
+
+        assertEquals(3 * MINUTE, mIntervals.getInterval(key));
+        assertEquals(4 * MINUTE + 30000, survive(key));
+        assertEquals(6 * MINUTE + 45000, survive(key));
+
+        // The NAT drops the flow somewhere past 6 minutes.
+        mIntervals.onFailure(key, 6 * MINUTE + 45000);
+        assertEquals(4 * MINUTE + 30000, mIntervals.getInterval(key));
+
+        long probe = survive(key);
+        assertEquals((4 * MINUTE + 30000 + 6 * MINUTE + 45000) / 2, probe);
+
+        // Halfway again would be less than a minute further, so probing stops.
+        assertEquals(probe, survive(key));
+        assertEquals(probe, survive(key));
+    }
+
+    public void testFailedStableIntervalBacksOff() {
+        String key = network();
+
+        mIntervals.onFailure(key, 3 * MINUTE);
+        assertEquals(3 * MINUTE / 2, mIntervals.getInterval(key));
+
+        mIntervals.onFailure(key, 3 * MINUTE / 2);
+        assertEquals(HeartbeatIntervals.MIN_INTERVAL_MILLIS, mIntervals.getInterval(key));
+
+        mIntervals.onFailure(key, HeartbeatIntervals.MIN_INTERVAL_MILLIS);
+        assertEquals(HeartbeatIntervals.MIN_INTERVAL_MILLIS, mIntervals.getInterval(key));
+    }
+
+    public void testNeverProbesPastMaximum() {
+        String key = network();
+        long interval = 0;
+
+        for (int i = 0; i < 20; i++) {
+            interval = survive(key);
+            assertTrue(interval <= HeartbeatIntervals.MAX_INTERVAL_MILLIS);
+        }
+
+        assertTrue(HeartbeatIntervals.MAX_INTERVAL_MILLIS - interval < MINUTE);
+    }
+
+    public void testNetworksLearnSeparately() {
+        String wifi = network();
+        String mobile = network();
+
+        survive(wifi);
+        mIntervals.onFailure(mobile, 3 * MINUTE);
+
+        assertEquals(4 * MINUTE + 30000, mIntervals.getInterval(wifi));
+        assertEquals(3 * MINUTE / 2, mIntervals.getInterval(mobile));
+    }
+
+    public void testRecordsRoundTripTimes() {
+        String key = network();
+
+        mIntervals.onSuccess(key, 0, 120);
+        mIntervals.onSuccess(key, 0, 80);
+
+        LatencyHistogram rtt = mIntervals.getRtt(key);
+
+        assertEquals(2, rtt.getTotalCount());
+        assertEquals(80, rtt.getLast());
+        assertEquals(120, rtt.getMax());
+    }
+}
@@ -24,6 +24,7 @@ public class ConnectionStatusActivity extends Activity implements ConnectionStat
     private TextView mPeerText;
     private TextView mCipherText;
     private TextView mProtocolText;
+    private TextView mHandshakeText;
     private LinearLayout mCertChainView;
     private ConnectionStatusPresenter mPresenter;
 
@@ -36,6 +37,7 @@ public class ConnectionStatusActivity extends Activity implements ConnectionStat
         mPeerText = (TextView) findViewById(R.id.peer);
         mCipherText = (TextView) findViewById(R.id.cipher);
         mProtocolText = (TextView) findViewById(R.id.protocol);
+        mHandshakeText = (TextView) findViewById(R.id.handshake);
         mCertChainView = (LinearLayout) findViewById(R.id.certificateChain);
 
         mPresenter = new ConnectionStatusPresenterImpl(this);
@@ -86,6 +88,16 @@ public class ConnectionStatusActivity extends Activity implements ConnectionStat
         mProtocolText.setText(protocol);
     }
 
+    /**
+     * Sets the handshake text in the view.
+     *
+     * @param handshake
+     */
+    @Override
+    public void setHandshake(String handshake) {
+        mHandshakeText.setText(handshake);
+    }
+
     /**
      * Sets the certificate chain in the view.
      *
@@ -474,7 +474,10 @@ public class MainActivity extends Activity implements MainView, View.OnClickList
         if (command.getTarget().equals(mSelectedTarget)) {
             mChatMessages.insertMessages(command);
         }
-        onBacklogReceived();
+
+        if (!command.isPartial()) {
+            onBacklogReceived();
+        }
     }
 
     @Override
@@ -10,21 +10,19 @@ import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.squareup.otto.Subscribe;
 import com.squareup.picasso.Picasso;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Stack;
 
 import so.brendan.robust.R;
+import so.brendan.robust.listeners.OnCommandReplyListener;
 import so.brendan.robust.models.RobustUser;
 import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
 import so.brendan.robust.models.commands.UserCommand;
 import so.brendan.robust.services.MessengerService;
-import so.brendan.robust.utils.BusProvider;
 import so.brendan.robust.utils.Constants;
 
 /**
@@ -111,8 +109,7 @@ public class MessagesAdapter extends ArrayAdapter<MessageCommand> {
                             user.getDisplayPictureURL()).into(holder.userImage);
                 }
             } else {
-                UserCommandReceiver.add(new PendingUserRequest(
-                        getContext(), holder, msg.getSenderId()));
+                new PendingUserRequest(getContext(), holder, msg.getSenderId()).request();
             }
         }
 
@@ -145,8 +142,11 @@ public class MessagesAdapter extends ArrayAdapter<MessageCommand> {
 
     /**
      * Handles pending user requests asynchronously.
+     *
+     * Requests for the same user while one is already waiting share its reply, so only one is
+     * sent to the server.
      */
-    private static class PendingUserRequest {
+    private static class PendingUserRequest implements OnCommandReplyListener {
         private Context mContext;
         private ViewHolder mHolder;
         private String mId;
@@ -158,66 +158,23 @@ public class MessagesAdapter extends ArrayAdapter<MessageCommand> {
         }
 
         public void request() {
-            MessengerService.sendCommand(mContext, new UserCommand(mId));
+            Log.d(TAG, String.format("requesting user id %s", mId));
+            MessengerService.requestCommand(mContext, new UserCommand(mId), this);
         }
 
-        public void resolve(UserCommand command) {
+        @Override
+        public void onReply(RobustCommand reply) {
+            UserCommand command = (UserCommand) reply;
+
             if (command.getUser().getDisplayPictureURL() != null) {
                 Picasso.with(mContext).load(command.getUser()
                         .getDisplayPictureURL()).into(mHolder.userImage);
             }
         }
 
-        public String getId() {
-            return mId;
-        }
-    }
-
-    /**
-     * Ensures that only one request for a user object is sent to the server regardless of how many
-     * PendingUserRequest objects need the result.
-     */
-    private static class UserCommandReceiver {
-        private static final UserCommandReceiver sInstance = new UserCommandReceiver();
-
-        private final HashMap<String, Stack<PendingUserRequest>> mRequests =
-                new HashMap<String, Stack<PendingUserRequest>>();
-
-        private UserCommandReceiver() {
-            BusProvider.getInstance().register(this);
-        }
-
-        public static void add(PendingUserRequest req) {
-            String id = req.getId();
-
-            if (!sInstance.mRequests.containsKey(id)) {
-                sInstance.mRequests.put(id, new Stack<PendingUserRequest>());
-            }
-
-            Stack<PendingUserRequest> stack = sInstance.mRequests.get(id);
-            stack.add(req);
-
-            if (stack.size() == 1) {
-                Log.d(TAG, String.format("firing request for user id %s", id));
-                req.request();
-            } else {
-                Log.v(TAG, String.format("already fired request for user id %s", id));
-            }
-        }
-
-        @Subscribe
-        public void onUserCommand(UserCommand command) {
-            String userId = command.getUser().getId();
-
-            Log.d(TAG, String.format("received command for user id %s", userId));
-
-            if (mRequests.containsKey(userId)) {
-                Stack<PendingUserRequest> stack = mRequests.get(userId);
-
-                while (!stack.isEmpty()) {
-                    stack.pop().resolve(command);
-                }
-            }
+        @Override
+        public void onReplyFailed(Throwable cause) {
+            Log.w(TAG, String.format("no user for id %s: %s", mId, cause));
         }
     }
 }
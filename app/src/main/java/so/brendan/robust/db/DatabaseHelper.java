@@ -3,36 +3,49 @@ package so.brendan.robust.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
-import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
 
+import com.google.gson.JsonParseException;
+
+import so.brendan.robust.models.OutboxEntry;
 import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.CommandDecoder;
 import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
 import so.brendan.robust.utils.Constants;
 
 /**
  * The database helper. Provides necessary convenience methods and static classes for handling
  * database content.
  *
+ * The database uses write-ahead logging, so reads never wait for writes. All writes go through
+ * <code>DatabaseWriter</code>, which owns the writable database.
+ *
  * Singleton; use <code>getInstance(Context context)</code>.
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = Constants.createTag(DatabaseHelper.class);
 
     private static final String DB_NAME = Constants.APP_NAME + ".db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 2;
 
     private static DatabaseHelper sInstance;
 
     private DatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
     }
 
     public static DatabaseHelper getInstance(Context context) {
@@ -134,100 +147,327 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return cursor.getLong(0);
         }
 
-        private static ContentValues getContentValues(MessageCommand message) {
-            ContentValues v = new ContentValues();
-
-            v.put(KEY_ID, message.getId());
-            v.put(KEY_SUBTYPE, message.getSubtype());
-            v.put(KEY_TARGET, message.getTarget());
-            v.put(KEY_TIMESTAMP, message.getTimestamp());
-            v.put(KEY_JSON, message.toString());
-            v.put(KEY_USER_ID, message.getSenderId());
+        private static final String INSERT_SQL = String.format(
+                "insert or ignore into %s (%s, %s, %s, %s, %s, %s) values (?, ?, ?, ?, ?, ?)",
+                TABLE_NAME, KEY_ID, KEY_SUBTYPE, KEY_TARGET, KEY_TIMESTAMP, KEY_JSON, KEY_USER_ID);
 
-            return v;
-        }
+        private static final String UPDATE_SQL = String.format(
+                "update or ignore %s set %s = ?, %s = ?, %s = ?, %s = ?, %s = ? where %s = ?",
+                TABLE_NAME, KEY_SUBTYPE, KEY_TARGET, KEY_TIMESTAMP, KEY_JSON, KEY_USER_ID, KEY_ID);
 
         /**
-         * Upserts a backlog.
+         * Queues the messages of a backlog to be upserted, in one transaction.
          *
          * @param ctx
          * @param backlog
-         * @return
+         * @return a future of the ids of the messages that were new.
          */
-        public static boolean upsert(Context ctx, BacklogCommand backlog) {
-            boolean flag = false;
+        public static Future<Set<String>> upsert(Context ctx, BacklogCommand backlog) {
+            final DatabaseWriter writer = DatabaseWriter.getInstance(ctx);
+
+            // A backlog frame without messages has none to store.
+            final List<MessageCommand> messages = backlog.getMessages() != null ?
+                    backlog.getMessages() : Collections.<MessageCommand>emptyList();
 
-            for (MessageCommand message : backlog.getMessages()) {
-                if (upsert(ctx, message)) {
-                    flag = true;
+            return writer.submit(new DatabaseWriter.Write<Set<String>>() {
+                @Override
+                protected Set<String> apply(SQLiteDatabase db) {
+                    return upsert(writer, db, messages);
                 }
-            }
 
-            return flag;
+                @Override
+                protected int getRowCount() {
+                    return messages.size();
+                }
+            });
         }
 
         /**
-         * Upserts a message.
+         * Queues a message to be upserted.
          *
          * @param ctx
          * @param message
-         * @return
+         * @return a future of whether the message was new.
          */
-        public static boolean upsert(Context ctx, MessageCommand message) {
-            return DatabaseHelper.upsert(ctx, TABLE_NAME, getContentValues(message),
-                    KEY_ID + "=?", new String[]{ message.getId() });
+        public static Future<Boolean> upsert(Context ctx, final MessageCommand message) {
+            final DatabaseWriter writer = DatabaseWriter.getInstance(ctx);
+
+            return writer.submit(new DatabaseWriter.Write<Boolean>() {
+                @Override
+                protected Boolean apply(SQLiteDatabase db) {
+                    return !upsert(writer, db, Collections.singletonList(message)).isEmpty();
+                }
+            });
+        }
+
+        /**
+         * Inserts messages not yet stored and updates the rest, with statements compiled once
+         * for the writer. Only call from <code>DatabaseWriter</code>, which wraps it in a
+         * transaction.
+         *
+         * <code>or ignore</code> also skips rows breaking a <code>not null</code> constraint, and
+         * the upsert clause that would only skip duplicate ids needs a newer SQLite than API 16
+         * has. So a message is only taken to be stored already if updating its id finds it;
+         * otherwise it was dropped, and is logged as such.
+         *
+         * @param writer
+         * @param db
+         * @param messages
+         * @return the ids of the messages that were new.
+         */
+        private static Set<String> upsert(DatabaseWriter writer, SQLiteDatabase db,
+                                          List<MessageCommand> messages) {
+            Set<String> newIds = new HashSet<String>();
+            SQLiteStatement insert = writer.getStatement(db, INSERT_SQL);
+            SQLiteStatement update = writer.getStatement(db, UPDATE_SQL);
+            int dropped = 0;
+
+            for (MessageCommand message : messages) {
+                String json = message.toJSON();
+
+                bindString(insert, 1, message.getId());
+                bindString(insert, 2, message.getSubtype());
+                bindString(insert, 3, message.getTarget());
+                insert.bindLong(4, message.getTimestamp());
+                bindString(insert, 5, json);
+                bindString(insert, 6, message.getSenderId());
+
+                if (insert.executeInsert() != -1) {
+                    newIds.add(message.getId());
+                    continue;
+                }
+
+                bindString(update, 1, message.getSubtype());
+                bindString(update, 2, message.getTarget());
+                update.bindLong(3, message.getTimestamp());
+                bindString(update, 4, json);
+                bindString(update, 5, message.getSenderId());
+                bindString(update, 6, message.getId());
+
+                if (update.executeUpdateDelete() == 0) {
+                    Log.w(TAG, String.format("Dropped invalid message: %s", json));
+                    dropped++;
+                }
+            }
+
+            if (messages.size() > 1) {
+                Log.d(TAG, String.format("Stored %s messages, %s new, %s dropped",
+                        messages.size() - dropped, newIds.size(), dropped));
+            }
+
+            return newIds;
         }
     }
 
     /**
-     * Attempts to update the relevant record in a database, and if not found, inserts instead.
-     *
-     * @param ctx
-     * @param table
-     * @param values
-     * @param whereClause
-     * @param whereArgs
-     * @return
+     * Handles operations related to the <code>outbox</code> table, which holds commands sent
+     * while no session could take them, in the order they were sent.
      */
-    public static boolean upsert(Context ctx, String table, ContentValues values, String whereClause, String[] whereArgs) {
-        Log.v(TAG, String.format("Upserting into table '%s' values '%s' where: %s %s",
-                table, values, whereClause, whereArgs == null ? null : "[" + TextUtils.join(", ", whereArgs) + "]"));
-        SQLiteDatabase db = getInstance(ctx).getWritableDatabase();
+    public static final class Outbox {
+        public static final String TABLE_NAME = "outbox";
+
+        public static final String KEY_KEY = "key";
+        public static final String KEY_TYPE = "type";
+        public static final String KEY_JSON = "json";
+        public static final String KEY_ATTEMPTS = "attempts";
+        public static final String KEY_CREATED = "created";
+
+        /** The most entries kept; the oldest are dropped beyond this. */
+        public static final int MAX_ENTRIES = 500;
+
+        private static final String TABLE_CREATE = String.format(
+                "CREATE TABLE %s (" +
+                        "%s integer primary key autoincrement, %s text unique not null, " +
+                        "%s text not null, %s text not null, %s integer not null default 0, " +
+                        "%s integer not null)",
+                TABLE_NAME,
+                BaseColumns._ID, KEY_KEY, KEY_TYPE, KEY_JSON, KEY_ATTEMPTS, KEY_CREATED);
 
-        long i = db.update(table, values, whereClause, whereArgs);
-        Log.v(TAG, "Update: " + i);
+        private static final String[] COLUMNS = new String[] {
+                BaseColumns._ID, KEY_KEY, KEY_JSON, KEY_ATTEMPTS };
 
-        if (i > 1) {
-            Log.e(TAG, String.format("possible database corruption; update returned %s rows!", i));
+        /**
+         * Returns whether a command is worth keeping until it can be sent. Requests for data,
+         * such as users and backlogs, are made again anyway once the session is back.
+         *
+         * @param command
+         * @return
+         */
+        public static boolean isQueueable(RobustCommand command) {
+            String type = command.getType();
+
+            return RobustCommand.TYPE_MESSAGE.equals(type) ||
+                    RobustCommand.TYPE_JOIN.equals(type) ||
+                    RobustCommand.TYPE_PART.equals(type);
         }
 
-        if (i == 0) {
-            try {
-                i = db.insertOrThrow(table, null, values);
+        /**
+         * Adds a command to the end of the outbox, unless one with the same key is already
+         * there, such as when an intent is redelivered.
+         *
+         * @param ctx
+         * @param key
+         * @param command
+         * @return the new entry, or null if it was a duplicate.
+         */
+        public static OutboxEntry enqueue(Context ctx, String key, RobustCommand command) {
+            final ContentValues v = new ContentValues();
+
+            v.put(KEY_KEY, key);
+            v.put(KEY_TYPE, command.getType());
+            v.put(KEY_JSON, command.toJSON());
+            v.put(KEY_CREATED, System.currentTimeMillis());
+
+            long rowId = DatabaseWriter.getInstance(ctx).execute(new DatabaseWriter.Write<Long>() {
+                @Override
+                protected Long apply(SQLiteDatabase db) {
+                    return db.insertWithOnConflict(TABLE_NAME, null, v,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            });
+
+            if (rowId == -1) {
+                Log.d(TAG, String.format("Outbox already holds %s", key));
+                return null;
+            }
+
+            return new OutboxEntry(rowId, key, command, OutboxEntry.STATE_QUEUED, 0);
+        }
+
+        /**
+         * Drops the oldest entries beyond <code>MAX_ENTRIES</code>.
+         *
+         * @param ctx
+         * @return the dropped entries.
+         */
+        public static List<OutboxEntry> trim(Context ctx) {
+            return DatabaseWriter.getInstance(ctx).execute(
+                    new DatabaseWriter.Write<List<OutboxEntry>>() {
+                @Override
+                protected List<OutboxEntry> apply(SQLiteDatabase db) {
+                    ArrayList<OutboxEntry> dropped = new ArrayList<OutboxEntry>();
 
-                if (i == -1) {
-                    Log.e(TAG, "bad data provided to insert; no record created.");
-                    Log.d(TAG, values.toString());
+                    long excess = DatabaseUtils.queryNumEntries(db, TABLE_NAME) - MAX_ENTRIES;
 
-                    return false;
+                    if (excess <= 0) {
+                        return dropped;
+                    }
+
+                    dropped.addAll(query(db, String.valueOf(excess)));
+
+                    for (OutboxEntry entry : dropped) {
+                        remove(db, entry.getRowId());
+                    }
+
+                    Log.w(TAG, String.format("Outbox full; dropped %s entries.", dropped.size()));
+
+                    return dropped;
                 }
+            });
+        }
+
+        /**
+         * Returns the oldest entries, in the order they were added.
+         *
+         * @param ctx
+         * @param limit
+         * @return
+         */
+        public static List<OutboxEntry> getQueued(Context ctx, int limit) {
+            return query(getInstance(ctx).getReadableDatabase(), String.valueOf(limit));
+        }
 
-                return true;
-            } catch (SQLiteException e) {
-                Log.e(TAG, "!", e);
+        private static List<OutboxEntry> query(SQLiteDatabase db, String limit) {
+            ArrayList<OutboxEntry> list = new ArrayList<OutboxEntry>();
+
+            Cursor cur = db.query(TABLE_NAME, COLUMNS, null, null, null, null,
+                    BaseColumns._ID, limit);
+
+            try {
+                while (cur.moveToNext()) {
+                    RobustCommand command;
+
+                    try {
+                        command = CommandDecoder.getInstance().decode(cur.getString(2));
+                    } catch (JsonParseException e) {
+                        Log.e(TAG, "Unreadable outbox entry", e);
+                        command = null;
+                    }
+
+                    list.add(new OutboxEntry(cur.getLong(0), cur.getString(1), command,
+                            OutboxEntry.STATE_QUEUED, cur.getInt(3)));
+                }
+            } finally {
+                cur.close();
             }
+
+            return list;
         }
 
-        return false;
+        /**
+         * Removes an entry, once sent.
+         *
+         * @param ctx
+         * @param rowId
+         */
+        public static void remove(Context ctx, final long rowId) {
+            DatabaseWriter.getInstance(ctx).execute(new DatabaseWriter.Write<Void>() {
+                @Override
+                protected Void apply(SQLiteDatabase db) {
+                    remove(db, rowId);
+                    return null;
+                }
+            });
+        }
+
+        private static void remove(SQLiteDatabase db, long rowId) {
+            db.delete(TABLE_NAME, BaseColumns._ID + "=?", new String[] { String.valueOf(rowId) });
+        }
+
+        /**
+         * Counts a failed attempt to send an entry, leaving it in place.
+         *
+         * @param ctx
+         * @param rowId
+         */
+        public static void markFailed(Context ctx, final long rowId) {
+            DatabaseWriter.getInstance(ctx).execute(new DatabaseWriter.Write<Void>() {
+                @Override
+                protected Void apply(SQLiteDatabase db) {
+                    db.execSQL(String.format("update %s set %s = %s + 1 where %s = ?",
+                            TABLE_NAME, KEY_ATTEMPTS, KEY_ATTEMPTS, BaseColumns._ID),
+                            new Object[] { rowId });
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Binds a string that may be null.
+     *
+     * @param statement
+     * @param index
+     * @param value
+     */
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(Messages.TABLE_CREATE);
+        db.execSQL(Outbox.TABLE_CREATE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-
+        if (oldVersion < 2) {
+            db.execSQL(Outbox.TABLE_CREATE);
+        }
     }
 }
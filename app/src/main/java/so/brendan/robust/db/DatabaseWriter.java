@@ -0,0 +1,314 @@
+package so.brendan.robust.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import so.brendan.robust.utils.Constants;
+
+/**
+ * The one thread that writes to the database.
+ *
+ * Writes are queued from any thread and committed in groups: once a write arrives, the writer
+ * waits up to <code>BATCH_WINDOW_MILLIS</code> for more, or until <code>MAX_BATCH_ROWS</code>
+ * rows are waiting, then applies them all in one transaction. Each transaction costs one sync of
+ * the write-ahead log, so a burst of live messages pays for one sync rather than one each.
+ *
+ * A write's future completes once its transaction has committed. If a transaction fails, its
+ * writes are tried again in transactions of their own, so one bad write fails alone.
+ *
+ * At most <code>MAX_QUEUED_ROWS</code> rows wait to be written; past that, queueing a write
+ * blocks until earlier ones have committed. Writers that don't wait for their writes, such as
+ * the persistence thread, are then held back by the database, and in turn hold back reads.
+ *
+ * Singleton; use <code>getInstance(Context context)</code>.
+ */
+public class DatabaseWriter {
+    private static final String TAG = Constants.createTag(DatabaseWriter.class);
+
+    /** How long the first write of a group waits for others to join it. */
+    static final long BATCH_WINDOW_MILLIS = 5;
+
+    /** The most rows written in one transaction. */
+    static final int MAX_BATCH_ROWS = 256;
+
+    /** The most rows waiting to be written before queueing a write blocks. */
+    static final int MAX_QUEUED_ROWS = 4 * MAX_BATCH_ROWS;
+
+    private static DatabaseWriter sInstance;
+
+    private final DatabaseHelper mHelper;
+    private final BlockingQueue<Pending<?>> mQueue = new LinkedBlockingQueue<Pending<?>>();
+
+    /** Permits for the rows that may still be queued; a write holds its own until it is done. */
+    private final Semaphore mQueuedRows = new Semaphore(MAX_QUEUED_ROWS);
+
+    /** Statements compiled by writes, kept for the next. Only used on the writer thread. */
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
+    /**
+     * A change to the database, applied on the writer thread inside a transaction.
+     *
+     * @param <T> the result handed to whoever queued it.
+     */
+    public static abstract class Write<T> {
+        /**
+         * Applies the change. Runs inside a transaction, so must not begin or end one.
+         *
+         * @param db
+         * @return
+         */
+        protected abstract T apply(SQLiteDatabase db);
+
+        /**
+         * Returns roughly how many rows the change touches, for sizing groups.
+         *
+         * @return
+         */
+        protected int getRowCount() {
+            return 1;
+        }
+    }
+
+    /**
+     * A queued write, whose future is only run once the write has committed or failed.
+     */
+    private static class Pending<T> implements Callable<T> {
+        private final Write<T> mWrite;
+        private final FutureTask<T> mFuture = new FutureTask<T>(this);
+        private int mRows;
+        private T mResult;
+        private RuntimeException mError;
+
+        Pending(Write<T> write) {
+            mWrite = write;
+        }
+
+        void apply(SQLiteDatabase db) {
+            mResult = mWrite.apply(db);
+        }
+
+        void complete() {
+            mFuture.run();
+        }
+
+        void fail(RuntimeException error) {
+            mError = error;
+            mFuture.run();
+        }
+
+        @Override
+        public T call() {
+            if (mError != null) {
+                throw mError;
+            }
+
+            return mResult;
+        }
+    }
+
+    private DatabaseWriter(DatabaseHelper helper) {
+        mHelper = helper;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loop();
+            }
+        }, "DatabaseWriter").start();
+    }
+
+    public static synchronized DatabaseWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DatabaseWriter(DatabaseHelper.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues a write, returning once it is queued. Blocks while <code>MAX_QUEUED_ROWS</code>
+     * rows are already waiting, so don't call from the writer thread, such as from inside
+     * another write.
+     *
+     * The write is sized here rather than on the writer thread, so a write that can't be sized
+     * fails alone instead of stopping the writer.
+     *
+     * @param write
+     * @param <T>
+     * @return a future completed once the write has committed.
+     */
+    public <T> Future<T> submit(Write<T> write) {
+        Pending<T> pending = new Pending<T>(write);
+
+        try {
+            // A write bigger than the queue waits for it to empty, then goes through alone.
+            pending.mRows = Math.min(Math.max(write.getRowCount(), 1), MAX_QUEUED_ROWS);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Write failed", e);
+            pending.fail(e);
+            return pending.mFuture;
+        }
+
+        try {
+            mQueuedRows.acquire(pending.mRows);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.fail(new SQLiteException("Interrupted waiting to queue a write.", e));
+            return pending.mFuture;
+        }
+
+        mQueue.add(pending);
+        return pending.mFuture;
+    }
+
+    /**
+     * Queues a write and waits for it to commit. Don't call from the writer thread, such as
+     * from inside another write.
+     *
+     * @param write
+     * @param <T>
+     * @return
+     */
+    public <T> T execute(Write<T> write) {
+        return await(submit(write));
+    }
+
+    /**
+     * Waits for a queued write to commit, rethrowing anything it threw.
+     *
+     * @param future
+     * @param <T>
+     * @return
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLiteException("Interrupted waiting for a write.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new SQLiteException("Write failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the statement for the SQL, compiling it the first time, so writes made over and
+     * over don't compile it each time. Only call from inside a write, and don't close it.
+     *
+     * @param db
+     * @param sql
+     * @return
+     */
+    SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+
+        return statement;
+    }
+
+    private void loop() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        List<Pending<?>> batch = new ArrayList<Pending<?>>();
+
+        while (true) {
+            batch.clear();
+
+            try {
+                Pending<?> pending = mQueue.take();
+                int rows = pending.mRows;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                        BATCH_WINDOW_MILLIS);
+
+                batch.add(pending);
+
+                while (rows < MAX_BATCH_ROWS) {
+                    pending = mQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                    if (pending == null) {
+                        break;
+                    }
+
+                    batch.add(pending);
+                    rows += pending.mRows;
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Writer interrupted; stopping.");
+                return;
+            }
+
+            commit(db, batch);
+
+            for (Pending<?> done : batch) {
+                mQueuedRows.release(done.mRows);
+            }
+        }
+    }
+
+    /**
+     * Applies a group of writes in one transaction, then completes their futures.
+     */
+    private void commit(SQLiteDatabase db, List<Pending<?>> batch) {
+        long start = System.nanoTime();
+        RuntimeException error = null;
+
+        try {
+            db.beginTransactionNonExclusive();
+
+            try {
+                for (Pending<?> pending : batch) {
+                    pending.apply(db);
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        }
+
+        if (error == null) {
+            Log.v(TAG, String.format("Committed %s writes in %s ms", batch.size(),
+                    (System.nanoTime() - start) / 1000000));
+
+            for (Pending<?> pending : batch) {
+                pending.complete();
+            }
+        } else if (batch.size() == 1) {
+            Log.e(TAG, "Write failed", error);
+            batch.get(0).fail(error);
+        } else {
+            Log.w(TAG, String.format("Group of %s writes failed; retrying each alone",
+                    batch.size()), error);
+
+            for (Pending<?> pending : batch) {
+                commit(db, Collections.<Pending<?>>singletonList(pending));
+            }
+        }
+    }
+}
@@ -39,6 +39,7 @@ public class ChatMessagesFragment extends Fragment implements ChatMessagesView,
 
     private boolean mPendingOverscrollRequest = false;
     private boolean mBlockOverscrollRequests = false;
+    private int mBacklogReceivedCount = 0;
 
     public ChatMessagesFragment() {}
 
@@ -141,15 +142,25 @@ public class ChatMessagesFragment extends Fragment implements ChatMessagesView,
             mAdapter.notifyDataSetChanged();
         }
 
+        // Large backlogs arrive in chunks; wait for the last before finishing the request.
+        mBacklogReceivedCount += messages.size();
+
+        if (command.isPartial()) {
+            return;
+        }
+
+        int count = mBacklogReceivedCount;
+        mBacklogReceivedCount = 0;
+
         if (mPendingOverscrollRequest) {
             mPendingOverscrollRequest = false;
 
-            if (messages.isEmpty()) {
+            if (count == 0) {
                 mBlockOverscrollRequests = true;
             } else {
                 // Scroll up just one to show there's results.
-                mListView.setSelection(command.getMessages().size());
-                mListView.smoothScrollToPosition(Math.max(0, command.getMessages().size() - 1));
+                mListView.setSelection(count);
+                mListView.smoothScrollToPosition(Math.max(0, count - 1));
             }
 
             mListener.onBacklogReceived();
@@ -5,8 +5,10 @@ import android.util.Log;
 
 import com.squareup.otto.Subscribe;
 
+import so.brendan.robust.listeners.OnCommandReplyListener;
 import so.brendan.robust.models.RobustSessionState;
 import so.brendan.robust.models.RobustUser;
+import so.brendan.robust.models.commands.RobustCommand;
 import so.brendan.robust.models.commands.UserCommand;
 import so.brendan.robust.presenters.UserProfilePresenter;
 import so.brendan.robust.services.MessengerService;
@@ -21,6 +23,7 @@ public class UserProfileInteractorImpl implements UserProfileInteractor {
 
     private UserProfilePresenter mPresenter;
     private Context mCtx;
+    private String mRequestToken;
 
     public UserProfileInteractorImpl(Context context, UserProfilePresenter presenter) {
         mCtx = context;
@@ -33,6 +36,11 @@ public class UserProfileInteractorImpl implements UserProfileInteractor {
 
     public void unregisterListeners() {
         BusProvider.getInstance().unregister(this);
+
+        if (mRequestToken != null) {
+            MessengerService.cancelRequest(mRequestToken);
+            mRequestToken = null;
+        }
     }
 
     public void requestSessionState() {
@@ -40,7 +48,25 @@ public class UserProfileInteractorImpl implements UserProfileInteractor {
     }
 
     public void requestUser(String id) {
-        MessengerService.sendCommand(mCtx, new UserCommand(id));
+        if (mRequestToken != null) {
+            MessengerService.cancelRequest(mRequestToken);
+        }
+
+        mRequestToken = MessengerService.requestCommand(mCtx, new UserCommand(id),
+                new OnCommandReplyListener() {
+            @Override
+            public void onReply(RobustCommand reply) {
+                mRequestToken = null;
+                Log.d(TAG, "setOtherUser event!");
+                mPresenter.setUser(((UserCommand) reply).getUser());
+            }
+
+            @Override
+            public void onReplyFailed(Throwable cause) {
+                mRequestToken = null;
+                Log.w(TAG, "Could not get user", cause);
+            }
+        });
     }
 
     @Subscribe
@@ -50,10 +76,4 @@ public class UserProfileInteractorImpl implements UserProfileInteractor {
         mPresenter.setUser(user);
     }
 
-    @Subscribe
-    public void receiveOtherUser(UserCommand command) {
-        Log.d(TAG, "setOtherUser event!");
-        RobustUser user = command.getUser();
-        mPresenter.setUser(user);
-    }
 }
@@ -0,0 +1,24 @@
+package so.brendan.robust.listeners;
+
+import so.brendan.robust.models.commands.RobustCommand;
+
+/**
+ * Listener for the reply to a request sent through <code>MessengerService</code>. Called on the
+ * main thread.
+ */
+public interface OnCommandReplyListener {
+    /**
+     * Reports the reply to the request.
+     *
+     * @param reply
+     */
+    public void onReply(RobustCommand reply);
+
+    /**
+     * Reports that no reply will arrive, such as when the request timed out or the session was
+     * down.
+     *
+     * @param cause
+     */
+    public void onReplyFailed(Throwable cause);
+}
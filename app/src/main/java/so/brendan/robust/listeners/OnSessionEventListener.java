@@ -1,6 +1,8 @@
 package so.brendan.robust.listeners;
 
+import java.util.List;
 
+import so.brendan.robust.models.commands.RobustCommand;
 import so.brendan.robust.services.RobustSession;
 
 /**
@@ -31,10 +33,20 @@ public interface OnSessionEventListener {
     public void onAuthenticatorMissing(RobustSession session);
 
     /**
-     * Reports a received message from the underlying socket of the provided session.
+     * Reports a command decoded from the underlying socket of the provided session.
      *
      * @param session
-     * @param message
+     * @param command
      */
-    public void onMessageReceived(RobustSession session, String message);
+    public void onCommandReceived(RobustSession session, RobustCommand command);
+
+    /**
+     * Returns the requests that bring the given channels up to date after connecting. Called on
+     * the session's event loop.
+     *
+     * @param session
+     * @param targets
+     * @return
+     */
+    public List<RobustCommand> getCatchUpRequests(RobustSession session, List<String> targets);
 }
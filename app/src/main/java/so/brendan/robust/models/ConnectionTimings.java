@@ -0,0 +1,103 @@
+package so.brendan.robust.models;
+
+import so.brendan.robust.utils.LatencyHistogram;
+
+/**
+ * An immutable snapshot of how long each phase of connecting a session has recently taken, for
+ * posting to views.
+ *
+ * Each phase is timed from the end of the one before it, so the phases of one connection add
+ * up to its total. Catch-up is timed separately.
+ */
+public class ConnectionTimings {
+    public static final int PHASE_DNS = 0;
+    public static final int PHASE_TCP = 1;
+    public static final int PHASE_TLS = 2;
+    public static final int PHASE_AUTH = 3;
+
+    /** From the start of the connection attempt until authenticated. */
+    public static final int PHASE_TOTAL = 4;
+
+    /**
+     * From the start of the connection attempt until the backlog of every joined channel has
+     * arrived. Overlaps the other phases, as catch-up is requested along with authentication.
+     */
+    public static final int PHASE_CATCH_UP = 5;
+
+    public static final int PHASE_COUNT = 6;
+
+    private static final String[] PHASE_NAMES =
+            { "dns", "tcp", "tls", "auth", "total", "catch-up" };
+
+    private final String mHost;
+    private final int mPort;
+    private final LatencyHistogram[] mPhases;
+    private final LatencyHistogram mHeartbeatRtt;
+
+    /**
+     * @param host
+     * @param port
+     * @param phases
+     * @param heartbeatRtt the round trip times of heartbeats, or null if not connected.
+     */
+    public ConnectionTimings(String host, int port, LatencyHistogram[] phases,
+                             LatencyHistogram heartbeatRtt) {
+        mHost = host;
+        mPort = port;
+        mHeartbeatRtt = heartbeatRtt == null ? null : heartbeatRtt.copy();
+        mPhases = new LatencyHistogram[phases.length];
+
+        for (int i = 0; i < phases.length; ++i) {
+            mPhases[i] = phases[i].copy();
+        }
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    /**
+     * Returns the recent timings of a phase.
+     *
+     * @param phase
+     * @return
+     */
+    public LatencyHistogram getPhase(int phase) {
+        return mPhases[phase];
+    }
+
+    /**
+     * Returns the recent round trip times of heartbeats on the current network, or null if not
+     * connected.
+     *
+     * @return
+     */
+    public LatencyHistogram getHeartbeatRtt() {
+        return mHeartbeatRtt;
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(String.format("%s:%s", mHost, mPort));
+
+        for (int i = 0; i < mPhases.length; ++i) {
+            builder.append(String.format("\n%s: %s", getPhaseName(i), mPhases[i]));
+        }
+
+        if (mHeartbeatRtt != null) {
+            builder.append(String.format("\nheartbeat rtt: %s", mHeartbeatRtt));
+        }
+
+        return builder.toString();
+    }
+}
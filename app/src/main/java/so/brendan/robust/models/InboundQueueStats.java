@@ -0,0 +1,75 @@
+package so.brendan.robust.models;
+
+/**
+ * An immutable snapshot of the queue of received commands waiting to be persisted, for posting
+ * to views.
+ */
+public class InboundQueueStats {
+    private final int mDepth;
+    private final int mMaxDepth;
+    private final int mHighWatermark;
+    private final boolean mPaused;
+    private final int mPauseCount;
+    private final long mPausedMillis;
+
+    public InboundQueueStats(int depth, int maxDepth, int highWatermark, boolean paused,
+                             int pauseCount, long pausedMillis) {
+        mDepth = depth;
+        mMaxDepth = maxDepth;
+        mHighWatermark = highWatermark;
+        mPaused = paused;
+        mPauseCount = pauseCount;
+        mPausedMillis = pausedMillis;
+    }
+
+    /**
+     * Returns the number of commands waiting.
+     *
+     * @return
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Returns the most commands ever waiting at once.
+     *
+     * @return
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public int getHighWatermark() {
+        return mHighWatermark;
+    }
+
+    /**
+     * Returns whether reads are paused right now.
+     *
+     * @return
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    public int getPauseCount() {
+        return mPauseCount;
+    }
+
+    /**
+     * Returns the total time reads have been paused for.
+     *
+     * @return
+     */
+    public long getPausedMillis() {
+        return mPausedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { Depth: %s/%s, Max: %s, Paused: %s, Pauses: %s (%s ms) }",
+                InboundQueueStats.class.getSimpleName(), mDepth, mHighWatermark, mMaxDepth,
+                mPaused, mPauseCount, mPausedMillis);
+    }
+}
@@ -0,0 +1,79 @@
+package so.brendan.robust.models;
+
+import so.brendan.robust.models.commands.RobustCommand;
+
+/**
+ * A command waiting in the outbox to be sent, and how far it has got. Posted to the bus whenever
+ * its state changes.
+ */
+public class OutboxEntry {
+    /** Stored, waiting for an authenticated session. */
+    public static final int STATE_QUEUED = 0;
+
+    /** Written to the server. The entry has been removed from the outbox. */
+    public static final int STATE_SENT = 1;
+
+    /** Dropped from the outbox without being sent, as it was full. */
+    public static final int STATE_DROPPED = 2;
+
+    private final long mRowId;
+    private final String mKey;
+    private final RobustCommand mCommand;
+    private final int mState;
+    private final int mAttempts;
+
+    public OutboxEntry(long rowId, String key, RobustCommand command, int state, int attempts) {
+        mRowId = rowId;
+        mKey = key;
+        mCommand = command;
+        mState = state;
+        mAttempts = attempts;
+    }
+
+    /**
+     * Returns a copy of the entry in a new state.
+     *
+     * @param state
+     * @return
+     */
+    public OutboxEntry withState(int state) {
+        return new OutboxEntry(mRowId, mKey, mCommand, state, mAttempts);
+    }
+
+    public long getRowId() {
+        return mRowId;
+    }
+
+    /**
+     * Returns the key the sender gave the command, unique within the outbox.
+     *
+     * @return
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    public RobustCommand getCommand() {
+        return mCommand;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Returns the number of failed attempts to send the command.
+     *
+     * @return
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { Key: %s, Type: %s, State: %s, Attempts: %s }",
+                OutboxEntry.class.getSimpleName(), mKey,
+                mCommand == null ? null : mCommand.getType(), mState, mAttempts);
+    }
+}
@@ -2,18 +2,22 @@ package so.brendan.robust.models;
 
 import org.parceler.Parcel;
 
-import java.util.List;
-
 import so.brendan.robust.services.RobustSession;
 
 /**
  * A parcelable model for holding Robust session state.
+ *
+ * Published by <code>RobustSession</code> as a snapshot after each change, so it is not changed
+ * once handed out.
  */
 @Parcel
 public class RobustSessionState {
     private int mConnectionState;
     private int mAuthenticationState;
     private RobustUser mUser;
+    private int mReconnectAttempts;
+    private long mReconnectDelayMillis;
+    private long mNextReconnectTime;
 
     public int getConnectionState() {
         return mConnectionState;
@@ -31,34 +35,55 @@ public class RobustSessionState {
         mAuthenticationState = s;
     }
 
-    public RobustUser getUser() {
-        return mUser;
+    /**
+     * Returns the number of reconnect attempts since the session last stayed connected.
+     *
+     * @return
+     */
+    public int getReconnectAttempts() {
+        return mReconnectAttempts;
     }
 
-    public void setUser(RobustUser u) {
-        mUser = u;
+    /**
+     * Returns the delay before the pending reconnect, or 0 if none is pending.
+     *
+     * @return
+     */
+    public long getReconnectDelayMillis() {
+        return mReconnectDelayMillis;
     }
 
-    public void addChannel(String channel) {
-        RobustUser user = getUser();
+    /**
+     * Returns when the pending reconnect is due, in <code>SystemClock.elapsedRealtime()</code>
+     * milliseconds, or 0 if none is pending.
+     *
+     * @return
+     */
+    public long getNextReconnectTime() {
+        return mNextReconnectTime;
+    }
 
-        if (user != null) {
-            List<String> channels = user.getChannels();
-            if (channels != null && !channels.contains(channel)) {
-                channels.add(channel);
-            }
-        }
+    public boolean isReconnectPending() {
+        return mNextReconnectTime > 0;
     }
 
-    public void removeChannel(String channel) {
-        RobustUser user = getUser();
+    public void setReconnect(int attempts, long delayMillis, long nextReconnectTime) {
+        mReconnectAttempts = attempts;
+        mReconnectDelayMillis = delayMillis;
+        mNextReconnectTime = nextReconnectTime;
+    }
 
-        if (user != null) {
-            List<String> channels = user.getChannels();
-            if (channels != null && channels.contains(channel)) {
-                channels.remove(channel);
-            }
-        }
+    public void clearPendingReconnect() {
+        mReconnectDelayMillis = 0;
+        mNextReconnectTime = 0;
+    }
+
+    public RobustUser getUser() {
+        return mUser;
+    }
+
+    public void setUser(RobustUser u) {
+        mUser = u;
     }
 
     public boolean isConnected() {
@@ -75,10 +100,11 @@ public class RobustSessionState {
 
     @Override
     public String toString() {
-        return String.format("%s { Conn: %s, Auth: %s, User: %s }",
+        return String.format("%s { Conn: %s, Auth: %s, Reconnects: %s, User: %s }",
                 RobustSessionState.class.getSimpleName(),
                 getConnectionState(),
                 getAuthenticationState(),
+                getReconnectAttempts(),
                 getUser() != null ? getUser().toJSON() : null);
     }
 }
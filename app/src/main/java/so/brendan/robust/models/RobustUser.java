@@ -1,12 +1,17 @@
 package so.brendan.robust.models;
 
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.parceler.Parcel;
 
+import java.io.IOException;
 import java.util.List;
 
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
 /**
  * A parcelable model for holding Robust user data.
  */
@@ -29,8 +34,31 @@ public class RobustUser {
         return channels;
     }
 
+    /**
+     * Returns a copy of the user with a different list of joined channels.
+     *
+     * @param channels
+     * @return
+     */
+    public RobustUser withChannels(List<String> channels) {
+        RobustUser user = new RobustUser();
+
+        user.id = id;
+        user.name = name;
+        user.handle = handle;
+        user.bio = bio;
+        user.location = location;
+        user.timezone = timezone;
+        user.twitterUid = twitterUid;
+        user.displayPictureURL = displayPictureURL;
+        user.largeDisplayPictureURL = largeDisplayPictureURL;
+        user.channels = channels;
+
+        return user;
+    }
+
     public String toJSON() {
-        return new Gson().toJson(this);
+        return GsonProvider.getInstance().toJson(this);
     }
 
     public String getId() { return id; }
@@ -58,4 +86,57 @@ public class RobustUser {
     public String getHandle() {
         return handle;
     }
+
+    /**
+     * Streaming Gson adapter for <code>RobustUser</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<RobustUser> {
+        @Override
+        protected RobustUser create() {
+            return new RobustUser();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, RobustUser value)
+                throws IOException {
+            if (name.equals("id")) {
+                value.id = nextString(in);
+            } else if (name.equals("name")) {
+                value.name = nextString(in);
+            } else if (name.equals("handle")) {
+                value.handle = nextString(in);
+            } else if (name.equals("bio")) {
+                value.bio = nextString(in);
+            } else if (name.equals("location")) {
+                value.location = nextString(in);
+            } else if (name.equals("timezone")) {
+                Integer timezone = nextInteger(in);
+                value.timezone = timezone != null ? timezone : 0;
+            } else if (name.equals("twitter_uid")) {
+                value.twitterUid = nextString(in);
+            } else if (name.equals("display_picture")) {
+                value.displayPictureURL = nextString(in);
+            } else if (name.equals("display_picture_large")) {
+                value.largeDisplayPictureURL = nextString(in);
+            } else if (name.equals("channels")) {
+                value.channels = nextStringList(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, RobustUser value) throws IOException {
+            writeField(out, "id", value.id);
+            writeField(out, "name", value.name);
+            writeField(out, "handle", value.handle);
+            writeField(out, "bio", value.bio);
+            writeField(out, "location", value.location);
+            writeField(out, "timezone", value.timezone);
+            writeField(out, "twitter_uid", value.twitterUid);
+            writeField(out, "display_picture", value.displayPictureURL);
+            writeField(out, "display_picture_large", value.largeDisplayPictureURL);
+            writeStringList(out, "channels", value.channels);
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package so.brendan.robust.models;
+
+/**
+ * An immutable snapshot of one stage of the pipeline received commands pass through, for posting
+ * to views.
+ *
+ * Depth is what is waiting for the stage, and service time is how long the stage spent on each
+ * item once it got to it, so a stage falling behind shows as a growing depth with a service time
+ * to explain it.
+ */
+public class StageStats {
+    private final String mName;
+    private final int mDepth;
+    private final int mMaxDepth;
+    private final int mCapacity;
+    private final long mProcessed;
+    private final long mServiceMedianMicros;
+    private final long mService90Micros;
+    private final long mServiceMaxMicros;
+
+    public StageStats(String name, int depth, int maxDepth, int capacity, long processed,
+                      long serviceMedianMicros, long service90Micros, long serviceMaxMicros) {
+        mName = name;
+        mDepth = depth;
+        mMaxDepth = maxDepth;
+        mCapacity = capacity;
+        mProcessed = processed;
+        mServiceMedianMicros = serviceMedianMicros;
+        mService90Micros = service90Micros;
+        mServiceMaxMicros = serviceMaxMicros;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns how much is waiting for the stage.
+     *
+     * @return
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Returns the most ever waiting at once.
+     *
+     * @return
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Returns how much may wait for the stage before the stage feeding it is held back.
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of items the stage has finished with.
+     *
+     * @return
+     */
+    public long getProcessed() {
+        return mProcessed;
+    }
+
+    /**
+     * Returns the median recent service time, or -1 if nothing has been processed.
+     *
+     * @return
+     */
+    public long getServiceMedianMicros() {
+        return mServiceMedianMicros;
+    }
+
+    public long getService90Micros() {
+        return mService90Micros;
+    }
+
+    public long getServiceMaxMicros() {
+        return mServiceMaxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s { Stage: %s, Depth: %s/%s, Max: %s, Processed: %s, " +
+                        "Service: p50 %s us, p90 %s us, max %s us }",
+                StageStats.class.getSimpleName(), mName, mDepth, mCapacity, mMaxDepth,
+                mProcessed, mServiceMedianMicros, mService90Micros, mServiceMaxMicros);
+    }
+}
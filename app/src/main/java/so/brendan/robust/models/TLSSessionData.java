@@ -27,14 +27,18 @@ public class TLSSessionData implements Parcelable {
     private final String mPeerHost;
     private final int mPeerPort;
     private final boolean mIsValid;
+    private final boolean mIsResumed;
+    private final long mHandshakeMillis;
     private final List<X509Certificate> mPeerCertChain;
 
-    public TLSSessionData(SSLSession session) {
+    public TLSSessionData(SSLSession session, boolean isResumed, long handshakeMillis) {
         mCipherSuite = session.getCipherSuite();
         mProtocol = session.getProtocol();
         mPeerHost = session.getPeerHost();
         mPeerPort = session.getPeerPort();
         mIsValid = session.isValid();
+        mIsResumed = isResumed;
+        mHandshakeMillis = handshakeMillis;
 
         List<X509Certificate> certs;
         try {
@@ -53,6 +57,8 @@ public class TLSSessionData implements Parcelable {
         mPeerHost = in.readString();
         mPeerPort = in.readInt();
         mIsValid = in.readByte() != 0;
+        mIsResumed = in.readByte() != 0;
+        mHandshakeMillis = in.readLong();
 
         ArrayList<X509Certificate> certs = new ArrayList<X509Certificate>();
         int c = in.readInt();
@@ -86,6 +92,24 @@ public class TLSSessionData implements Parcelable {
         return mPeerPort;
     }
 
+    /**
+     * Returns whether the session was resumed from a previous connection.
+     *
+     * @return
+     */
+    public boolean isResumed() {
+        return mIsResumed;
+    }
+
+    /**
+     * Returns how long the handshake took, or -1 if unknown.
+     *
+     * @return
+     */
+    public long getHandshakeMillis() {
+        return mHandshakeMillis;
+    }
+
     public X509Certificate getPeerCertificate() {
         if (mPeerCertChain.isEmpty()) {
             return null;
@@ -126,6 +150,8 @@ public class TLSSessionData implements Parcelable {
         dest.writeString(mPeerHost);
         dest.writeInt(mPeerPort);
         dest.writeByte((byte) (mIsValid ? 1 : 0));
+        dest.writeByte((byte) (mIsResumed ? 1 : 0));
+        dest.writeLong(mHandshakeMillis);
 
         dest.writeInt(mPeerCertChain.size());
 
@@ -1,10 +1,15 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.parceler.Parcel;
 
+import java.io.IOException;
+
 import so.brendan.robust.models.RobustUser;
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
 
 @Parcel
 public class AuthCommand extends RobustCommand {
@@ -74,8 +79,13 @@ public class AuthCommand extends RobustCommand {
         return user;
     }
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
     public static AuthCommand fromJSON(String json) {
-        return new Gson().fromJson(json, AuthCommand.class);
+        return GsonProvider.getInstance().fromJson(json, AuthCommand.class);
     }
 
     public static AuthCommand createChallenge(String mode) {
@@ -86,6 +96,100 @@ public class AuthCommand extends RobustCommand {
         return new Builder().setMode(mode).setChallenge(key, secret).build();
     }
 
+    /**
+     * Streaming Gson adapter for <code>AuthCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<AuthCommand> {
+        private static final RobustUser.GsonAdapter USER_ADAPTER = new RobustUser.GsonAdapter();
+
+        private static final ObjectTypeAdapter<Challenge> CHALLENGE_ADAPTER =
+                new ObjectTypeAdapter<Challenge>() {
+            @Override
+            protected Challenge create() {
+                return new Challenge();
+            }
+
+            @Override
+            protected void readField(JsonReader in, String name, Challenge value)
+                    throws IOException {
+                if (name.equals("url")) {
+                    value.url = nextString(in);
+                } else if (name.equals("key")) {
+                    value.key = nextString(in);
+                } else if (name.equals("secret")) {
+                    value.secret = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+
+            @Override
+            protected void writeFields(JsonWriter out, Challenge value) throws IOException {
+                writeField(out, "url", value.url);
+                writeField(out, "key", value.key);
+                writeField(out, "secret", value.secret);
+            }
+        };
+
+        private static final ObjectTypeAdapter<Data> DATA_ADAPTER =
+                new ObjectTypeAdapter<Data>() {
+            @Override
+            protected Data create() {
+                return new Data();
+            }
+
+            @Override
+            protected void readField(JsonReader in, String name, Data value) throws IOException {
+                if (name.equals("key")) {
+                    value.key = nextString(in);
+                } else if (name.equals("secret")) {
+                    value.secret = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+
+            @Override
+            protected void writeFields(JsonWriter out, Data value) throws IOException {
+                writeField(out, "key", value.key);
+                writeField(out, "secret", value.secret);
+            }
+        };
+
+        @Override
+        protected AuthCommand create() {
+            return new AuthCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, AuthCommand value)
+                throws IOException {
+            if (name.equals("mode")) {
+                value.mode = nextString(in);
+            } else if (name.equals("success")) {
+                value.success = nextBoolean(in);
+            } else if (name.equals("challenge")) {
+                value.challenge = CHALLENGE_ADAPTER.read(in);
+            } else if (name.equals("data")) {
+                value.data = DATA_ADAPTER.read(in);
+            } else if (name.equals("user")) {
+                value.user = USER_ADAPTER.read(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, AuthCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "mode", value.mode);
+            writeField(out, "success", value.success);
+            writeField(out, "challenge", value.challenge, CHALLENGE_ADAPTER);
+            writeField(out, "data", value.data, DATA_ADAPTER);
+            writeField(out, "user", value.user, USER_ADAPTER);
+        }
+    }
+
     public static class Builder {
         private AuthCommand mCommand;
 
@@ -1,12 +1,17 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.parceler.Parcel;
 
+import java.io.IOException;
 import java.util.List;
 
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
 @Parcel
 public class BacklogCommand extends RobustCommand {
     private String type = "backlog";
@@ -16,8 +21,27 @@ public class BacklogCommand extends RobustCommand {
     private Integer count;
     private List<MessageCommand> messages;
 
+    /** Whether more messages of this backlog are still to come. */
+    private transient boolean partial;
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Only the last chunk of a backlog completes the request for it, so partial chunks have no
+     * key.
+     *
+     * @return
+     */
+    @Override
+    public String getCorrelationKey() {
+        return partial ? null : type + ":" + target;
+    }
+
     public static BacklogCommand fromJSON(String json) {
-        return new Gson().fromJson(json, BacklogCommand.class);
+        return GsonProvider.getInstance().fromJson(json, BacklogCommand.class);
     }
 
     public static BacklogCommand sinceTimestamp(long ts) {
@@ -39,6 +63,32 @@ public class BacklogCommand extends RobustCommand {
         return command;
     }
 
+    /**
+     * Creates one chunk of a backlog that is being received incrementally.
+     *
+     * @param header the backlog fields received so far, excluding messages, or null if none
+     *               could be read.
+     * @param target
+     * @param messages
+     * @param partial whether more chunks of the same backlog will follow.
+     * @return
+     */
+    public static BacklogCommand createChunk(BacklogCommand header, String target,
+                                             List<MessageCommand> messages, boolean partial) {
+        BacklogCommand command = new BacklogCommand();
+        command.target = target;
+        command.messages = messages;
+        command.partial = partial;
+
+        if (header != null) {
+            command.fromDate = header.fromDate;
+            command.toDate = header.toDate;
+            command.count = header.count;
+        }
+
+        return command;
+    }
+
     BacklogCommand() {}
 
     public Long getFromDate() {
@@ -61,6 +111,56 @@ public class BacklogCommand extends RobustCommand {
         return messages;
     }
 
+    /**
+     * Returns whether this is a chunk of a larger backlog, with further chunks to follow.
+     *
+     * @return
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * Streaming Gson adapter for <code>BacklogCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<BacklogCommand> {
+        private static final MessageCommand.GsonAdapter MESSAGE_ADAPTER =
+                new MessageCommand.GsonAdapter();
+
+        @Override
+        protected BacklogCommand create() {
+            return new BacklogCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, BacklogCommand value)
+                throws IOException {
+            if (name.equals("target")) {
+                value.target = nextString(in);
+            } else if (name.equals("from_date")) {
+                value.fromDate = nextLong(in);
+            } else if (name.equals("to_date")) {
+                value.toDate = nextLong(in);
+            } else if (name.equals("count")) {
+                value.count = nextInteger(in);
+            } else if (name.equals("messages")) {
+                value.messages = nextList(in, MESSAGE_ADAPTER);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, BacklogCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "target", value.target);
+            writeField(out, "from_date", value.fromDate);
+            writeField(out, "to_date", value.toDate);
+            writeField(out, "count", value.count);
+            writeList(out, "messages", value.messages, MESSAGE_ADAPTER);
+        }
+    }
+
     public static class Builder {
         private BacklogCommand mCommand;
 
@@ -0,0 +1,223 @@
+package so.brendan.robust.models.commands;
+
+import android.util.Log;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
+/**
+ * Decodes raw frames from the Robust server into their relevant command models.
+ *
+ * Each frame is read exactly once by a streaming <code>JsonReader</code>. The server always sends
+ * <code>type</code> as the first field, so the remaining fields are bound straight into the model
+ * registered for that type by its streaming adapter. Should <code>type</code> come later, the
+ * object is collected into a tree and bound from that instead.
+ *
+ * Singleton; use <code>getInstance()</code>.
+ */
+public class CommandDecoder {
+    private static final String TAG = Constants.createTag(CommandDecoder.class);
+
+    private static final CommandDecoder sInstance = new CommandDecoder();
+
+    private final HashMap<String, ObjectTypeAdapter<? extends RobustCommand>> mAdapters =
+            new HashMap<String, ObjectTypeAdapter<? extends RobustCommand>>();
+
+    private final TypeAdapter<JsonElement> mElementAdapter =
+            GsonProvider.getInstance().getAdapter(JsonElement.class);
+
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mFallbackCount = new AtomicLong();
+    private final AtomicLong mFailureCount = new AtomicLong();
+
+    public static CommandDecoder getInstance() {
+        return sInstance;
+    }
+
+    private CommandDecoder() {
+        register(RobustCommand.TYPE_AUTH, new AuthCommand.GsonAdapter());
+        register(RobustCommand.TYPE_MESSAGE, new MessageCommand.GsonAdapter());
+        register(RobustCommand.TYPE_BACKLOG, new BacklogCommand.GsonAdapter());
+        register(RobustCommand.TYPE_USER, new UserCommand.GsonAdapter());
+        register(RobustCommand.TYPE_ERROR, new ErrorCommand.GsonAdapter());
+        register(RobustCommand.TYPE_JOIN, new JoinCommand.GsonAdapter());
+        register(RobustCommand.TYPE_PART, new PartCommand.GsonAdapter());
+        register(RobustCommand.TYPE_COMPRESS, new CompressCommand.GsonAdapter());
+        register(RobustCommand.TYPE_FRAMING, new FramingCommand.GsonAdapter());
+        register(RobustCommand.TYPE_PING, new ControlCommand.GsonAdapter(RobustCommand.TYPE_PING));
+        register(RobustCommand.TYPE_PONG, new ControlCommand.GsonAdapter(RobustCommand.TYPE_PONG));
+    }
+
+    /**
+     * Registers the adapter to be used for the given command type.
+     *
+     * @param type
+     * @param adapter
+     */
+    private void register(String type, ObjectTypeAdapter<? extends RobustCommand> adapter) {
+        mAdapters.put(type, adapter);
+    }
+
+    /**
+     * Decodes a raw JSON frame.
+     *
+     * @param json
+     * @return the command, or null if the type is not known.
+     * @throws JsonParseException if the frame is not a JSON object with a type.
+     */
+    public RobustCommand decode(String json) throws JsonParseException {
+        return decode(new StringReader(json));
+    }
+
+    /**
+     * Decodes a single JSON frame from the provided reader.
+     *
+     * @param reader
+     * @return the command, or null if the type is not known.
+     * @throws JsonParseException if the frame is not a JSON object with a type.
+     */
+    public RobustCommand decode(Reader reader) throws JsonParseException {
+        return decode(new JsonReader(reader));
+    }
+
+    /**
+     * Decodes a single JSON object from the provided JSON reader.
+     *
+     * @param in
+     * @return the command, or null if the type is not known.
+     * @throws JsonParseException if the frame is not a JSON object with a type.
+     */
+    public RobustCommand decode(JsonReader in) throws JsonParseException {
+        mFrameCount.incrementAndGet();
+
+        try {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new JsonParseException("Frame is not a JSON object.");
+            }
+
+            in.beginObject();
+
+            if (in.hasNext()) {
+                String name = in.nextName();
+
+                if (name.equals(RobustCommand.PARAM_TYPE) && in.peek() == JsonToken.STRING) {
+                    return readFields(in, in.nextString());
+                }
+
+                return readTree(in, name);
+            }
+
+            throw new JsonParseException("Frame has no type.");
+        } catch (IOException e) {
+            mFailureCount.incrementAndGet();
+            throw new JsonParseException(e);
+        } catch (IllegalStateException e) {
+            mFailureCount.incrementAndGet();
+            throw new JsonParseException(e);
+        } catch (NumberFormatException e) {
+            mFailureCount.incrementAndGet();
+            throw new JsonParseException(e);
+        } catch (JsonParseException e) {
+            mFailureCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private RobustCommand readFields(JsonReader in, String type) throws IOException {
+        ObjectTypeAdapter<? extends RobustCommand> adapter = mAdapters.get(type);
+
+        if (adapter == null) {
+            Log.w(TAG, String.format("Received unknown message type: %s", type));
+            skipRemaining(in);
+            return null;
+        }
+
+        RobustCommand command = adapter.readFields(in);
+        in.endObject();
+
+        return command;
+    }
+
+    /**
+     * Slow path for objects whose first field is not the type.
+     */
+    private RobustCommand readTree(JsonReader in, String firstName) throws IOException {
+        mFallbackCount.incrementAndGet();
+
+        JsonObject object = new JsonObject();
+        object.add(firstName, mElementAdapter.read(in));
+
+        while (in.hasNext()) {
+            object.add(in.nextName(), mElementAdapter.read(in));
+        }
+
+        in.endObject();
+
+        JsonElement typeElement = object.get(RobustCommand.PARAM_TYPE);
+
+        if (!(typeElement instanceof JsonPrimitive)) {
+            throw new JsonParseException("Frame has no type.");
+        }
+
+        String type = typeElement.getAsString();
+        ObjectTypeAdapter<? extends RobustCommand> adapter = mAdapters.get(type);
+
+        if (adapter == null) {
+            Log.w(TAG, String.format("Received unknown message type: %s", type));
+            return null;
+        }
+
+        return adapter.fromJsonTree(object);
+    }
+
+    private static void skipRemaining(JsonReader in) throws IOException {
+        while (in.hasNext()) {
+            in.skipValue();
+        }
+
+        in.endObject();
+    }
+
+    /**
+     * Returns the number of frames passed to the decoder.
+     *
+     * @return
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * Returns the number of frames that did not lead with their type and had to be collected into
+     * a tree before binding.
+     *
+     * @return
+     */
+    public long getFallbackCount() {
+        return mFallbackCount.get();
+    }
+
+    /**
+     * Returns the number of frames that could not be decoded.
+     *
+     * @return
+     */
+    public long getFailureCount() {
+        return mFailureCount.get();
+    }
+}
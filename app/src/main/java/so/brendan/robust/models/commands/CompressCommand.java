@@ -0,0 +1,89 @@
+package so.brendan.robust.models.commands;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
+/**
+ * Negotiates compression of the stream sent by the server.
+ *
+ * The client sends the mode and preset dictionary it would like; the server replies with the
+ * same command and <code>success</code> set, and if successful, everything it sends after the
+ * reply's line feed is compressed.
+ */
+public class CompressCommand extends RobustCommand {
+    public static final String MODE_ZLIB = "zlib";
+
+    private String type = "compress";
+    private String mode;
+    private String dictionary;
+    private Boolean success;
+
+    CompressCommand() {}
+
+    /**
+     * Creates a request for the server to compress its stream.
+     *
+     * @param mode
+     * @param dictionary the name of the preset dictionary, or null for none.
+     * @return
+     */
+    public static CompressCommand request(String mode, String dictionary) {
+        CompressCommand command = new CompressCommand();
+        command.mode = mode;
+        command.dictionary = dictionary;
+        return command;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public String getDictionary() {
+        return dictionary;
+    }
+
+    public boolean hasSuccess() {
+        return success != null && success;
+    }
+
+    /**
+     * Streaming Gson adapter for <code>CompressCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<CompressCommand> {
+        @Override
+        protected CompressCommand create() {
+            return new CompressCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, CompressCommand value)
+                throws IOException {
+            if (name.equals("mode")) {
+                value.mode = nextString(in);
+            } else if (name.equals("dictionary")) {
+                value.dictionary = nextString(in);
+            } else if (name.equals("success")) {
+                value.success = nextBoolean(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, CompressCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "mode", value.mode);
+            writeField(out, "dictionary", value.dictionary);
+            writeField(out, "success", value.success);
+        }
+    }
+}
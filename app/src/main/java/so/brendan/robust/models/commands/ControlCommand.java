@@ -0,0 +1,67 @@
+package so.brendan.robust.models.commands;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
+/**
+ * A command consisting of nothing but a type, such as "ping" and "pong".
+ */
+public class ControlCommand extends RobustCommand {
+    private String type;
+
+    ControlCommand() {}
+
+    public ControlCommand(String type) {
+        this.type = type;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Streaming Gson adapter for <code>ControlCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<ControlCommand> {
+        private final String mType;
+
+        public GsonAdapter() {
+            this(null);
+        }
+
+        /**
+         * Creates an adapter for commands of a known type, for reading objects whose
+         * <code>type</code> has already been consumed.
+         *
+         * @param type
+         */
+        public GsonAdapter(String type) {
+            mType = type;
+        }
+
+        @Override
+        protected ControlCommand create() {
+            return new ControlCommand(mType);
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, ControlCommand value)
+                throws IOException {
+            if (name.equals("type")) {
+                value.type = nextString(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, ControlCommand value) throws IOException {
+            writeField(out, "type", value.type);
+        }
+    }
+}
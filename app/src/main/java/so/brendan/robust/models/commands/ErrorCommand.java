@@ -1,9 +1,15 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.parceler.Parcel;
 
+import java.io.IOException;
+
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
 @Parcel
 public class ErrorCommand extends RobustCommand {
     private String type = "error";
@@ -20,7 +26,41 @@ public class ErrorCommand extends RobustCommand {
 
     ErrorCommand() {}
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
     public static ErrorCommand fromJSON(String json) {
-        return new Gson().fromJson(json, ErrorCommand.class);
+        return GsonProvider.getInstance().fromJson(json, ErrorCommand.class);
+    }
+
+    /**
+     * Streaming Gson adapter for <code>ErrorCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<ErrorCommand> {
+        @Override
+        protected ErrorCommand create() {
+            return new ErrorCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, ErrorCommand value)
+                throws IOException {
+            if (name.equals("subtype")) {
+                value.subtype = nextString(in);
+            } else if (name.equals("message")) {
+                value.message = nextString(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, ErrorCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "subtype", value.subtype);
+            writeField(out, "message", value.message);
+        }
     }
 }
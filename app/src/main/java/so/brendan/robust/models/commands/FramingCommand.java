@@ -0,0 +1,81 @@
+package so.brendan.robust.models.commands;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
+/**
+ * Negotiates the framing of commands on the connection.
+ *
+ * Newline-delimited JSON is the default. The client may ask for another mode before
+ * authenticating; the server replies with the same command and <code>success</code> set, and
+ * if successful, every frame it sends after the reply's line feed uses the new mode. The client
+ * switches its own frames once the reply arrives.
+ */
+public class FramingCommand extends RobustCommand {
+    /** Frames of a 4 byte big-endian length followed by that many bytes of CBOR. */
+    public static final String MODE_CBOR = "cbor";
+
+    private String type = "framing";
+    private String mode;
+    private Boolean success;
+
+    FramingCommand() {}
+
+    /**
+     * Creates a request for the server to switch framing mode.
+     *
+     * @param mode
+     * @return
+     */
+    public static FramingCommand request(String mode) {
+        FramingCommand command = new FramingCommand();
+        command.mode = mode;
+        return command;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public boolean hasSuccess() {
+        return success != null && success;
+    }
+
+    /**
+     * Streaming Gson adapter for <code>FramingCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<FramingCommand> {
+        @Override
+        protected FramingCommand create() {
+            return new FramingCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, FramingCommand value)
+                throws IOException {
+            if (name.equals("mode")) {
+                value.mode = nextString(in);
+            } else if (name.equals("success")) {
+                value.success = nextBoolean(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, FramingCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "mode", value.mode);
+            writeField(out, "success", value.success);
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.parceler.Parcel;
 
+import java.io.IOException;
+
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
 @Parcel
 public class JoinCommand extends RobustCommand {
     private String type = "join";
@@ -19,7 +25,38 @@ public class JoinCommand extends RobustCommand {
         return target;
     }
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
     public static JoinCommand fromJSON(String json) {
-        return new Gson().fromJson(json, JoinCommand.class);
+        return GsonProvider.getInstance().fromJson(json, JoinCommand.class);
+    }
+
+    /**
+     * Streaming Gson adapter for <code>JoinCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<JoinCommand> {
+        @Override
+        protected JoinCommand create() {
+            return new JoinCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, JoinCommand value)
+                throws IOException {
+            if (name.equals("target")) {
+                value.target = nextString(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, JoinCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "target", value.target);
+        }
     }
 }
@@ -2,7 +2,8 @@ package so.brendan.robust.models.commands;
 
 import android.support.annotation.NonNull;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -10,6 +11,11 @@ import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 import org.parceler.Parcel;
 
+import java.io.IOException;
+
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
 @Parcel
 public class MessageCommand extends RobustCommand implements Comparable<MessageCommand> {
     private transient static final DateTimeFormatter FORMATTER =
@@ -23,8 +29,13 @@ public class MessageCommand extends RobustCommand implements Comparable<MessageC
     private Long ts;
     private MessageSender from;
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
     public static MessageCommand fromJSON(String json) {
-        return new Gson().fromJson(json, MessageCommand.class);
+        return GsonProvider.getInstance().fromJson(json, MessageCommand.class);
     }
 
     MessageCommand() {}
@@ -67,6 +78,37 @@ public class MessageCommand extends RobustCommand implements Comparable<MessageC
         public String getName() {
             return name;
         }
+
+        /**
+         * Streaming Gson adapter for <code>MessageSender</code>.
+         */
+        public static final class GsonAdapter extends ObjectTypeAdapter<MessageSender> {
+            @Override
+            protected MessageSender create() {
+                return new MessageSender();
+            }
+
+            @Override
+            protected void readField(JsonReader in, String name, MessageSender value)
+                    throws IOException {
+                if (name.equals("id")) {
+                    value.id = nextString(in);
+                } else if (name.equals("handle")) {
+                    value.handle = nextString(in);
+                } else if (name.equals("name")) {
+                    value.name = nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+
+            @Override
+            protected void writeFields(JsonWriter out, MessageSender value) throws IOException {
+                writeField(out, "id", value.id);
+                writeField(out, "handle", value.handle);
+                writeField(out, "name", value.name);
+            }
+        }
     }
 
     public String getId() { return id; }
@@ -111,6 +153,50 @@ public class MessageCommand extends RobustCommand implements Comparable<MessageC
         return new DateTime(localTs).toString(FORMATTER);
     }
 
+    /**
+     * Streaming Gson adapter for <code>MessageCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<MessageCommand> {
+        private static final MessageSender.GsonAdapter SENDER_ADAPTER =
+                new MessageSender.GsonAdapter();
+
+        @Override
+        protected MessageCommand create() {
+            return new MessageCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, MessageCommand value)
+                throws IOException {
+            if (name.equals("subtype")) {
+                value.subtype = nextString(in);
+            } else if (name.equals("id")) {
+                value.id = nextString(in);
+            } else if (name.equals("body")) {
+                value.body = nextString(in);
+            } else if (name.equals("target")) {
+                value.target = nextString(in);
+            } else if (name.equals("ts")) {
+                value.ts = nextLong(in);
+            } else if (name.equals("from")) {
+                value.from = SENDER_ADAPTER.read(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, MessageCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "subtype", value.subtype);
+            writeField(out, "id", value.id);
+            writeField(out, "body", value.body);
+            writeField(out, "target", value.target);
+            writeField(out, "ts", value.ts);
+            writeField(out, "from", value.from, SENDER_ADAPTER);
+        }
+    }
+
     public static class Builder {
         private MessageCommand mCommand;
 
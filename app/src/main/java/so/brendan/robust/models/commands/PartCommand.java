@@ -1,9 +1,15 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.parceler.Parcel;
 
+import java.io.IOException;
+
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
+
 /**
  * File is included as part of the Robust project.
  *
@@ -24,7 +30,38 @@ public class PartCommand extends RobustCommand {
         return target;
     }
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
     public static PartCommand fromJSON(String json) {
-        return new Gson().fromJson(json, PartCommand.class);
+        return GsonProvider.getInstance().fromJson(json, PartCommand.class);
+    }
+
+    /**
+     * Streaming Gson adapter for <code>PartCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<PartCommand> {
+        @Override
+        protected PartCommand create() {
+            return new PartCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, PartCommand value)
+                throws IOException {
+            if (name.equals("target")) {
+                value.target = nextString(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, PartCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "target", value.target);
+        }
     }
-}
\ No newline at end of file
+}
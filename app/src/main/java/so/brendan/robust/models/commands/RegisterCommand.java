@@ -1,10 +1,9 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
-
 import org.parceler.Parcel;
 
 import so.brendan.robust.models.RobustUser;
+import so.brendan.robust.utils.GsonProvider;
 
 @Parcel
 public class RegisterCommand extends RobustCommand {
@@ -74,8 +73,13 @@ public class RegisterCommand extends RobustCommand {
         return user;
     }
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
     public static RegisterCommand fromJSON(String json) {
-        return new Gson().fromJson(json, RegisterCommand.class);
+        return GsonProvider.getInstance().fromJson(json, RegisterCommand.class);
     }
 
     public static RegisterCommand createChallenge(String mode) {
@@ -1,9 +1,10 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.OutputStream;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import so.brendan.robust.utils.CborWriter;
+import so.brendan.robust.utils.GsonProvider;
 
 /**
  * A base model for holding commands received from the Robust server.
@@ -23,44 +24,45 @@ public abstract class RobustCommand {
     public static transient final String TYPE_JOIN = "join";
     public static transient final String TYPE_PART = "part";
     public static transient final String TYPE_USER = "user";
+    public static transient final String TYPE_COMPRESS = "compress";
+    public static transient final String TYPE_FRAMING = "framing";
+
+    private static final RobustCommand PING = new ControlCommand(TYPE_PING);
+    private static final RobustCommand PONG = new ControlCommand(TYPE_PONG);
 
     /**
-     * Creates an empty command with a type field.
+     * Returns the shared "ping" command.
      *
-     * @param type
      * @return
      */
-    private static RobustCommand createEmptyWithType(final String type) {
-        return new RobustCommand() {
-            @Override
-            public String toJSON() {
-                JSONObject o = new JSONObject();
-                try {
-                    o.put(PARAM_TYPE, type);
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
-                return o.toString();
-            }
-        };
+    public static RobustCommand createPing() {
+        return PING;
     }
 
     /**
-     * Creates a "ping" command.
+     * Returns the shared "pong" command.
      *
      * @return
      */
-    public static RobustCommand createPing() {
-        return createEmptyWithType(TYPE_PING);
+    public static RobustCommand createPong() {
+        return PONG;
     }
 
     /**
-     * Creates a "pong" command.
+     * Returns the <code>type</code> field of the command.
      *
      * @return
      */
-    public static RobustCommand createPong() {
-        return createEmptyWithType(TYPE_PONG);
+    public abstract String getType();
+
+    /**
+     * Returns the key pairing a request with its reply, or null if the command is not part of a
+     * request and reply. A request and its reply return the same key.
+     *
+     * @return
+     */
+    public String getCorrelationKey() {
+        return null;
     }
 
     /**
@@ -69,7 +71,30 @@ public abstract class RobustCommand {
      * @return
      */
     public String toJSON() {
-        return new Gson().toJson(this);
+        return GsonProvider.getInstance().toJson(this);
+    }
+
+    /**
+     * Serialises the object to JSON, writing it directly to the provided writer.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void toJSON(Appendable writer) throws IOException {
+        GsonProvider.getInstance().toJson(this, writer);
+    }
+
+    /**
+     * Serialises the object to CBOR, writing it directly to the provided stream.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void toCBOR(OutputStream out) throws IOException {
+        CborWriter writer = new CborWriter(out);
+
+        GsonProvider.getInstance().toJson(this, getClass(), writer);
+        writer.flush();
     }
 
     public String toString() {
@@ -1,10 +1,15 @@
 package so.brendan.robust.models.commands;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import org.parceler.Parcel;
 
+import java.io.IOException;
+
 import so.brendan.robust.models.RobustUser;
+import so.brendan.robust.utils.GsonProvider;
+import so.brendan.robust.utils.ObjectTypeAdapter;
 
 @Parcel
 public class UserCommand extends RobustCommand {
@@ -18,11 +23,53 @@ public class UserCommand extends RobustCommand {
         this.id = id;
     }
 
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String getCorrelationKey() {
+        // Requests carry the ID; replies carry the user.
+        return type + ":" + (user != null ? user.getId() : id);
+    }
+
     public static UserCommand fromJSON(String json) {
-        return new Gson().fromJson(json, UserCommand.class);
+        return GsonProvider.getInstance().fromJson(json, UserCommand.class);
     }
 
     public RobustUser getUser() {
         return user;
     }
+
+    /**
+     * Streaming Gson adapter for <code>UserCommand</code>.
+     */
+    public static final class GsonAdapter extends ObjectTypeAdapter<UserCommand> {
+        private static final RobustUser.GsonAdapter USER_ADAPTER = new RobustUser.GsonAdapter();
+
+        @Override
+        protected UserCommand create() {
+            return new UserCommand();
+        }
+
+        @Override
+        protected void readField(JsonReader in, String name, UserCommand value)
+                throws IOException {
+            if (name.equals("id")) {
+                value.id = nextString(in);
+            } else if (name.equals("user")) {
+                value.user = USER_ADAPTER.read(in);
+            } else {
+                in.skipValue();
+            }
+        }
+
+        @Override
+        protected void writeFields(JsonWriter out, UserCommand value) throws IOException {
+            writeField(out, "type", value.type);
+            writeField(out, "id", value.id);
+            writeField(out, "user", value.user, USER_ADAPTER);
+        }
+    }
 }
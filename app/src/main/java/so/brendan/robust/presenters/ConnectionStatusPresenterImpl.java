@@ -61,6 +61,14 @@ public class ConnectionStatusPresenterImpl implements ConnectionStatusPresenter
         mView.setPeer(session.getPeerHost() + ":" + session.getPeerPort());
         mView.setCipher(session.getCipherSuite());
         mView.setProtocol(session.getProtocol());
+
+        if (session.getHandshakeMillis() < 0) {
+            mView.setHandshake(res.getString(R.string.unknown));
+        } else {
+            mView.setHandshake(res.getString(session.isResumed() ?
+                    R.string.tls_handshake_resumed : R.string.tls_handshake_full,
+                    session.getHandshakeMillis()));
+        }
         mView.setCertificateChain(session.getCertificateChain());
     }
 }
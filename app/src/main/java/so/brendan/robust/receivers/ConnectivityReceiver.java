@@ -0,0 +1,36 @@
+package so.brendan.robust.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import so.brendan.robust.services.MessengerService;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Tells <code>MessengerService</code> when the active network changes, so that sessions can move
+ * to the new network straight away rather than waiting for the old connection to time out.
+ *
+ * Registered by <code>MessengerService</code> for as long as it runs.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+    private static final String TAG = Constants.createTag(ConnectivityReceiver.class);
+
+    /**
+     * Returns the filter to register this receiver with.
+     *
+     * @return
+     */
+    public static IntentFilter createIntentFilter() {
+        return new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Log.d(TAG, "Network changed.");
+        MessengerService.notifyNetworkChanged(context);
+    }
+}
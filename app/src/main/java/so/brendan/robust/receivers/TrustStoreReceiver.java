@@ -0,0 +1,41 @@
+package so.brendan.robust.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.security.KeyChain;
+import android.util.Log;
+
+import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.SslContextProvider;
+
+/**
+ * Rebuilds the shared <code>SslContext</code> when certificates are added to or removed from the
+ * system trust store.
+ *
+ * Registered by <code>MessengerService</code> for as long as it runs, as the context only lives
+ * as long as the process.
+ */
+public class TrustStoreReceiver extends BroadcastReceiver {
+    private static final String TAG = Constants.createTag(TrustStoreReceiver.class);
+
+    /**
+     * Returns the filter to register this receiver with.
+     *
+     * @return
+     */
+    public static IntentFilter createIntentFilter() {
+        return new IntentFilter(KeyChain.ACTION_STORAGE_CHANGED);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Log.d(TAG, "Trust store changed.");
+
+        SslContextProvider provider = SslContextProvider.getInstance();
+
+        provider.invalidate();
+        provider.warm();
+    }
+}
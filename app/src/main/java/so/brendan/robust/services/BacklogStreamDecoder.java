@@ -0,0 +1,534 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.TooLongFrameException;
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.CommandDecoder;
+import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Decodes a backlog frame incrementally as it arrives, rather than once the whole line is in.
+ *
+ * The frame is scanned structurally for the <code>messages</code> array. Each message is decoded
+ * as soon as its closing brace arrives and its bytes are released, and messages are emitted in
+ * partial <code>BacklogCommand</code> chunks. The fields outside the array are kept aside and
+ * emitted with the final chunk once the line ends, so only one message and the backlog's own
+ * fields are ever held in memory. Should the <code>type</code> only come after the array, the
+ * messages are kept until the line ends instead, as until then it isn't known to be a backlog;
+ * once they add up to more than the maximum frame length, the frame is thrown away as too long.
+ *
+ * A backlog that turns out to be malformed part way through still ends with a final chunk of the
+ * messages decoded so far, so that the request for it completes rather than times out.
+ *
+ * Used by <code>MessengerCommandDecoder</code> for backlog frames spanning more than one read,
+ * and for those too long to decode whole.
+ */
+class BacklogStreamDecoder implements ByteBufProcessor {
+    private static final String TAG = Constants.createTag(BacklogStreamDecoder.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] MESSAGES_KEY = "\"messages\"".getBytes(UTF_8);
+    private static final byte[] EMPTY_MESSAGES = "\"messages\":[]".getBytes(UTF_8);
+    private static final byte[] END_OBJECT = "}".getBytes(UTF_8);
+
+    private static final int CHUNK_SIZE = 100;
+
+    /** Top-level keys longer than this aren't kept while looking for the type. */
+    private static final int MAX_KEY_LENGTH = 16;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_MESSAGES = 1;
+    private static final int STATE_TRAILER = 2;
+
+    private static final int EVENT_ARRAY_START = 0;
+    private static final int EVENT_ITEM_START = 1;
+    private static final int EVENT_ITEM_END = 2;
+    private static final int EVENT_ARRAY_END = 3;
+    private static final int EVENT_LINE_END = 4;
+
+    private final MessageCommand.GsonAdapter mMessageAdapter = new MessageCommand.GsonAdapter();
+    private final int mMaxItemLength;
+
+    private int mState = STATE_HEADER;
+    private int mEvent;
+    private int mDepth = 0;
+    private boolean mInString = false;
+    private boolean mEscaped = false;
+
+    /** How many bytes past the reader index have been scanned. */
+    private int mScanned = 0;
+
+    /** Where the current message starts, relative to the reader index, or -1. */
+    private int mItemStart = -1;
+
+    private ByteBuf mHeader;
+    private BacklogCommand mHeaderCommand;
+    private String mTarget;
+    private List<MessageCommand> mPending;
+    private boolean mFailed = false;
+
+    /** The length of the messages kept until the line ends, as the type isn't known yet. */
+    private long mHeldBytes = 0;
+
+    BacklogStreamDecoder(int maxItemLength) {
+        mMaxItemLength = maxItemLength;
+    }
+
+    /**
+     * Returns the value of the top-level <code>type</code> field of a JSON object, if it is among
+     * the given bytes. Whitespace and the order of fields don't matter, and nested values are
+     * skipped over.
+     *
+     * @param in
+     * @param index where the object starts.
+     * @param length how many bytes to look at, which need not reach the end of the object.
+     * @return the type, or null if it isn't among the bytes.
+     */
+    static String peekType(ByteBuf in, int index, int length) {
+        int end = index + length;
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        boolean isValue = false;
+        int stringStart = -1;
+        String key = null;
+
+        for (int i = index; i < end; ++i) {
+            byte value = in.getByte(i);
+
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (value == '\\') {
+                    escaped = true;
+                } else if (value == '"') {
+                    inString = false;
+
+                    if (depth == 1) {
+                        int stringLength = i - stringStart;
+
+                        if (isValue) {
+                            if (RobustCommand.PARAM_TYPE.equals(key)) {
+                                return in.toString(stringStart, stringLength, UTF_8);
+                            }
+                        } else {
+                            key = stringLength <= MAX_KEY_LENGTH ?
+                                    in.toString(stringStart, stringLength, UTF_8) : null;
+                        }
+                    }
+                }
+
+                continue;
+            }
+
+            switch (value) {
+                case '"':
+                    inString = true;
+                    stringStart = i + 1;
+                    break;
+                case ':':
+                    if (depth == 1) {
+                        isValue = true;
+                    }
+                    break;
+                case ',':
+                    if (depth == 1) {
+                        isValue = false;
+                        key = null;
+                    }
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+
+                    if (depth <= 0) {
+                        return null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean process(byte value) throws Exception {
+        if (value == '\n') {
+            mEvent = EVENT_LINE_END;
+            return false;
+        }
+
+        if (mInString) {
+            if (mEscaped) {
+                mEscaped = false;
+            } else if (value == '\\') {
+                mEscaped = true;
+            } else if (value == '"') {
+                mInString = false;
+            }
+
+            return true;
+        }
+
+        switch (value) {
+            case '"':
+                mInString = true;
+                return true;
+            case '[':
+                mDepth++;
+
+                if (mState == STATE_HEADER && mDepth == 2) {
+                    mEvent = EVENT_ARRAY_START;
+                    return false;
+                }
+
+                return true;
+            case '{':
+                mDepth++;
+
+                if (mState == STATE_MESSAGES && mDepth == 3) {
+                    mEvent = EVENT_ITEM_START;
+                    return false;
+                }
+
+                return true;
+            case '}':
+                mDepth--;
+
+                if (mState == STATE_MESSAGES && mDepth == 2) {
+                    mEvent = EVENT_ITEM_END;
+                    return false;
+                }
+
+                return true;
+            case ']':
+                mDepth--;
+
+                if (mState == STATE_MESSAGES && mDepth == 1) {
+                    mEvent = EVENT_ARRAY_END;
+                    return false;
+                }
+
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Decodes as much of the backlog frame as is available.
+     *
+     * @param in
+     * @param out
+     * @return true once the end of the frame has been consumed.
+     * @throws TooLongFrameException if a single message or the backlog fields are too long, or
+     * the messages kept while the type is unknown are.
+     * @throws JsonParseException if the frame was malformed; thrown once the frame has ended.
+     */
+    boolean decode(ByteBuf in, List<Object> out) throws Exception {
+        while (true) {
+            int from = in.readerIndex() + mScanned;
+            int index = in.forEachByte(from, in.writerIndex() - from, this);
+
+            if (index < 0) {
+                mScanned = in.readableBytes();
+                checkLength();
+                return false;
+            }
+
+            mScanned = index + 1 - in.readerIndex();
+
+            switch (mEvent) {
+                case EVENT_ARRAY_START:
+                    onArrayStart(in, index);
+                    break;
+                case EVENT_ITEM_START:
+                    mItemStart = index - in.readerIndex();
+                    break;
+                case EVENT_ITEM_END:
+                    onItemEnd(in, index, out);
+                    break;
+                case EVENT_ARRAY_END:
+                    mState = STATE_TRAILER;
+                    in.readerIndex(index + 1);
+                    mScanned = 0;
+                    break;
+                case EVENT_LINE_END:
+                    onLineEnd(in, index, out);
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Clears all state, ready for the next frame.
+     */
+    void reset() {
+        if (mHeader != null) {
+            mHeader.release();
+            mHeader = null;
+        }
+
+        mState = STATE_HEADER;
+        mDepth = 0;
+        mInString = false;
+        mEscaped = false;
+        mScanned = 0;
+        mItemStart = -1;
+        mHeaderCommand = null;
+        mTarget = null;
+        mPending = null;
+        mFailed = false;
+        mHeldBytes = 0;
+    }
+
+    private void checkLength() throws TooLongFrameException {
+        int length = mState == STATE_MESSAGES && mItemStart >= 0 ?
+                mScanned - mItemStart : mScanned;
+
+        if (length > mMaxItemLength) {
+            throw new TooLongFrameException(String.format(
+                    "Backlog item length exceeds %s: %s", mMaxItemLength, length));
+        }
+    }
+
+    private void onArrayStart(ByteBuf in, int index) {
+        int keyStart = findMessagesKey(in, index);
+
+        if (keyStart < 0) {
+            // Some other array among the backlog's own fields.
+            return;
+        }
+
+        int start = in.readerIndex();
+
+        mHeader = Unpooled.copiedBuffer(in.slice(start, keyStart - start));
+        mState = STATE_MESSAGES;
+        mPending = new ArrayList<MessageCommand>(CHUNK_SIZE);
+
+        in.readerIndex(index + 1);
+        mScanned = 0;
+
+        if (peekType(mHeader, 0, mHeader.readableBytes()) == null) {
+            // The type comes after the messages, so chunks wait until it is known.
+            return;
+        }
+
+        mHeaderCommand = decodeHeader(Unpooled.wrappedBuffer(
+                mHeader.duplicate(), Unpooled.wrappedBuffer(EMPTY_MESSAGES),
+                Unpooled.wrappedBuffer(END_OBJECT)));
+
+        if (mHeaderCommand == null) {
+            mFailed = true;
+        } else {
+            mTarget = mHeaderCommand.getTarget();
+        }
+    }
+
+    /**
+     * Looks backwards from the opening bracket of an array for a <code>"messages":</code> key.
+     *
+     * @param in
+     * @param index
+     * @return the index the key starts at, or -1 if the array is not the messages array.
+     */
+    private int findMessagesKey(ByteBuf in, int index) {
+        int i = skipWhitespaceBackwards(in, index - 1);
+
+        if (i < 0 || in.getByte(i) != ':') {
+            return -1;
+        }
+
+        i = skipWhitespaceBackwards(in, i - 1) - MESSAGES_KEY.length + 1;
+
+        if (i < in.readerIndex()) {
+            return -1;
+        }
+
+        for (int j = 0; j < MESSAGES_KEY.length; ++j) {
+            if (in.getByte(i + j) != MESSAGES_KEY[j]) {
+                return -1;
+            }
+        }
+
+        return i;
+    }
+
+    private int skipWhitespaceBackwards(ByteBuf in, int index) {
+        while (index >= in.readerIndex()) {
+            byte b = in.getByte(index);
+
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return index;
+            }
+
+            index--;
+        }
+
+        return -1;
+    }
+
+    private void onItemEnd(ByteBuf in, int index, List<Object> out) {
+        int start = in.readerIndex() + mItemStart;
+        int length = index + 1 - start;
+        ByteBuf item = in.slice(start, length);
+
+        in.readerIndex(index + 1);
+        mScanned = 0;
+        mItemStart = -1;
+
+        if (mFailed) {
+            return;
+        }
+
+        MessageCommand message;
+
+        try {
+            message = mMessageAdapter.read(new JsonReader(
+                    new InputStreamReader(new ByteBufInputStream(item), UTF_8)));
+        } catch (Exception e) {
+            Log.w(TAG, "received garbage backlog message.", e);
+            mFailed = true;
+            return;
+        }
+
+        if (mTarget == null) {
+            mTarget = message.getTarget();
+        }
+
+        if (mHeaderCommand == null) {
+            mHeldBytes += length;
+
+            if (mHeldBytes > mMaxItemLength) {
+                throw new TooLongFrameException(String.format(
+                        "Frame length exceeds %s before its type: %s - discarded",
+                        mMaxItemLength, mHeldBytes));
+            }
+        }
+
+        mPending.add(message);
+
+        if (mHeaderCommand != null && mPending.size() >= CHUNK_SIZE) {
+            out.add(BacklogCommand.createChunk(mHeaderCommand, mTarget, mPending, true));
+            mPending = new ArrayList<MessageCommand>(CHUNK_SIZE);
+        }
+    }
+
+    private void onLineEnd(ByteBuf in, int index, List<Object> out) {
+        int start = in.readerIndex();
+        int length = index - start;
+
+        // Strip the carriage return of a CRLF delimiter.
+        if (length > 0 && in.getByte(index - 1) == '\r') {
+            length--;
+        }
+
+        if (mState == STATE_HEADER) {
+            // No messages array was found, so the whole frame is still here.
+            BacklogCommand backlog = decodeHeader(in.slice(start, length));
+
+            in.readerIndex(index + 1);
+            reset();
+
+            if (backlog == null) {
+                throw new JsonParseException("Backlog frame ended unexpectedly.");
+            }
+
+            out.add(backlog);
+            return;
+        }
+
+        BacklogCommand footer = null;
+
+        if (mState == STATE_TRAILER && !mFailed) {
+            footer = decodeHeader(Unpooled.wrappedBuffer(
+                    mHeader.duplicate(), Unpooled.wrappedBuffer(EMPTY_MESSAGES),
+                    in.slice(start, length)));
+        }
+
+        in.readerIndex(index + 1);
+
+        List<MessageCommand> pending = mPending;
+        String target = mTarget;
+        BacklogCommand header = mHeaderCommand;
+        boolean failed = mFailed || footer == null;
+
+        reset();
+
+        if (footer == null) {
+            // Malformed, but end the backlog with what the header said, if anything.
+            footer = header;
+        }
+
+        if (target == null && footer != null) {
+            target = footer.getTarget();
+        }
+
+        if (target == null) {
+            throw new JsonParseException("Backlog frame ended unexpectedly.");
+        }
+
+        if (failed) {
+            Log.w(TAG, String.format("Backlog for %s was malformed; ending it with %s messages.",
+                    target, pending.size()));
+        }
+
+        // Messages kept back while the type was unknown go out in chunks as usual.
+        int from = 0;
+
+        while (pending.size() - from > CHUNK_SIZE) {
+            out.add(BacklogCommand.createChunk(footer, target, new ArrayList<MessageCommand>(
+                    pending.subList(from, from + CHUNK_SIZE)), true));
+            from += CHUNK_SIZE;
+        }
+
+        out.add(BacklogCommand.createChunk(footer, target, from == 0 ? pending :
+                new ArrayList<MessageCommand>(pending.subList(from, pending.size())), false));
+    }
+
+    /**
+     * Decodes the backlog's own fields, with the messages array replaced by an empty one.
+     *
+     * @param json
+     * @return
+     */
+    private BacklogCommand decodeHeader(ByteBuf json) {
+        RobustCommand command;
+
+        try {
+            command = CommandDecoder.getInstance().decode(
+                    new InputStreamReader(new ByteBufInputStream(json), UTF_8));
+        } catch (JsonParseException e) {
+            Log.w(TAG, "received garbage backlog.", e);
+            return null;
+        }
+
+        if (!(command instanceof BacklogCommand)) {
+            return null;
+        }
+
+        return (BacklogCommand) command;
+    }
+}
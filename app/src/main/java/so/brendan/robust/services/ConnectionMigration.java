@@ -0,0 +1,353 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLSession;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import so.brendan.robust.models.commands.AuthCommand;
+import so.brendan.robust.models.commands.CompressCommand;
+import so.brendan.robust.models.commands.FramingCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Moves a session to a new connection without a break, for when the device changes networks.
+ *
+ * A candidate connection is made and authenticated while the current one carries on. Only once
+ * it is ready does the session switch over, moving any outgoing commands still waiting and
+ * closing the old connection, so the blackout is about one connect time rather than however long
+ * the old connection takes to be noticed dead.
+ *
+ * The candidate shares the current channel's event loop, so the switch happens in one turn, with
+ * nothing written to either channel in between. Until then, the candidate's commands come here
+ * rather than to the session, and it negotiates framing and compression itself.
+ *
+ * Apart from <code>start</code> and <code>cancel</code>, only call on the event loop.
+ */
+class ConnectionMigration {
+    private static final String TAG = Constants.createTag(ConnectionMigration.class);
+
+    /** How long the candidate has to connect and authenticate before it is given up. */
+    static final long TIMEOUT_MILLIS = 20 * 1000;
+
+    private final RobustSession mSession;
+    private final EventLoop mEventLoop;
+    private final HappyEyeballsConnector mConnector;
+    private final long mStartNanos;
+
+    private Channel mChannel;
+    private ScheduledFuture<?> mTimeout;
+    private boolean mDone = false;
+
+    private SSLSession mSSLSession;
+    private long mHandshakeMillis = -1;
+
+    private boolean mCompressionRequested = false;
+    private boolean mCompressed = false;
+    private boolean mBinaryFraming = false;
+
+    /**
+     * The handler at the end of the candidate's pipeline until the switch, when it is replaced by
+     * a <code>MessengerChannelHandler</code>.
+     */
+    private class CandidateHandler extends SimpleChannelInboundHandler<RobustCommand> {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            final SslHandler handler = (SslHandler) ctx.pipeline().get("ssl");
+            final long handshakeStart = System.nanoTime();
+
+            handler.handshakeFuture().addListener(
+                    new GenericFutureListener<Future<? super Channel>>() {
+                @Override
+                public void operationComplete(Future<? super Channel> future) throws Exception {
+                    if (future.isSuccess()) {
+                        mHandshakeMillis = (System.nanoTime() - handshakeStart) / 1000000;
+                        mSSLSession = handler.engine().getSession();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            fail(new ClosedChannelException());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(cause);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof IdleStateEvent) {
+                fail(new Throwable("No response received from server."));
+            }
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, RobustCommand msg) {
+            onCommandReceived(msg);
+        }
+    }
+
+    /**
+     * @param session
+     * @param eventLoop the event loop of the session's current channel.
+     * @param addresses
+     */
+    ConnectionMigration(RobustSession session, EventLoop eventLoop,
+                        List<InetSocketAddress> addresses) {
+        mSession = session;
+        mEventLoop = eventLoop;
+        mStartNanos = System.nanoTime();
+
+        Bootstrap b = session.createBootstrap(eventLoop,
+                new MessengerChannelInitializer(session, session.getHost(), session.getPort()) {
+            @Override
+            protected ChannelHandler createHandler() {
+                return new CandidateHandler();
+            }
+        });
+
+        mConnector = new HappyEyeballsConnector(b, eventLoop, addresses,
+                HappyEyeballsConnector.ATTEMPT_DELAY_MILLIS);
+    }
+
+    /**
+     * Starts connecting the candidate. May be called from any thread.
+     */
+    void start() {
+        mConnector.start();
+
+        mConnector.future().addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (future.isCancelled()) {
+                    return;
+                }
+
+                if (future.isSuccess()) {
+                    onConnected(future.getNow());
+                } else {
+                    fail(future.cause());
+                }
+            }
+        });
+
+        mTimeout = mEventLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fail(new TimeoutException("Candidate connection took too long."));
+            }
+        }, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives up on the candidate, if not already switched to. May be called from any thread.
+     */
+    void cancel() {
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                fail(new CancellationException());
+            }
+        });
+    }
+
+    /**
+     * Returns the candidate channel, once connected.
+     *
+     * @return
+     */
+    Channel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Returns the candidate's TLS session, or null if the handshake isn't done.
+     *
+     * @return
+     */
+    SSLSession getSSLSession() {
+        return mSSLSession;
+    }
+
+    /**
+     * Returns how long the candidate's TLS handshake took, or -1 if not done.
+     *
+     * @return
+     */
+    long getHandshakeMillis() {
+        return mHandshakeMillis;
+    }
+
+    /**
+     * Returns whether the candidate sends length-prefixed CBOR.
+     *
+     * @return
+     */
+    boolean isBinaryFraming() {
+        return mBinaryFraming;
+    }
+
+    /**
+     * Returns whether the server compresses its stream on the candidate.
+     *
+     * @return
+     */
+    boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Returns how long since the move started.
+     *
+     * @return
+     */
+    long getElapsedMillis() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    /**
+     * Requests framing or compression, as the session would, then authenticates, all in one
+     * flush.
+     */
+    private void onConnected(Channel channel) {
+        mChannel = channel;
+
+        if (mDone) {
+            channel.close();
+            return;
+        }
+
+        RobustCommand auth = mSession.createAuthCommand();
+
+        if (auth == null) {
+            fail(new ChannelException("Session has no authenticator."));
+            return;
+        }
+
+        if (mSession.hasBinaryFraming()) {
+            channel.write(FramingCommand.request(FramingCommand.MODE_CBOR));
+        } else if (mSession.hasStreamCompression()) {
+            MessengerInflateHandler handler = channel.pipeline().get(MessengerInflateHandler.class);
+
+            if (handler != null) {
+                handler.arm();
+                mCompressionRequested = true;
+
+                channel.write(CompressCommand.request(CompressCommand.MODE_ZLIB,
+                        MessengerInflateHandler.DICTIONARY_NAME));
+            }
+        }
+
+        channel.writeAndFlush(auth);
+    }
+
+    private void onCommandReceived(RobustCommand command) {
+        String type = command.getType();
+
+        if (RobustCommand.TYPE_FRAMING.equals(type)) {
+            FramingCommand framing = (FramingCommand) command;
+
+            if (framing.hasSuccess() && FramingCommand.MODE_CBOR.equals(framing.getMode())) {
+                MessengerCommandEncoder encoder =
+                        mChannel.pipeline().get(MessengerCommandEncoder.class);
+
+                if (encoder != null) {
+                    encoder.setBinaryFraming();
+                    mBinaryFraming = true;
+                }
+            }
+        } else if (RobustCommand.TYPE_COMPRESS.equals(type)) {
+            mCompressionRequested = false;
+
+            if (((CompressCommand) command).hasSuccess()) {
+                mCompressed = true;
+            } else {
+                disarmCompression();
+            }
+        } else if (RobustCommand.TYPE_AUTH.equals(type)) {
+            AuthCommand auth = (AuthCommand) command;
+
+            if (!auth.hasSuccess()) {
+                fail(new ChannelException("Candidate connection was not authenticated."));
+                return;
+            }
+
+            if (mCompressionRequested) {
+                // No reply to the compression request, so the server doesn't support it.
+                disarmCompression();
+            }
+
+            complete(auth);
+        } else {
+            // Nothing else is expected before the login, but it's still the session's.
+            mSession.onCommandReceived(command);
+        }
+    }
+
+    private void disarmCompression() {
+        mCompressionRequested = false;
+
+        MessengerInflateHandler handler = mChannel.pipeline().get(MessengerInflateHandler.class);
+
+        if (handler != null) {
+            handler.disarm();
+        }
+    }
+
+    private void complete(AuthCommand auth) {
+        if (mDone) {
+            return;
+        }
+
+        mDone = true;
+        mTimeout.cancel(false);
+
+        mSession.onMigrated(this, auth);
+    }
+
+    private void fail(Throwable cause) {
+        if (mDone) {
+            return;
+        }
+
+        mDone = true;
+
+        if (mTimeout != null) {
+            mTimeout.cancel(false);
+        }
+
+        mConnector.cancel();
+
+        if (mChannel != null) {
+            mChannel.close();
+        }
+
+        Log.i(TAG, String.format("Gave up on new connection after %s ms: %s",
+                getElapsedMillis(), cause));
+
+        mSession.onMigrationFailed(this, cause);
+    }
+}
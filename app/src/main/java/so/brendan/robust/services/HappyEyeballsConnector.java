@@ -0,0 +1,173 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Races connection attempts to each address of a host, keeping the first to connect (RFC 8305).
+ *
+ * Attempts start in the order given, each one <code>ATTEMPT_DELAY_MILLIS</code> after the last,
+ * or straight away when the last one fails. This way a broken address family, such as IPv6 on
+ * a network that only pretends to route it, costs a short delay instead of a connect timeout.
+ *
+ * All attempts share one event loop, so the losers are closed before they can finish connecting.
+ */
+class HappyEyeballsConnector {
+    private static final String TAG = Constants.createTag(HappyEyeballsConnector.class);
+
+    /** The delay between starting attempts, as recommended by RFC 8305. */
+    static final long ATTEMPT_DELAY_MILLIS = 250;
+
+    private final Bootstrap mBootstrap;
+    private final List<InetSocketAddress> mAddresses;
+    private final long mDelayMillis;
+    private final EventLoop mEventLoop;
+    private final Promise<Channel> mPromise;
+
+    private final ArrayList<ChannelFuture> mAttempts = new ArrayList<ChannelFuture>();
+    private int mNext = 0;
+    private int mPending = 0;
+    private ScheduledFuture<?> mNextAttempt;
+    private Throwable mLastCause;
+
+    /**
+     * @param bootstrap a bootstrap whose group is the single <code>eventLoop</code>.
+     * @param eventLoop
+     * @param addresses
+     * @param delayMillis
+     */
+    HappyEyeballsConnector(Bootstrap bootstrap, EventLoop eventLoop,
+                           List<InetSocketAddress> addresses, long delayMillis) {
+        mBootstrap = bootstrap;
+        mEventLoop = eventLoop;
+        mAddresses = addresses;
+        mDelayMillis = delayMillis;
+        mPromise = eventLoop.newPromise();
+    }
+
+    /**
+     * Starts the first attempt, returning its channel.
+     *
+     * @return
+     */
+    synchronized Channel start() {
+        if (mAddresses.isEmpty()) {
+            throw new IllegalArgumentException("No addresses to connect to.");
+        }
+
+        return startNextAttempt();
+    }
+
+    /**
+     * Returns the future of the race, which succeeds with the winning channel, or fails with the
+     * cause of the last attempt to fail.
+     *
+     * @return
+     */
+    Future<Channel> future() {
+        return mPromise;
+    }
+
+    /**
+     * Abandons the race, closing every attempt.
+     */
+    synchronized void cancel() {
+        if (mPromise.cancel(false)) {
+            closeAttempts(null);
+        }
+    }
+
+    private synchronized Channel startNextAttempt() {
+        if (mPromise.isDone() || mNext >= mAddresses.size()) {
+            return null;
+        }
+
+        final InetSocketAddress address = mAddresses.get(mNext++);
+        ChannelFuture attempt = mBootstrap.connect(address);
+
+        mAttempts.add(attempt);
+        mPending++;
+
+        attempt.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                onAttemptComplete(future, address);
+            }
+        });
+
+        if (mNext < mAddresses.size()) {
+            mNextAttempt = mEventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startNextAttempt();
+                }
+            }, mDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return attempt.channel();
+    }
+
+    private synchronized void onAttemptComplete(ChannelFuture attempt,
+                                                InetSocketAddress address) {
+        mPending--;
+
+        if (attempt.isSuccess()) {
+            if (mPromise.trySuccess(attempt.channel())) {
+                Log.d(TAG, String.format("Connected to %s (attempt %s of %s)",
+                        address, mAttempts.indexOf(attempt) + 1, mAddresses.size()));
+                closeAttempts(attempt);
+            } else {
+                attempt.channel().close();
+            }
+
+            return;
+        }
+
+        if (mPromise.isDone()) {
+            return;
+        }
+
+        Log.d(TAG, String.format("Could not connect to %s: %s", address, attempt.cause()));
+        mLastCause = attempt.cause();
+
+        if (mNext < mAddresses.size()) {
+            // No need to wait out the delay once the last attempt has failed.
+            if (mNextAttempt != null) {
+                mNextAttempt.cancel(false);
+            }
+
+            startNextAttempt();
+        } else if (mPending == 0) {
+            mPromise.tryFailure(mLastCause);
+        }
+    }
+
+    /**
+     * Closes every attempt except the winner, and stops any more from starting.
+     */
+    private void closeAttempts(ChannelFuture winner) {
+        if (mNextAttempt != null) {
+            mNextAttempt.cancel(false);
+        }
+
+        for (ChannelFuture attempt : mAttempts) {
+            if (attempt != winner) {
+                attempt.channel().close();
+            }
+        }
+    }
+}
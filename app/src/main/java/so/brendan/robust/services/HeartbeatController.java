@@ -0,0 +1,219 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.ScheduledFuture;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.HeartbeatIntervals;
+import so.brendan.robust.utils.LatencyHistogram;
+
+/**
+ * Keeps an idle connection alive with pings, at the interval <code>HeartbeatIntervals</code> has
+ * learnt for the current network, and notices when it has silently died.
+ *
+ * A ping is sent once nothing has been read for the interval. Writes don't count, as a dead
+ * connection still accepts them, so a client busy sending still notices the server has gone
+ * quiet. If nothing at all arrives within the pong timeout, the connection is taken to be dead:
+ * a reader idle event is fired, and the interval is recorded as too long. The pong timeout
+ * follows the measured round trip time.
+ *
+ * The interval is read again before each ping, so it adapts while connected. Sits after the
+ * encoder, so it sees pongs as commands and its pings are encoded.
+ */
+public class HeartbeatController extends ChannelInboundHandlerAdapter {
+    private static final String TAG = Constants.createTag(HeartbeatController.class);
+
+    /** The shortest time given for a pong to arrive. */
+    private static final long MIN_PONG_TIMEOUT_MILLIS = 10 * 1000;
+
+    /** The pong timeout, as a multiple of the 90th percentile round trip time. */
+    private static final int PONG_TIMEOUT_RTTS = 4;
+
+    private final HeartbeatIntervals mIntervals;
+    private final String mNetworkKey;
+
+    private ChannelHandlerContext mContext;
+    private long mLastReadNanos;
+    private ScheduledFuture<?> mIdleCheck;
+    private ScheduledFuture<?> mPongTimeout;
+
+    /** When the outstanding ping was sent, or 0 if none. */
+    private long mPingSentNanos = 0;
+
+    /** How long the connection had been idle when the outstanding ping was sent. */
+    private long mPingIdleMillis;
+
+    private final Runnable mIdleCheckTask = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
+
+    private final Runnable mPongTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onPongTimeout();
+        }
+    };
+
+    public HeartbeatController(HeartbeatIntervals intervals) {
+        mIntervals = intervals;
+        mNetworkKey = intervals.getNetworkKey();
+    }
+
+    /**
+     * Returns the key of the network the connection was made on.
+     *
+     * @return
+     */
+    public String getNetworkKey() {
+        return mNetworkKey;
+    }
+
+    /**
+     * Returns the recent round trip times of pings on this network.
+     *
+     * @return
+     */
+    public LatencyHistogram getRtt() {
+        return mIntervals.getRtt(mNetworkKey);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mContext = ctx;
+
+        if (ctx.channel().isActive()) {
+            start();
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        start();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stop();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        stop();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long now = System.nanoTime();
+
+        mLastReadNanos = now;
+
+        if (mPingSentNanos != 0 && msg instanceof RobustCommand &&
+                RobustCommand.TYPE_PONG.equals(((RobustCommand) msg).getType())) {
+            onPong(now);
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+
+    private void start() {
+        if (mIdleCheck != null) {
+            return;
+        }
+
+        mLastReadNanos = System.nanoTime();
+
+        Log.d(TAG, String.format("Heartbeat every %s s on %s",
+                mIntervals.getInterval(mNetworkKey) / 1000, mNetworkKey));
+
+        scheduleIdleCheck(mIntervals.getInterval(mNetworkKey));
+    }
+
+    private void stop() {
+        if (mIdleCheck != null) {
+            mIdleCheck.cancel(false);
+            mIdleCheck = null;
+        }
+
+        if (mPongTimeout != null) {
+            mPongTimeout.cancel(false);
+            mPongTimeout = null;
+        }
+    }
+
+    private void scheduleIdleCheck(long delayMillis) {
+        mIdleCheck = mContext.executor().schedule(mIdleCheckTask, delayMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void checkIdle() {
+        if (!mContext.channel().isActive()) {
+            return;
+        }
+
+        long interval = mIntervals.getInterval(mNetworkKey);
+        long idleMillis = (System.nanoTime() - mLastReadNanos) / 1000000;
+
+        if (idleMillis < interval || mPingSentNanos != 0) {
+            scheduleIdleCheck(Math.max(interval - idleMillis, 1000));
+            return;
+        }
+
+        mPingSentNanos = System.nanoTime();
+        mPingIdleMillis = idleMillis;
+
+        long timeout = Math.max(MIN_PONG_TIMEOUT_MILLIS,
+                mIntervals.getRtt(mNetworkKey).getPercentile(90) * PONG_TIMEOUT_RTTS);
+
+        Log.v(TAG, String.format("Ping after %s s idle", idleMillis / 1000));
+
+        mContext.writeAndFlush(RobustCommand.createPing());
+        mPongTimeout = mContext.executor().schedule(mPongTimeoutTask, timeout,
+                TimeUnit.MILLISECONDS);
+
+        scheduleIdleCheck(interval);
+    }
+
+    private void onPong(long now) {
+        long rttMillis = (now - mPingSentNanos) / 1000000;
+
+        mPingSentNanos = 0;
+
+        if (mPongTimeout != null) {
+            mPongTimeout.cancel(false);
+            mPongTimeout = null;
+        }
+
+        Log.v(TAG, String.format("Pong in %s ms", rttMillis));
+        mIntervals.onSuccess(mNetworkKey, mPingIdleMillis, rttMillis);
+    }
+
+    private void onPongTimeout() {
+        mPongTimeout = null;
+
+        if (mLastReadNanos - mPingSentNanos > 0) {
+            // Something else arrived instead, so the connection is alive. A late pong is not
+            // timed.
+            mPingSentNanos = 0;
+            return;
+        }
+
+        Log.i(TAG, String.format("No pong after %s s idle on %s", mPingIdleMillis / 1000,
+                mNetworkKey));
+
+        mPingSentNanos = 0;
+        mIntervals.onFailure(mNetworkKey, mPingIdleMillis);
+
+        mContext.fireUserEventTriggered(IdleStateEvent.READER_IDLE_STATE_EVENT);
+    }
+}
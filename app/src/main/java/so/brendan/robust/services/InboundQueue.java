@@ -0,0 +1,151 @@
+package so.brendan.robust.services;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import io.netty.channel.Channel;
+import so.brendan.robust.models.InboundQueueStats;
+import so.brendan.robust.models.StageStats;
+import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.StageMeter;
+
+/**
+ * A bounded handoff of received commands from the event loop to the persistence thread, so that
+ * database writes neither stall the event loop nor let received data pile up without limit.
+ *
+ * Once <code>HIGH_WATERMARK</code> commands are waiting, reads from the channel are paused by
+ * turning off auto read; they resume once the persistence thread has brought the queue down to
+ * <code>LOW_WATERMARK</code>. While paused, the socket's receive buffer fills and TCP flow
+ * control slows the server down, so at most one read's worth of frames more than the high
+ * watermark is ever held.
+ *
+ * Tasks needn't wait for their writes to commit: <code>DatabaseWriter</code> blocks queueing
+ * writes while its own queue is full, so a database falling behind fills this queue in turn.
+ *
+ * Every session's queue shares the one persistence thread, so commands are persisted in the
+ * order they were received. This is the middle stage of the pipeline received commands pass
+ * through, between decoding on the event loop and publishing through <code>PublishQueue</code>.
+ */
+class InboundQueue {
+    private static final String TAG = Constants.createTag(InboundQueue.class);
+
+    /** The number of waiting commands at which reads are paused. */
+    static final int HIGH_WATERMARK = 256;
+
+    /** The number of waiting commands at which paused reads resume. */
+    static final int LOW_WATERMARK = 64;
+
+    private static Handler sHandler;
+
+    private final StageMeter mMeter = new StageMeter("persist", HIGH_WATERMARK);
+
+    private Channel mChannel;
+
+    private boolean mPaused = false;
+    private int mPauseCount = 0;
+    private long mPauseStartNanos;
+    private long mPausedNanos = 0;
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("InboundQueue",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+
+        return sHandler;
+    }
+
+    /**
+     * Sets the channel whose reads are paused when the queue is full.
+     *
+     * @param channel
+     */
+    synchronized void setChannel(Channel channel) {
+        if (mPaused && mChannel != null) {
+            // The old channel is gone, so reads on the new one start unpaused.
+            resume();
+        }
+
+        mChannel = channel;
+    }
+
+    /**
+     * Queues a task for the persistence thread, pausing reads if the queue is now full.
+     *
+     * @param task
+     */
+    void execute(final Runnable task) {
+        synchronized (this) {
+            int depth = mMeter.onEnqueued();
+
+            if (!mPaused && depth >= HIGH_WATERMARK && mChannel != null) {
+                mPaused = true;
+                mPauseCount++;
+                mPauseStartNanos = System.nanoTime();
+                mChannel.config().setAutoRead(false);
+
+                Log.d(TAG, String.format("Paused reads at %s waiting", depth));
+            }
+        }
+
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+
+                try {
+                    task.run();
+                } finally {
+                    onTaskDone(System.nanoTime() - start);
+                }
+            }
+        });
+    }
+
+    private synchronized void onTaskDone(long serviceNanos) {
+        int depth = mMeter.onServiced(serviceNanos);
+
+        if (mPaused && depth <= LOW_WATERMARK) {
+            resume();
+        }
+    }
+
+    private void resume() {
+        long pausedNanos = System.nanoTime() - mPauseStartNanos;
+
+        mPaused = false;
+        mPausedNanos += pausedNanos;
+        mChannel.config().setAutoRead(true);
+
+        Log.d(TAG, String.format("Resumed reads after %s ms", pausedNanos / 1000000));
+    }
+
+    /**
+     * Returns a snapshot of the queue's depth and how long reads have been paused for.
+     *
+     * @return
+     */
+    synchronized InboundQueueStats getStats() {
+        long pausedNanos = mPausedNanos;
+
+        if (mPaused) {
+            pausedNanos += System.nanoTime() - mPauseStartNanos;
+        }
+
+        return new InboundQueueStats(mMeter.getDepth(), mMeter.getMaxDepth(), HIGH_WATERMARK,
+                mPaused, mPauseCount, pausedNanos / 1000000);
+    }
+
+    /**
+     * Returns a snapshot of the queue's depth and how long each command took to persist.
+     *
+     * @return
+     */
+    StageStats getStageStats() {
+        return mMeter.getStats();
+    }
+}
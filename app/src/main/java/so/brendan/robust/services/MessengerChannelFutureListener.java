@@ -2,17 +2,19 @@ package so.brendan.robust.services;
 
 import android.util.Log;
 
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 import so.brendan.robust.listeners.OnSessionEventListener;
 import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.DnsCache;
 
 /**
  * A callback for connection completion.
  *
  * Handles the success and failure states asynchronously and gracefully.
  */
-public class MessengerChannelFutureListener implements ChannelFutureListener {
+public class MessengerChannelFutureListener implements GenericFutureListener<Future<Channel>> {
     private static String TAG = Constants.createTag(MessengerChannelFutureListener.class);
 
     private RobustSession mSession;
@@ -27,21 +29,29 @@ public class MessengerChannelFutureListener implements ChannelFutureListener {
     /**
      * Checks if the connection was successful.
      *
-     * If it was, attempt to authenticate; otherwise, finish with the thrown exception.
+     * If it was, bootstrap the session; otherwise, finish with the thrown exception.
      *
      * @param future
      */
     @Override
-    public void operationComplete(ChannelFuture future) {
+    public void operationComplete(Future<Channel> future) {
+        if (future.isCancelled()) {
+            // The session was finished while connecting.
+            return;
+        }
+
         if (!future.isSuccess()) {
             Log.e(TAG, "Connection error: " + future.cause().getMessage());
 
+            // The addresses may have changed.
+            DnsCache.getInstance().invalidate(mSession.getHost());
+
             // This broadcasts error state.
             mSession.finish(future.cause());
         } else {
-            mSession.getState().setConnectionState(RobustSession.STATE_CONNECTED);
+            mSession.onConnected(future.getNow());
             mListener.onSessionStateChange(mSession, true, false);
-            mSession.authenticate();
+            mSession.bootstrap();
         }
     }
 }
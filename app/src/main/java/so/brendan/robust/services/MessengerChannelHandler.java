@@ -13,15 +13,20 @@ import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import so.brendan.robust.models.commands.RobustCommand;
 import so.brendan.robust.utils.Constants;
 
 /**
  * The handler for the raw socket of the Robust session.
  *
- * Mostly just passes through messages to the session to be handled, including idle state events,
- * connection events and <code>SSLSession</code> instantiation.
+ * Mostly just passes through decoded commands to the session to be handled, including idle state
+ * events, connection events and <code>SSLSession</code> instantiation.
+ *
+ * Every attempt to connect gets one, so events from a channel that isn't the session's current
+ * one, such as an attempt closed for losing the race, are ignored rather than finishing the
+ * session that just connected.
  */
-public class MessengerChannelHandler extends SimpleChannelInboundHandler<String> {
+public class MessengerChannelHandler extends SimpleChannelInboundHandler<RobustCommand> {
     private String TAG = Constants.createTag(MessengerChannelHandler.class);
 
     private RobustSession mSession;
@@ -34,7 +39,7 @@ public class MessengerChannelHandler extends SimpleChannelInboundHandler<String>
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
         super.userEventTriggered(ctx, evt);
 
-        if (evt instanceof IdleStateEvent) {
+        if (evt instanceof IdleStateEvent && mSession.isCurrentChannel(ctx.channel())) {
             IdleState state = ((IdleStateEvent)evt).state();
             mSession.onIdleState(state);
         }
@@ -47,15 +52,21 @@ public class MessengerChannelHandler extends SimpleChannelInboundHandler<String>
 
         final SslHandler handler = (SslHandler) ctx.pipeline().get("ssl");
 
+        // The handshake starts as the channel becomes active.
+        final long handshakeStart = System.nanoTime();
+
         // Add the SSLSession to the session as soon as it's available.
         handler.handshakeFuture().addListener(new GenericFutureListener<Future<? super Channel>>() {
             @Override
             public void operationComplete(Future<? super Channel> future) throws Exception {
-                mSession.setSSLSession(handler.engine().getSession());
+                if (!future.isSuccess() || !mSession.isCurrentChannel(ctx.channel())) {
+                    return;
+                }
+
+                long handshakeMillis = (System.nanoTime() - handshakeStart) / 1000000;
+                mSession.setSSLSession(handler.engine().getSession(), handshakeMillis);
             }
         });
-
-        mSession.getState().setConnectionState(RobustSession.STATE_CONNECTED);
     }
 
     @Override
@@ -64,6 +75,10 @@ public class MessengerChannelHandler extends SimpleChannelInboundHandler<String>
 
         Log.i(TAG, String.format("Channel connection lost. (%s)", addr.toString()));
 
+        if (!mSession.isCurrentChannel(ctx.channel())) {
+            return;
+        }
+
         if (!mSession.isFinished()) {
             // A random throwable in order to trigger the reconnect on error behaviour.
             mSession.finish(new Throwable("Reconnect me, Charlemagne!"));
@@ -72,6 +87,11 @@ public class MessengerChannelHandler extends SimpleChannelInboundHandler<String>
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (!mSession.isCurrentChannel(ctx.channel())) {
+            Log.d(TAG, "Ignoring exception from a replaced channel", cause);
+            return;
+        }
+
         if (cause instanceof ConnectTimeoutException) {
             Log.d(TAG, "connection timeout exception");
             return; // no finish, fall through to listener
@@ -81,9 +101,14 @@ public class MessengerChannelHandler extends SimpleChannelInboundHandler<String>
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
-        Log.d(TAG, String.format("<- %s", msg));
+    protected void channelRead0(ChannelHandlerContext ctx, RobustCommand msg) throws Exception {
+        // Frames are kept by the wire capture, so only log them when verbose.
+        Log.v(TAG, "<- " + msg.getType());
+
+        if (!mSession.isCurrentChannel(ctx.channel())) {
+            return;
+        }
 
-        mSession.onMessageReceived(msg);
+        mSession.onCommandReceived(msg);
     }
 }
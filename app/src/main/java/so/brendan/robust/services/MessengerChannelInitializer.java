@@ -3,24 +3,20 @@ package so.brendan.robust.services;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import javax.net.ssl.SSLEngine;
-import javax.net.ssl.TrustManagerFactory;
 
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
-import io.netty.handler.codec.Delimiters;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.timeout.IdleStateHandler;
 import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.HeartbeatIntervals;
+import so.brendan.robust.utils.SslContextProvider;
 
 /**
  * Initialiser for the raw sockets of the Robust session.
@@ -32,6 +28,13 @@ import so.brendan.robust.utils.Constants;
 public class MessengerChannelInitializer extends ChannelInitializer<SocketChannel> {
     private static final String TAG = Constants.createTag(MessengerChannelInitializer.class);
 
+    // Backlogs are decoded a message at a time, so this only bounds a single command or message.
+    static final int MAX_FRAME_LENGTH = 256 * 1024;
+
+    // Length-prefixed frames can't be decoded until they've fully arrived, so whole backlogs
+    // have to fit.
+    static final int MAX_BINARY_FRAME_LENGTH = 4 * 1024 * 1024;
+
     private RobustSession mSession;
     private String mHost;
     private int mPort;
@@ -59,20 +62,13 @@ public class MessengerChannelInitializer extends ChannelInitializer<SocketChanne
     }
 
     private SslHandler makeSslHandler(SocketChannel ch) {
-        final TrustManagerFactory tmf;
+        long start = System.nanoTime();
+        SslContextProvider provider = SslContextProvider.getInstance();
+        boolean cached = provider.isReady();
         SslContext sslContext;
 
         try {
-            // Default Android keystore
-            KeyStore ks = KeyStore.getInstance("AndroidCAStore");
-            ks.load(null, null);
-
-            // Default trust manager.
-            String tmfAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
-            tmf = TrustManagerFactory.getInstance(tmfAlgorithm);
-            tmf.init(ks);
-
-            sslContext = SslContext.newClientContext(tmf);
+            sslContext = provider.getContext();
         } catch (Exception e) {
             Log.e(TAG, "Error while creating SSL context", e);
             return null;
@@ -82,6 +78,9 @@ public class MessengerChannelInitializer extends ChannelInitializer<SocketChanne
 
         handler.engine().setEnabledProtocols(stripOldProtocols(handler.engine()));
 
+        Log.d(TAG, String.format("SSL handler created in %s ms (%s context)",
+                (System.nanoTime() - start) / 1000000, cached ? "cached" : "new"));
+
         Log.d(TAG, String.format("Supported protocols: %s",
                 TextUtils.join(", ", handler.engine().getSupportedProtocols())));
         Log.d(TAG, String.format("Enabled protocols: %s",
@@ -94,19 +93,29 @@ public class MessengerChannelInitializer extends ChannelInitializer<SocketChanne
         return handler;
     }
 
+    /**
+     * Returns the handler at the end of the pipeline, which receives the decoded commands.
+     *
+     * @return
+     */
+    protected ChannelHandler createHandler() {
+        return new MessengerChannelHandler(mSession);
+    }
+
     @Override
     protected void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
 
         pipeline.addLast("ssl", makeSslHandler(ch));
 
-        // BUG: the server refuses to enforce a fixed frame size at the moment.
-        // TODO fix the server so there's a reasonable max frame size.
-        pipeline.addLast(new DelimiterBasedFrameDecoder(10000000, Delimiters.lineDelimiter()));
-        pipeline.addLast(new StringDecoder());
-        pipeline.addLast(new StringEncoder());
+        pipeline.addLast("inflate", new MessengerInflateHandler());
+        pipeline.addLast("capture", new WireCaptureHandler(WireCapture.getInstance()));
+        pipeline.addLast("flush", new MessengerFlushHandler());
+        pipeline.addLast("decoder", new MessengerCommandDecoder(MAX_FRAME_LENGTH, MAX_BINARY_FRAME_LENGTH));
+        pipeline.addLast("encoder", new MessengerCommandEncoder());
+        pipeline.addLast("priority", new MessengerPriorityHandler());
 
-        pipeline.addLast("idle", new IdleStateHandler(240, 180, 0));
-        pipeline.addLast("handler", new MessengerChannelHandler(mSession));
+        pipeline.addLast("heartbeat", new HeartbeatController(HeartbeatIntervals.getInstance()));
+        pipeline.addLast("handler", createHandler());
     }
 }
@@ -0,0 +1,361 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import com.google.gson.JsonParseException;
+
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import so.brendan.robust.models.StageStats;
+import so.brendan.robust.models.commands.CommandDecoder;
+import so.brendan.robust.models.commands.FramingCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.CborReader;
+import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.StageMeter;
+
+/**
+ * Decodes newline-delimited Robust frames directly into <code>RobustCommand</code> objects.
+ *
+ * Frames are located by scanning the cumulated buffer for line feeds, and are decoded straight
+ * from a slice of that buffer, so a frame is never copied into an intermediate
+ * <code>String</code>. Bytes already scanned are remembered between reads, so a large frame
+ * arriving in many pieces is only scanned once.
+ *
+ * Backlog frames that do not arrive in a single read, or that are too long to decode whole, are
+ * handed to a <code>BacklogStreamDecoder</code>, which emits their messages in chunks while the
+ * rest of the frame is still arriving. The maximum frame length then only applies to each
+ * message. A frame is known to be a backlog by its <code>type</code> field, wherever that is;
+ * one too long to hold whose type hasn't arrived yet is streamed too, in case it is a backlog,
+ * though only a frame's worth of its messages is held until the type arrives.
+ *
+ * Once the server accepts a <code>FramingCommand</code> for CBOR, the decoder switches to
+ * length-prefixed CBOR frames from the byte after that reply. These have their own, larger limit,
+ * as a length-prefixed backlog can only be decoded once it has fully arrived.
+ *
+ * This is the first stage of the pipeline received commands pass through, and is measured like
+ * the others: its depth is the bytes buffered waiting for the rest of a frame, and its service
+ * time is how long each frame, or each chunk of a streamed backlog, took to decode.
+ */
+public class MessengerCommandDecoder extends ByteToMessageDecoder {
+    private static final String TAG = Constants.createTag(MessengerCommandDecoder.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** How far into an incomplete frame to look for its type, before waiting for more. */
+    private static final int TYPE_PEEK_LENGTH = 256;
+
+    private final int mMaxFrameLength;
+    private final int mMaxBinaryFrameLength;
+
+    /** Whether frames are length-prefixed CBOR rather than newline-delimited JSON. */
+    private boolean mBinary = false;
+
+    /** How many bytes of a binary frame that is too long are still to be thrown away. */
+    private long mBinaryDiscardRemaining = 0;
+
+    /** How many bytes past the reader index have been scanned without finding a line feed. */
+    private int mScanOffset = 0;
+
+    /** Whether the current frame is too long and is being thrown away. */
+    private boolean mDiscarding = false;
+    private long mDiscardedBytes = 0;
+
+    private final BacklogStreamDecoder mBacklogDecoder;
+
+    /** Whether the current frame is being decoded by the backlog decoder. */
+    private boolean mStreaming = false;
+
+    /** Whether the server's reply to authentication has been decoded. */
+    private boolean mAuthDecoded = false;
+
+    private final StageMeter mMeter;
+
+    public MessengerCommandDecoder(int maxFrameLength, int maxBinaryFrameLength) {
+        mMaxFrameLength = maxFrameLength;
+        mMaxBinaryFrameLength = maxBinaryFrameLength;
+        mBacklogDecoder = new BacklogStreamDecoder(maxFrameLength);
+        mMeter = new StageMeter("decode", maxFrameLength);
+    }
+
+    /**
+     * Returns a snapshot of the bytes waiting to be decoded and how long decoding has taken.
+     * May be called from any thread.
+     *
+     * @return
+     */
+    public StageStats getStats() {
+        return mMeter.getStats();
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        long start = System.nanoTime();
+        int decoded = out.size();
+
+        try {
+            if (mBinary) {
+                decodeBinary(in, out);
+            } else if (mStreaming) {
+                decodeBacklog(in, out);
+            } else {
+                decodeText(in, out);
+            }
+        } finally {
+            if (out.size() > decoded) {
+                mMeter.recordService(System.nanoTime() - start);
+            }
+
+            mMeter.setDepth(in.readableBytes());
+        }
+    }
+
+    private void decodeText(ByteBuf in, List<Object> out) throws Exception {
+        int start = in.readerIndex();
+        int scanFrom = start + mScanOffset;
+        int eol = in.forEachByte(scanFrom, in.writerIndex() - scanFrom, ByteBufProcessor.FIND_LF);
+
+        if (eol < 0) {
+            if (mDiscarding) {
+                mDiscardedBytes += in.readableBytes();
+                in.skipBytes(in.readableBytes());
+                mScanOffset = 0;
+            } else if (isBacklog(peekType(in, Math.min(in.readableBytes(), TYPE_PEEK_LENGTH)))) {
+                mStreaming = true;
+                mScanOffset = 0;
+                decodeBacklog(in, out);
+            } else if (in.readableBytes() > mMaxFrameLength) {
+                String type = peekType(in, in.readableBytes());
+
+                mScanOffset = 0;
+
+                if (type == null || isBacklog(type)) {
+                    // Possibly a backlog with its type after the messages.
+                    mStreaming = true;
+                    decodeBacklog(in, out);
+                } else {
+                    // Throw away what we have, and the rest of the frame when it arrives.
+                    mDiscarding = true;
+                    mDiscardedBytes = in.readableBytes();
+                    in.skipBytes(in.readableBytes());
+                }
+            } else {
+                mScanOffset = in.readableBytes();
+            }
+            return;
+        }
+
+        mScanOffset = 0;
+
+        if (mDiscarding) {
+            long discarded = mDiscardedBytes + (eol - start);
+
+            mDiscarding = false;
+            mDiscardedBytes = 0;
+            in.readerIndex(eol + 1);
+
+            throw new TooLongFrameException(String.format(
+                    "Frame length exceeds %s: %s - discarded", mMaxFrameLength, discarded));
+        }
+
+        int length = eol - start;
+
+        if (length > mMaxFrameLength) {
+            if (isBacklog(peekType(in, length))) {
+                mStreaming = true;
+                decodeBacklog(in, out);
+                return;
+            }
+
+            in.readerIndex(eol + 1);
+
+            throw new TooLongFrameException(String.format(
+                    "Frame length exceeds %s: %s - discarded", mMaxFrameLength, length));
+        }
+
+        // Strip the carriage return of a CRLF delimiter.
+        if (length > 0 && in.getByte(eol - 1) == '\r') {
+            length--;
+        }
+
+        ByteBuf frame = in.slice(start, length);
+        in.readerIndex(eol + 1);
+
+        if (length == 0) {
+            return;
+        }
+
+        RobustCommand command;
+
+        try {
+            command = CommandDecoder.getInstance().decode(
+                    new InputStreamReader(new ByteBufInputStream(frame), UTF_8));
+        } catch (JsonParseException e) {
+            Log.w(TAG, "received garbage message.");
+            Log.d(TAG, frame.toString(0, length, UTF_8));
+            return;
+        }
+
+        if (command instanceof FramingCommand) {
+            onFramingCommand((FramingCommand) command);
+        }
+
+        emit(command, out);
+    }
+
+    private void emit(RobustCommand command, List<Object> out) {
+        if (command == null) {
+            return;
+        }
+
+        if (RobustCommand.TYPE_AUTH.equals(command.getType())) {
+            mAuthDecoded = true;
+        }
+
+        out.add(command);
+    }
+
+    /**
+     * Returns whether frames are now length-prefixed CBOR.
+     *
+     * @return
+     */
+    boolean isBinaryFraming() {
+        return mBinary;
+    }
+
+    /**
+     * Returns whether the server's reply to authentication has been decoded.
+     *
+     * @return
+     */
+    boolean hasDecodedAuth() {
+        return mAuthDecoded;
+    }
+
+    /**
+     * Returns whether part of a frame has been received, so the next read doesn't start one.
+     *
+     * @return
+     */
+    boolean hasPartialFrame() {
+        return internalBuffer().isReadable() || mStreaming || mDiscarding ||
+                mBinaryDiscardRemaining > 0;
+    }
+
+    /**
+     * Switches framing mode as soon as the server accepts, as its next frame uses the new mode.
+     *
+     * @param command
+     */
+    private void onFramingCommand(FramingCommand command) {
+        if (command.hasSuccess() && FramingCommand.MODE_CBOR.equals(command.getMode())) {
+            Log.d(TAG, "Switching to binary framing.");
+            mBinary = true;
+        }
+    }
+
+    private void decodeBinary(ByteBuf in, List<Object> out) throws Exception {
+        if (mBinaryDiscardRemaining > 0) {
+            int skip = (int) Math.min(in.readableBytes(), mBinaryDiscardRemaining);
+
+            in.skipBytes(skip);
+            mBinaryDiscardRemaining -= skip;
+
+            if (mBinaryDiscardRemaining == 0) {
+                throw new TooLongFrameException(String.format(
+                        "Frame length exceeds %s: %s - discarded",
+                        mMaxBinaryFrameLength, mDiscardedBytes));
+            }
+
+            return;
+        }
+
+        if (in.readableBytes() < 4) {
+            return;
+        }
+
+        long length = in.getUnsignedInt(in.readerIndex());
+
+        if (length > mMaxBinaryFrameLength) {
+            // Throw away the frame as it arrives.
+            in.skipBytes(4);
+            mBinaryDiscardRemaining = length;
+            mDiscardedBytes = length;
+            return;
+        }
+
+        if (in.readableBytes() < 4 + length) {
+            return;
+        }
+
+        ByteBuf frame = in.slice(in.readerIndex() + 4, (int) length);
+        in.skipBytes(4 + (int) length);
+
+        if (length == 0) {
+            return;
+        }
+
+        RobustCommand command;
+
+        try {
+            command = CommandDecoder.getInstance().decode(
+                    new CborReader(new ByteBufInputStream(frame)));
+        } catch (JsonParseException e) {
+            Log.w(TAG, "received garbage message.");
+            Log.d(TAG, ByteBufUtil.hexDump(frame, 0, (int) length));
+            return;
+        }
+
+        emit(command, out);
+    }
+
+    private static String peekType(ByteBuf in, int length) {
+        return BacklogStreamDecoder.peekType(in, in.readerIndex(), length);
+    }
+
+    private static boolean isBacklog(String type) {
+        return RobustCommand.TYPE_BACKLOG.equals(type);
+    }
+
+    private void decodeBacklog(ByteBuf in, List<Object> out) throws Exception {
+        try {
+            if (mBacklogDecoder.decode(in, out)) {
+                mStreaming = false;
+            }
+        } catch (TooLongFrameException e) {
+            // Throw away the rest of the frame; the failure is raised once it has ended.
+            mStreaming = false;
+            mBacklogDecoder.reset();
+
+            int eol = in.forEachByte(ByteBufProcessor.FIND_LF);
+
+            if (eol >= 0) {
+                in.readerIndex(eol + 1);
+                throw e;
+            }
+
+            mDiscarding = true;
+            mDiscardedBytes = in.readableBytes();
+            in.skipBytes(in.readableBytes());
+        } catch (JsonParseException e) {
+            mStreaming = false;
+            mBacklogDecoder.reset();
+            Log.w(TAG, "received garbage backlog.", e);
+        }
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        mBacklogDecoder.reset();
+    }
+}
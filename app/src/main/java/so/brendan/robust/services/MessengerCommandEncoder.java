@@ -0,0 +1,114 @@
+package so.brendan.robust.services;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.MessageToByteEncoder;
+import so.brendan.robust.models.commands.ControlCommand;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Encodes <code>RobustCommand</code> objects as newline-delimited JSON frames, or as
+ * length-prefixed CBOR frames once binary framing has been negotiated.
+ *
+ * Commands are serialised once, straight into a buffer from the channel's allocator. Ping and
+ * pong frames never change, so they are encoded once and every send is a retained duplicate of
+ * the same buffer.
+ */
+public class MessengerCommandEncoder extends MessageToByteEncoder<RobustCommand> {
+    private static final String TAG = Constants.createTag(MessengerCommandEncoder.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ByteBuf PING_FRAME = createControlFrame(RobustCommand.TYPE_PING, false);
+    private static final ByteBuf PONG_FRAME = createControlFrame(RobustCommand.TYPE_PONG, false);
+    private static final ByteBuf BINARY_PING_FRAME =
+            createControlFrame(RobustCommand.TYPE_PING, true);
+    private static final ByteBuf BINARY_PONG_FRAME =
+            createControlFrame(RobustCommand.TYPE_PONG, true);
+
+    /** Whether frames are length-prefixed CBOR rather than newline-delimited JSON. */
+    private boolean mBinary = false;
+
+    /**
+     * Creates a shared, pre-encoded frame for a command consisting of only a type.
+     *
+     * @param type
+     * @param binary
+     * @return
+     */
+    private static ByteBuf createControlFrame(String type, boolean binary) {
+        ByteBuf frame = Unpooled.directBuffer();
+
+        try {
+            encode(new ControlCommand(type), frame, binary);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return Unpooled.unreleasableBuffer(frame);
+    }
+
+    private static void encode(RobustCommand msg, ByteBuf out, boolean binary)
+            throws IOException {
+        if (binary) {
+            int start = out.writerIndex();
+
+            out.writeInt(0);
+            msg.toCBOR(new ByteBufOutputStream(out));
+            out.setInt(start, out.writerIndex() - start - 4);
+            return;
+        }
+
+        Writer writer = new OutputStreamWriter(new ByteBufOutputStream(out), UTF_8);
+
+        msg.toJSON(writer);
+        writer.flush();
+
+        out.writeByte('\n');
+    }
+
+    public MessengerCommandEncoder() {
+        super(RobustCommand.class);
+    }
+
+    /**
+     * Switches to length-prefixed CBOR frames for all further commands. Must be called on the
+     * channel's event loop.
+     */
+    public void setBinaryFraming() {
+        mBinary = true;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ControlCommand) {
+            String type = ((ControlCommand) msg).getType();
+
+            if (RobustCommand.TYPE_PING.equals(type)) {
+                ByteBuf frame = mBinary ? BINARY_PING_FRAME : PING_FRAME;
+                ctx.write(frame.duplicate().retain(), promise);
+                return;
+            } else if (RobustCommand.TYPE_PONG.equals(type)) {
+                ByteBuf frame = mBinary ? BINARY_PONG_FRAME : PONG_FRAME;
+                ctx.write(frame.duplicate().retain(), promise);
+                return;
+            }
+        }
+
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, RobustCommand msg, ByteBuf out) throws Exception {
+        encode(msg, out, mBinary);
+    }
+}
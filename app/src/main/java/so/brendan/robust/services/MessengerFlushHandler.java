@@ -0,0 +1,124 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Coalesces flushes of encoded frames, so a burst of commands leaves as few TLS records and
+ * socket writes as possible.
+ *
+ * A flush is deferred to the end of the current event loop turn, by which time any other commands
+ * queued for the channel in the same burst will have been written. Should the pending frames
+ * reach a full TLS record's worth of data, they are flushed straight away instead.
+ *
+ * Sits between the encoder and the <code>SslHandler</code>.
+ */
+public class MessengerFlushHandler extends ChannelOutboundHandlerAdapter {
+    private static final String TAG = Constants.createTag(MessengerFlushHandler.class);
+
+    /** Maximum plaintext size of a TLS record. */
+    private static final int MAX_PENDING_BYTES = 16 * 1024;
+
+    private final AtomicLong mFrameCount = new AtomicLong();
+    private final AtomicLong mFlushCount = new AtomicLong();
+
+    private ChannelHandlerContext mContext;
+    private int mPendingFrames = 0;
+    private int mPendingBytes = 0;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flushNow(mContext);
+        }
+    };
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mContext = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        mPendingFrames++;
+
+        if (msg instanceof ByteBuf) {
+            mPendingBytes += ((ByteBuf) msg).readableBytes();
+        }
+
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (mPendingBytes >= MAX_PENDING_BYTES) {
+            flushNow(ctx);
+            return;
+        }
+
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            ctx.channel().eventLoop().execute(mFlushTask);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        // Don't lose anything still waiting for the end of the turn.
+        flushNow(ctx);
+        ctx.close(promise);
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        if (mPendingFrames == 0) {
+            return;
+        }
+
+        mFrameCount.addAndGet(mPendingFrames);
+        mFlushCount.incrementAndGet();
+
+        Log.v(TAG, String.format("Flushing %s frames (%s bytes)", mPendingFrames, mPendingBytes));
+
+        mPendingFrames = 0;
+        mPendingBytes = 0;
+
+        ctx.flush();
+    }
+
+    /**
+     * Returns the number of frames written to the socket.
+     *
+     * @return
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * Returns the number of flushes that have reached the socket.
+     *
+     * @return
+     */
+    public long getFlushCount() {
+        return mFlushCount.get();
+    }
+
+    /**
+     * Returns the mean number of frames sent per flush.
+     *
+     * @return
+     */
+    public double getFramesPerFlush() {
+        long flushes = mFlushCount.get();
+        return flushes == 0 ? 0 : (double) mFrameCount.get() / flushes;
+    }
+}
@@ -0,0 +1,246 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.DecoderException;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Inflates the server's stream once it has agreed to compress it.
+ *
+ * Compression is negotiated with a <code>CompressCommand</code>, and the server starts its zlib
+ * stream straight after the line feed of its reply. As the reply may arrive in the same read as
+ * the first compressed bytes, the handler is armed when the request is sent and watches the start
+ * of each frame from then on. A zlib stream starts with <code>0x78</code>, which can never start
+ * a JSON frame, so the switch happens at exactly the right byte, before the frame decoder sees
+ * any of it.
+ *
+ * Until armed, and once disarmed, bytes pass through untouched.
+ *
+ * Sits between the <code>SslHandler</code> and the frame decoder. All methods must be called on
+ * the channel's event loop.
+ */
+public class MessengerInflateHandler extends ChannelInboundHandlerAdapter {
+    private static final String TAG = Constants.createTag(MessengerInflateHandler.class);
+
+    /** The name of the preset dictionary, sent to the server when negotiating. */
+    public static final String DICTIONARY_NAME = "robust-1";
+
+    /**
+     * The preset dictionary, shared with the server. The most common strings are last, as they
+     * are the cheapest to refer back to.
+     */
+    static final byte[] DICTIONARY = ("{\"type\":\"user\",\"user\":{\"bio\":\"" +
+            "\",\"location\":\"\",\"timezone\":\",\"twitter_uid\":\"\",\"display_picture\":\"" +
+            "https://pbs.twimg.com/profile_images/\",\"display_picture_large\":\"" +
+            "\",\"channels\":[\"{\"type\":\"join\",\"target\":\"" +
+            "{\"type\":\"backlog\",\"from_date\":\"to_date\":\"count\":\"messages\":[" +
+            "{\"type\":\"message\",\"subtype\":\"\",\"id\":\"\",\"body\":\"" +
+            "\",\"target\":\"#\",\"ts\":\",\"from\":{\"id\":\"\",\"handle\":\"\",\"name\":\"" +
+            "\"}},").getBytes(Charset.forName("UTF-8"));
+
+    private static final byte ZLIB_HEADER = 0x78;
+
+    private static final int INFLATE_CHUNK_SIZE = 8192;
+
+    private static final int STATE_PLAIN = 0;
+    private static final int STATE_ARMED = 1;
+    private static final int STATE_INFLATING = 2;
+
+    private int mState = STATE_PLAIN;
+    private boolean mAtFrameStart = true;
+    private Inflater mInflater;
+
+    private long mCompressedBytes = 0;
+    private long mInflatedBytes = 0;
+    private long mInflateNanos = 0;
+
+    /**
+     * Starts watching for the server's compressed stream. Must be called before the server sends
+     * any frames, as only then is the next byte known to start a frame.
+     */
+    public void arm() {
+        if (mState == STATE_PLAIN) {
+            mState = STATE_ARMED;
+        }
+    }
+
+    /**
+     * Stops watching for a compressed stream, for when the server refuses or doesn't reply.
+     */
+    public void disarm() {
+        if (mState == STATE_ARMED) {
+            mState = STATE_PLAIN;
+        }
+    }
+
+    /**
+     * Returns whether the server's stream is currently being inflated.
+     *
+     * @return
+     */
+    public boolean isInflating() {
+        return mState == STATE_INFLATING;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (mState == STATE_PLAIN || !(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        ByteBuf in = (ByteBuf) msg;
+
+        try {
+            if (mState == STATE_ARMED) {
+                passFrames(ctx, in);
+            }
+
+            if (mState == STATE_INFLATING && in.isReadable()) {
+                inflate(ctx, in);
+            }
+        } finally {
+            in.release();
+        }
+    }
+
+    /**
+     * Passes through plain frames until the start of a zlib stream is found.
+     */
+    private void passFrames(ChannelHandlerContext ctx, ByteBuf in) {
+        while (in.isReadable()) {
+            if (mAtFrameStart && in.getByte(in.readerIndex()) == ZLIB_HEADER) {
+                Log.d(TAG, "Server stream is now compressed.");
+                mState = STATE_INFLATING;
+                mInflater = new Inflater();
+                return;
+            }
+
+            int eol = in.forEachByte(ByteBufProcessor.FIND_LF);
+
+            if (eol < 0) {
+                mAtFrameStart = false;
+                ctx.fireChannelRead(in.readSlice(in.readableBytes()).retain());
+                return;
+            }
+
+            mAtFrameStart = true;
+            ctx.fireChannelRead(in.readSlice(eol + 1 - in.readerIndex()).retain());
+        }
+    }
+
+    /**
+     * Inflates what has arrived, passing it on in chunks of <code>INFLATE_CHUNK_SIZE</code> as
+     * they are produced, so that a small read of a highly compressed backlog never reaches the
+     * frame decoder as one huge buffer.
+     */
+    private void inflate(ChannelHandlerContext ctx, ByteBuf in) {
+        int length = in.readableBytes();
+
+        byte[] input = new byte[length];
+        in.readBytes(input);
+        mInflater.setInput(input);
+        mCompressedBytes += length;
+
+        while (!mInflater.finished()) {
+            ByteBuf out = ctx.alloc().heapBuffer(INFLATE_CHUNK_SIZE, INFLATE_CHUNK_SIZE);
+            long start = System.nanoTime();
+            int n;
+
+            try {
+                n = mInflater.inflate(out.array(), out.arrayOffset(), INFLATE_CHUNK_SIZE);
+            } catch (DataFormatException e) {
+                out.release();
+                throw new DecoderException(e);
+            } finally {
+                mInflateNanos += System.nanoTime() - start;
+            }
+
+            if (n > 0) {
+                out.writerIndex(n);
+                mInflatedBytes += n;
+                ctx.fireChannelRead(out);
+                continue;
+            }
+
+            out.release();
+
+            if (mInflater.needsDictionary()) {
+                mInflater.setDictionary(DICTIONARY);
+            } else {
+                break;
+            }
+        }
+
+        if (mInflater.finished()) {
+            // The server ended its compressed stream; anything left is plain again.
+            int remaining = mInflater.getRemaining();
+            mCompressedBytes -= remaining;
+
+            finishInflater();
+            mState = STATE_PLAIN;
+
+            if (remaining > 0) {
+                ctx.fireChannelRead(ctx.alloc().buffer(remaining)
+                        .writeBytes(input, length - remaining, remaining));
+            }
+        }
+    }
+
+    private void finishInflater() {
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+
+            Log.i(TAG, String.format("Inflated %s bytes to %s bytes in %s ms",
+                    mCompressedBytes, mInflatedBytes, getInflateTimeMillis()));
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        finishInflater();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        finishInflater();
+    }
+
+    /**
+     * Returns the number of compressed bytes received.
+     *
+     * @return
+     */
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    /**
+     * Returns the number of bytes the compressed bytes inflated to.
+     *
+     * @return
+     */
+    public long getInflatedBytes() {
+        return mInflatedBytes;
+    }
+
+    /**
+     * Returns the total time spent inflating, in milliseconds.
+     *
+     * @return
+     */
+    public long getInflateTimeMillis() {
+        return mInflateNanos / 1000000;
+    }
+}
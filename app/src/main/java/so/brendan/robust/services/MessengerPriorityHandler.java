@@ -0,0 +1,218 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.ChannelPromiseNotifier;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.LatencyHistogram;
+
+/**
+ * Orders outgoing commands by priority, so that what the user types isn't stuck behind bulk
+ * requests when the connection is congested.
+ *
+ * Commands wait in one of three lanes until flushed:
+ *
+ * - Control (pings, pongs, authentication and negotiation) is always written straight away.
+ * - Interactive (messages, joins and parts) is written before any bulk traffic.
+ * - Bulk (backlog and user lookups, and anything else) is written last.
+ *
+ * Interactive and bulk commands are only passed on while the channel is writable; once Netty's
+ * outbound buffer passes its high water mark, they wait here, in order within their lane, until
+ * it drains. Sits before the encoder, so commands are only encoded once they leave.
+ *
+ * When the connection is replaced, the commands still waiting are moved to the new channel,
+ * along with anything written here afterwards.
+ */
+public class MessengerPriorityHandler extends ChannelDuplexHandler {
+    private static final String TAG = Constants.createTag(MessengerPriorityHandler.class);
+
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_INTERACTIVE = 1;
+    public static final int LANE_BULK = 2;
+
+    private static final int LANE_COUNT = 3;
+
+    /** How many queueing delays are kept. */
+    private static final int DELAY_WINDOW = 64;
+
+    private final ArrayDeque<Pending>[] mLanes;
+    private final LatencyHistogram mInteractiveDelay = new LatencyHistogram(DELAY_WINDOW);
+
+    /** The channel commands are forwarded to once this one has been replaced, or null. */
+    private Channel mTarget;
+
+    private static class Pending {
+        private final Object mMessage;
+        private final ChannelPromise mPromise;
+        private final long mQueuedNanos;
+
+        Pending(Object message, ChannelPromise promise) {
+            mMessage = message;
+            mPromise = promise;
+            mQueuedNanos = System.nanoTime();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public MessengerPriorityHandler() {
+        mLanes = new ArrayDeque[LANE_COUNT];
+
+        for (int i = 0; i < LANE_COUNT; ++i) {
+            mLanes[i] = new ArrayDeque<Pending>();
+        }
+    }
+
+    /**
+     * Returns the lane a command is sent in.
+     *
+     * @param command
+     * @return
+     */
+    public static int getLane(RobustCommand command) {
+        String type = command.getType();
+
+        if (RobustCommand.TYPE_PING.equals(type) ||
+                RobustCommand.TYPE_PONG.equals(type) ||
+                RobustCommand.TYPE_AUTH.equals(type) ||
+                RobustCommand.TYPE_FRAMING.equals(type) ||
+                RobustCommand.TYPE_COMPRESS.equals(type)) {
+            return LANE_CONTROL;
+        }
+
+        if (RobustCommand.TYPE_MESSAGE.equals(type) ||
+                RobustCommand.TYPE_JOIN.equals(type) ||
+                RobustCommand.TYPE_PART.equals(type)) {
+            return LANE_INTERACTIVE;
+        }
+
+        return LANE_BULK;
+    }
+
+    /**
+     * Returns how long interactive commands have recently waited for the channel.
+     *
+     * @return
+     */
+    public LatencyHistogram getInteractiveDelay() {
+        return mInteractiveDelay.copy();
+    }
+
+    /**
+     * Moves the commands waiting here to another channel, highest priority first, and forwards
+     * any written from now on. Only call on the event loop both channels share.
+     *
+     * @param channel
+     */
+    void transferTo(Channel channel) {
+        mTarget = channel;
+
+        int moved = 0;
+
+        for (ArrayDeque<Pending> lane : mLanes) {
+            Pending pending;
+
+            while ((pending = lane.poll()) != null) {
+                forward(pending.mMessage, pending.mPromise);
+                moved++;
+            }
+        }
+
+        Log.d(TAG, String.format("Moved %s waiting commands to the new channel", moved));
+
+        channel.flush();
+    }
+
+    private void forward(Object msg, ChannelPromise promise) {
+        mTarget.write(msg).addListener(new ChannelPromiseNotifier(promise));
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception {
+        if (mTarget != null && msg instanceof RobustCommand) {
+            forward(msg, promise);
+            mTarget.flush();
+            return;
+        }
+
+        if (!(msg instanceof RobustCommand)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        mLanes[getLane((RobustCommand) msg)].add(new Pending(msg, promise));
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        drain(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drain(ctx);
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failAll();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        failAll();
+    }
+
+    /**
+     * Passes on queued commands, highest priority first, for as long as the channel is writable,
+     * then flushes.
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        Pending pending;
+
+        while ((pending = mLanes[LANE_CONTROL].poll()) != null) {
+            ctx.write(pending.mMessage, pending.mPromise);
+        }
+
+        for (int lane = LANE_INTERACTIVE; lane < LANE_COUNT; ++lane) {
+            while (ctx.channel().isWritable() && (pending = mLanes[lane].poll()) != null) {
+                if (lane == LANE_INTERACTIVE) {
+                    mInteractiveDelay.record((System.nanoTime() - pending.mQueuedNanos) / 1000000);
+                }
+
+                ctx.write(pending.mMessage, pending.mPromise);
+            }
+        }
+
+        int waiting = mLanes[LANE_INTERACTIVE].size() + mLanes[LANE_BULK].size();
+
+        if (waiting > 0) {
+            Log.v(TAG, String.format("%s commands waiting for the channel", waiting));
+        }
+
+        ctx.flush();
+    }
+
+    private void failAll() {
+        for (ArrayDeque<Pending> lane : mLanes) {
+            Pending pending;
+
+            while ((pending = lane.poll()) != null) {
+                pending.mPromise.tryFailure(new ClosedChannelException());
+            }
+        }
+    }
+}
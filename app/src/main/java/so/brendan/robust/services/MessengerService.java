@@ -10,40 +10,66 @@ import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.util.LruCache;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.parceler.Parcels;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLSession;
 
+import io.netty.channel.ChannelException;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import so.brendan.robust.App;
 import so.brendan.robust.R;
 import so.brendan.robust.activities.MainActivity;
 import so.brendan.robust.db.DatabaseHelper;
+import so.brendan.robust.db.DatabaseWriter;
 import so.brendan.robust.interactors.SessionAuthenticator;
 import so.brendan.robust.interactors.TwitterSessionAuthenticator;
+import so.brendan.robust.listeners.OnCommandReplyListener;
 import so.brendan.robust.listeners.OnSessionEventListener;
+import so.brendan.robust.models.ConnectionTimings;
+import so.brendan.robust.models.InboundQueueStats;
+import so.brendan.robust.models.StageStats;
+import so.brendan.robust.models.OutboxEntry;
 import so.brendan.robust.models.RobustSessionState;
 import so.brendan.robust.models.RobustUser;
 import so.brendan.robust.models.TLSSessionData;
 import so.brendan.robust.models.commands.AuthCommand;
 import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.CompressCommand;
 import so.brendan.robust.models.commands.ErrorCommand;
+import so.brendan.robust.models.commands.FramingCommand;
 import so.brendan.robust.models.commands.JoinCommand;
 import so.brendan.robust.models.commands.MessageCommand;
 import so.brendan.robust.models.commands.PartCommand;
 import so.brendan.robust.models.commands.RobustCommand;
 import so.brendan.robust.models.commands.UserCommand;
+import so.brendan.robust.receivers.ConnectivityReceiver;
+import so.brendan.robust.receivers.TrustStoreReceiver;
 import so.brendan.robust.utils.BackgroundIntentService;
 import so.brendan.robust.utils.BusProvider;
 import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.HeartbeatIntervals;
 import so.brendan.robust.utils.PicassoNotificationHelper;
 import so.brendan.robust.utils.RobustPreferences;
+import so.brendan.robust.utils.SslContextProvider;
 
 /**
  * The messenger service.
@@ -71,12 +97,36 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
     /** Holds the authentication secret. */
     public static final String EXTRA_SECRET = Constants.createExtra("SECRET");
 
+    /** Holds the path of a wire capture file. */
+    public static final String EXTRA_PATH = Constants.createExtra("PATH");
+
+    /** Holds whether a capture is replayed at the pace it was recorded. */
+    public static final String EXTRA_REALTIME = Constants.createExtra("REALTIME");
+
+    /** Holds the key a command is kept under in the outbox. */
+    public static final String EXTRA_OUTBOX_KEY = Constants.createExtra("OUTBOX_KEY");
+
+    /** Holds the token identifying a request and its reply listener. */
+    public static final String EXTRA_REQUEST_TOKEN = Constants.createExtra("REQUEST_TOKEN");
+
     /** Size of the user cache (in users) */
     private static final int MAX_USER_CACHE_SIZE = 100;
 
     /** The ID for notifications */
     private static final int ID_NOTIFICATION = 1;
 
+    /** The directory wire captures are exported to, within the app's files directory. */
+    private static final String CAPTURE_DIRECTORY = "captures";
+
+    /** The most outbox entries sent in one flush. */
+    private static final int OUTBOX_BATCH_SIZE = 50;
+
+    /** How long to wait for the reply to a request. */
+    private static final long REQUEST_TIMEOUT_MILLIS = 15 * 1000;
+
+    /** How long to wait for a batch of outbox entries to be written. */
+    private static final long OUTBOX_WRITE_TIMEOUT_MILLIS = 10 * 1000;
+
     /** Dismisses any notifications that are present. */
     public static final String ACTION_DISMISS_NOTIFICATION =
             Constants.createAction("DISMISS_NOTIFICATION");
@@ -97,9 +147,28 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
     public static final String ACTION_SESSION_TLS =
             Constants.createAction("SESSION_TLS");
 
+    /** Requests the connection phase timings and inbound queue metrics of the current session. */
+    public static final String ACTION_SESSION_TIMINGS =
+            Constants.createAction("SESSION_TIMINGS");
+
     /** Sends a command to the Robust service through the current session. */
     public static final String ACTION_SEND_COMMAND = Constants.createAction("SEND_COMMAND");
 
+    /** Sends a request through the current session, and passes its reply to a listener. */
+    public static final String ACTION_REQUEST_COMMAND = Constants.createAction("REQUEST_COMMAND");
+
+    /** Sends the commands waiting in the outbox through the current session. */
+    public static final String ACTION_OUTBOX_DRAIN = Constants.createAction("OUTBOX_DRAIN");
+
+    /** Moves sessions to the active network, or reconnects them, after a network change. */
+    public static final String ACTION_NETWORK_CHANGED = Constants.createAction("NETWORK_CHANGED");
+
+    /** Writes the wire capture to a file. */
+    public static final String ACTION_CAPTURE_EXPORT = Constants.createAction("CAPTURE_EXPORT");
+
+    /** Replays a wire capture file through the command handlers. */
+    public static final String ACTION_CAPTURE_REPLAY = Constants.createAction("CAPTURE_REPLAY");
+
     /** Whether notifications are currently allowed. */
     private static boolean sAllowNotifications = true;
 
@@ -107,16 +176,45 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
     private static final LruCache<String, RobustUser> sUserCache =
             new LruCache<String, RobustUser>(MAX_USER_CACHE_SIZE);
 
-    /** Holds the current sessions */
-    private HashMap<String, RobustSession> mSessions =
-            new HashMap<String, RobustSession>();
+    /** Requests waiting for replies, by token. */
+    private static final HashMap<String, PendingReply> sPendingReplies =
+            new HashMap<String, PendingReply>();
+
+    /**
+     * A request made through <code>requestCommand</code>, and the future of its reply once sent.
+     */
+    private static class PendingReply {
+        private final OnCommandReplyListener mListener;
+        private Future<RobustCommand> mFuture;
+
+        PendingReply(OnCommandReplyListener listener) {
+            mListener = listener;
+        }
+    }
+
+    /** Holds the handlers for each received command type. */
+    private final HashMap<String, CommandHandler> mCommandHandlers =
+            new HashMap<String, CommandHandler>();
+
+    /**
+     * Holds the current sessions. Read from event loops and the persistence thread as well as
+     * the service thread, which is the only one to add to it.
+     */
+    private final ConcurrentHashMap<String, RobustSession> mSessions =
+            new ConcurrentHashMap<String, RobustSession>();
 
     /** Holds state for when the service is purposely killing sessions. */
     private boolean mIsClosing;
 
-    /** Holds the notification messages state */
+    /** Holds the notification messages state. Only touched on the main thread. */
     private ArrayList<MessageCommand> mNotificationMessages;
 
+    /** Rebuilds the shared SSL context when the trust store changes. */
+    private final TrustStoreReceiver mTrustStoreReceiver = new TrustStoreReceiver();
+
+    /** Moves sessions to a new network when the active one changes. */
+    private final ConnectivityReceiver mConnectivityReceiver = new ConnectivityReceiver();
+
     private RobustPreferences mPreferences;
     private EventLoopGroup mEventLoopGroup;
     private NotificationCompat.Builder mNotificationBuilder;
@@ -238,6 +336,9 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
     /**
      * Sends a Robust command to the specified session.
      *
+     * Messages, joins and parts are kept in the outbox until they can be sent, so they survive
+     * the session being down and the process being killed.
+     *
      * @param context
      * @param host
      * @param port
@@ -246,6 +347,7 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
     public static void sendCommand(Context context, String host, int port, RobustCommand message) {
         Intent intent = createIntent(context, ACTION_SEND_COMMAND, host, port);
         intent.putExtra(EXTRA_COMMAND, Parcels.wrap(message));
+        intent.putExtra(EXTRA_OUTBOX_KEY, UUID.randomUUID().toString());
         context.startService(intent);
     }
 
@@ -260,6 +362,117 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
         sendCommand(context, prefs.getServerHost(), prefs.getServerPort(), message);
     }
 
+    /**
+     * Sends a request to the default session, passing the reply to the listener on the main
+     * thread rather than posting it to the bus.
+     *
+     * @param context
+     * @param request a command with a correlation key, such as <code>UserCommand</code>.
+     * @param listener
+     * @return a token for cancelling the request with <code>cancelRequest</code>.
+     */
+    public static String requestCommand(Context context, RobustCommand request,
+                                        OnCommandReplyListener listener) {
+        RobustPreferences prefs = RobustPreferences.getInstance(context);
+        String token = UUID.randomUUID().toString();
+
+        synchronized (sPendingReplies) {
+            sPendingReplies.put(token, new PendingReply(listener));
+        }
+
+        Intent intent = createIntent(context, ACTION_REQUEST_COMMAND,
+                prefs.getServerHost(), prefs.getServerPort());
+        intent.putExtra(EXTRA_COMMAND, Parcels.wrap(request));
+        intent.putExtra(EXTRA_REQUEST_TOKEN, token);
+        context.startService(intent);
+
+        return token;
+    }
+
+    /**
+     * Stops waiting for the reply to a request. Its listener will not be called.
+     *
+     * @param token
+     */
+    public static void cancelRequest(String token) {
+        PendingReply pending;
+
+        synchronized (sPendingReplies) {
+            pending = sPendingReplies.remove(token);
+        }
+
+        if (pending != null && pending.mFuture != null) {
+            pending.mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Passes the outcome of a request to its listener on the main thread, unless cancelled.
+     *
+     * @param token
+     * @param future
+     */
+    private static void deliverReply(String token, final Future<RobustCommand> future) {
+        final PendingReply pending;
+
+        synchronized (sPendingReplies) {
+            pending = sPendingReplies.remove(token);
+        }
+
+        if (pending == null) {
+            return;
+        }
+
+        App.runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isSuccess()) {
+                    pending.mListener.onReply(future.getNow());
+                } else {
+                    pending.mListener.onReplyFailed(future.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves every session to the active network, or reconnects those waiting to, after a network
+     * change.
+     *
+     * @param context
+     */
+    public static void notifyNetworkChanged(Context context) {
+        Intent intent = new Intent(context, MessengerService.class);
+        intent.setAction(ACTION_NETWORK_CHANGED);
+        context.startService(intent);
+    }
+
+    /**
+     * Writes the wire capture of recent traffic to a file in the app's files directory.
+     *
+     * @param context
+     */
+    public static void exportCapture(Context context) {
+        Intent intent = new Intent(context, MessengerService.class);
+        intent.setAction(ACTION_CAPTURE_EXPORT);
+        context.startService(intent);
+    }
+
+    /**
+     * Replays a wire capture file through the command handlers, as if it had just been received.
+     *
+     * @param context
+     * @param path
+     * @param realtime whether to keep to the pace the capture was recorded at.
+     */
+    public static void replayCapture(Context context, String path, boolean realtime) {
+        Intent intent = new Intent(context, MessengerService.class);
+        intent.setAction(ACTION_CAPTURE_REPLAY);
+        intent.putExtra(EXTRA_PATH, path);
+        intent.putExtra(EXTRA_REALTIME, realtime);
+        context.startService(intent);
+    }
+
     /**
      * A convenience method for creating an intent of one of the specified constant actions and
      * running <code>startService(Intent intent)</code>.
@@ -287,6 +500,12 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
 
         mEventLoopGroup = new NioEventLoopGroup();
 
+        // Build the trust material before the first connection needs it.
+        SslContextProvider.getInstance().warm();
+        HeartbeatIntervals.getInstance().init(this);
+        registerReceiver(mTrustStoreReceiver, TrustStoreReceiver.createIntentFilter());
+        registerReceiver(mConnectivityReceiver, ConnectivityReceiver.createIntentFilter());
+
         mNotificationManager =
                 (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         mNotificationBuilder = new NotificationCompat.Builder(this)
@@ -296,6 +515,8 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
                 .setAutoCancel(true);
         mNotificationMessages = new ArrayList<MessageCommand>();
 
+        registerCommandHandlers();
+
         BusProvider.getInstance().register(this);
     }
 
@@ -303,6 +524,8 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
     public void onDestroy() {
         Log.d(TAG, "destroyed service");
         mIsClosing = true;
+        unregisterReceiver(mTrustStoreReceiver);
+        unregisterReceiver(mConnectivityReceiver);
         mEventLoopGroup.shutdownGracefully();
         stopSelf();
         super.onDestroy();
@@ -342,11 +565,13 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
         RobustSession session = mSessions.get(hostString);
         if (session == null) {
             Log.d(TAG, "Creating new session.");
-            session = new RobustSession(mEventLoopGroup, host, port, authenticator, listener);
+            WireCapture.getInstance().setEnabled(mPreferences.hasWireCapture());
+            session = new RobustSession(mEventLoopGroup, host, port, authenticator, listener,
+                    mPreferences.hasStreamCompression(), mPreferences.hasBinaryFraming());
             mSessions.put(hostString, session);
         } else if (!session.isAuthenticated() && authenticator != null) {
             Log.d(TAG, "Setting authenticator and authenticating.");
-            Log.d(TAG, String.format("%s %s", session.isAuthenticated(), session.getState().toString()));
+            Log.d(TAG, String.format("%s %s", session.isAuthenticated(), session.getState()));
             session.setAuthenticator(authenticator);
             session.authenticate();
         }
@@ -404,12 +629,61 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
 
         RobustSession session = getSession(host, port);
 
-        if (session != null) {
-            session.restart();
-        } else {
+        if (session == null) {
             handleSessionInit(intent);
+        } else if (session.isFinished()) {
+            // Waiting to reconnect, so skip the wait.
+            retryNow(session);
+        } else {
+            session.restart();
         }
     }
+    /**
+     * Handler for <code>ACTION_NETWORK_CHANGED</code>.
+     *
+     * Sessions waiting to reconnect do so straight away. Connected sessions on another network
+     * move to a new connection, keeping the old one until the new one is ready, as it may still
+     * work for a while, or not at all.
+     *
+     * @param intent
+     */
+    private void handleNetworkChanged(Intent intent) {
+        String networkKey = HeartbeatIntervals.getInstance().getNetworkKey();
+
+        if (networkKey.equals(HeartbeatIntervals.NETWORK_NONE)) {
+            Log.d(TAG, "No network; waiting for one.");
+            return;
+        }
+
+        for (RobustSession session : mSessions.values()) {
+            if (session.isFinished()) {
+                retryNow(session);
+            } else if (!networkKey.equals(session.getNetworkKey())) {
+                session.migrate();
+            }
+        }
+    }
+
+    /**
+     * Reconnects a finished session straight away, skipping the wait if a reconnect is scheduled,
+     * or starting one if none is, as when the session finished without an error or was finished
+     * on purpose.
+     *
+     * @param session
+     */
+    private void retryNow(RobustSession session) {
+        if (session.retryNow()) {
+            return;
+        }
+
+        try {
+            session.reconnect();
+        } catch (ChannelException e) {
+            // Started connecting again meanwhile.
+            Log.d(TAG, String.format("Not reconnecting; %s", e.getMessage()));
+        }
+    }
+
     /**
      * Handler for <code>ACTION_SESSION_STATE</code>.
      *
@@ -441,10 +715,154 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
 
         RobustSession session = getSession(host, port);
 
+        if (DatabaseHelper.Outbox.isQueueable(message)) {
+            String key = intent.getStringExtra(EXTRA_OUTBOX_KEY);
+
+            if (key == null) {
+                key = UUID.randomUUID().toString();
+            }
+
+            OutboxEntry entry = DatabaseHelper.Outbox.enqueue(this, key, message);
+
+            if (entry != null) {
+                BusProvider.getInstance().post(entry);
+            }
+
+            for (OutboxEntry dropped : DatabaseHelper.Outbox.trim(this)) {
+                BusProvider.getInstance().post(dropped.withState(OutboxEntry.STATE_DROPPED));
+            }
+
+            drainOutbox(session);
+        } else if (session != null && session.isAuthenticated()) {
+            if (message instanceof BacklogCommand) {
+                // Its reply shares the key of any catch-up request for the same channel, so it
+                // must wait in line with them rather than complete one. It is posted to the bus
+                // either way.
+                session.request(message, REQUEST_TIMEOUT_MILLIS).addListener(
+                        new GenericFutureListener<Future<RobustCommand>>() {
+                    @Override
+                    public void operationComplete(Future<RobustCommand> future) {
+                        if (!future.isSuccess()) {
+                            Log.w(TAG, String.format("Backlog request failed: %s",
+                                    future.cause()));
+                        }
+                    }
+                });
+            } else {
+                session.sendMessage(message);
+            }
+        } else {
+            Log.w(TAG, String.format("Dropped %s; no session for %s", message.getType(),
+                    formatHostString(host, port)));
+        }
+    }
+
+    /**
+     * Handler for <code>ACTION_REQUEST_COMMAND</code>.
+     *
+     * @param intent
+     */
+    private void handleRequestCommand(Intent intent) {
+        String host = intent.getStringExtra(EXTRA_HOST);
+        int port = intent.getIntExtra(EXTRA_PORT, -1);
+        final String token = intent.getStringExtra(EXTRA_REQUEST_TOKEN);
+
+        RobustCommand request = Parcels.unwrap(intent.getParcelableExtra(EXTRA_COMMAND));
+        RobustSession session = getSession(host, port);
+
+        Future<RobustCommand> future;
+
         if (session != null) {
-            session.sendMessage(message);
+            future = session.request(request, REQUEST_TIMEOUT_MILLIS);
         } else {
-            Log.w(TAG, String.format("Attempted to send command to null session %s:%s", host, port));
+            future = ImmediateEventExecutor.INSTANCE.newFailedFuture(new IllegalStateException(
+                    String.format("No session for %s", formatHostString(host, port))));
+        }
+
+        synchronized (sPendingReplies) {
+            PendingReply pending = sPendingReplies.get(token);
+
+            if (pending == null) {
+                // Cancelled before it was sent.
+                future.cancel(false);
+                return;
+            }
+
+            pending.mFuture = future;
+        }
+
+        future.addListener(new GenericFutureListener<Future<RobustCommand>>() {
+            @Override
+            public void operationComplete(Future<RobustCommand> future) throws Exception {
+                deliverReply(token, future);
+            }
+        });
+    }
+
+    /**
+     * Handler for <code>ACTION_OUTBOX_DRAIN</code>.
+     *
+     * @param intent
+     */
+    private void handleOutboxDrain(Intent intent) {
+        String host = intent.getStringExtra(EXTRA_HOST);
+        int port = intent.getIntExtra(EXTRA_PORT, -1);
+
+        drainOutbox(getSession(host, port));
+    }
+
+    /**
+     * Sends the entries in the outbox through a session, oldest first, in batches of
+     * <code>OUTBOX_BATCH_SIZE</code> with one flush each.
+     *
+     * An entry is removed once written. Sending stops at the first entry that fails, so that
+     * the order is kept; it is tried again on the next drain.
+     *
+     * @param session
+     */
+    private void drainOutbox(RobustSession session) {
+        if (session == null || !session.isAuthenticated()) {
+            return;
+        }
+
+        List<OutboxEntry> entries;
+
+        while (!(entries = DatabaseHelper.Outbox.getQueued(this, OUTBOX_BATCH_SIZE)).isEmpty()) {
+            ArrayList<RobustCommand> commands = new ArrayList<RobustCommand>(entries.size());
+            ArrayList<OutboxEntry> sendable = new ArrayList<OutboxEntry>(entries.size());
+
+            for (OutboxEntry entry : entries) {
+                if (entry.getCommand() == null) {
+                    DatabaseHelper.Outbox.remove(this, entry.getRowId());
+                    BusProvider.getInstance().post(entry.withState(OutboxEntry.STATE_DROPPED));
+                } else {
+                    commands.add(entry.getCommand());
+                    sendable.add(entry);
+                }
+            }
+
+            if (commands.isEmpty()) {
+                continue;
+            }
+
+            List<Future<Void>> futures = session.sendMessages(commands);
+
+            for (int i = 0; i < futures.size(); ++i) {
+                OutboxEntry entry = sendable.get(i);
+                Future<Void> future = futures.get(i);
+
+                if (!future.awaitUninterruptibly(OUTBOX_WRITE_TIMEOUT_MILLIS) ||
+                        !future.isSuccess()) {
+                    Log.w(TAG, String.format("Could not send %s", entry), future.cause());
+                    DatabaseHelper.Outbox.markFailed(this, entry.getRowId());
+                    return;
+                }
+
+                DatabaseHelper.Outbox.remove(this, entry.getRowId());
+                BusProvider.getInstance().post(entry.withState(OutboxEntry.STATE_SENT));
+            }
+
+            Log.d(TAG, String.format("Sent %s commands from the outbox", sendable.size()));
         }
     }
 
@@ -454,8 +872,15 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
      * @param intent
      */
     private void handleDismissNotification(Intent intent) {
-        mNotificationManager.cancel(ID_NOTIFICATION);
-        mNotificationMessages.clear();
+        // Queued behind any notification still to be shown, which would otherwise bring back the
+        // dismissed messages.
+        PublishQueue.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                mNotificationManager.cancel(ID_NOTIFICATION);
+                mNotificationMessages.clear();
+            }
+        });
     }
 
     /**
@@ -470,11 +895,121 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
         RobustSession session = getSession(host, port);
 
         SSLSession sslSession = null;
+        boolean resumed = false;
+        long handshakeMillis = -1;
+
         if (session != null && session.getSSLSession() != null) {
             sslSession = session.getSSLSession();
+            resumed = session.isSSLSessionResumed();
+            handshakeMillis = session.getHandshakeMillis();
+        }
+
+        BusProvider.getInstance().post(new TLSSessionData(sslSession, resumed, handshakeMillis));
+    }
+
+    /**
+     * Handler for <code>ACTION_SESSION_TIMINGS</code>.
+     *
+     * @param intent
+     */
+    private void handleSessionTimings(Intent intent) {
+        String host = intent.getStringExtra(EXTRA_HOST);
+        int port = intent.getIntExtra(EXTRA_PORT, -1);
+
+        RobustSession session = getSession(host, port);
+
+        if (session == null) {
+            Log.w(TAG, String.format("No session for %s", formatHostString(host, port)));
+            return;
+        }
+
+        ConnectionTimings timings = session.getConnectionTimings();
+        InboundQueueStats inbound = session.getInboundQueueStats();
+
+        Log.i(TAG, String.format("Connection timings for %s", timings));
+        Log.i(TAG, inbound.toString());
+        Log.i(TAG, String.format("Interactive send delay: %s", session.getInteractiveSendDelay()));
+        BusProvider.getInstance().post(timings);
+        BusProvider.getInstance().post(inbound);
+
+        for (StageStats stage : session.getPipelineStats()) {
+            Log.i(TAG, stage.toString());
+            BusProvider.getInstance().post(stage);
         }
+    }
+
+    /**
+     * Handler for <code>ACTION_CAPTURE_EXPORT</code>.
+     *
+     * @param intent
+     */
+    private void handleCaptureExport(Intent intent) {
+        File dir = new File(getFilesDir(), CAPTURE_DIRECTORY);
 
-        BusProvider.getInstance().post(new TLSSessionData(sslSession));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, String.format("Could not create %s", dir));
+            return;
+        }
+
+        File file = new File(dir, String.format("capture-%s.rbcap", System.currentTimeMillis()));
+        OutputStream out = null;
+
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            WireCapture.getInstance().writeTo(out);
+
+            Log.i(TAG, String.format("Wire capture written to %s (%s entries dropped)",
+                    file, WireCapture.getInstance().getDroppedCount()));
+        } catch (IOException e) {
+            Log.e(TAG, "Error while writing wire capture", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Handler for <code>ACTION_CAPTURE_REPLAY</code>.
+     *
+     * Replayed commands go through the same handlers as received ones, so are stored and posted
+     * to the bus like any others.
+     *
+     * @param intent
+     */
+    private void handleCaptureReplay(Intent intent) {
+        String path = intent.getStringExtra(EXTRA_PATH);
+        boolean realtime = intent.getBooleanExtra(EXTRA_REALTIME, false);
+
+        if (path == null) {
+            Log.e(TAG, "No wire capture path provided.");
+            return;
+        }
+
+        InputStream in = null;
+
+        try {
+            in = new BufferedInputStream(new FileInputStream(path));
+            List<WireCapture.Entry> entries = WireCapture.readFrom(in);
+
+            new WireReplay(this).replay(entries, realtime);
+        } catch (IOException e) {
+            Log.e(TAG, String.format("Error while reading wire capture %s", path), e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Wire capture replay interrupted.");
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error while closing stream", e);
+        }
     }
 
     /**
@@ -504,6 +1039,8 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
             handleSessionState(intent);
         } else if (action.equals(ACTION_SESSION_TLS)) {
             handleSessionTLS(intent);
+        } else if (action.equals(ACTION_SESSION_TIMINGS)) {
+            handleSessionTimings(intent);
         } else if (action.equals(ACTION_SESSION_INITIALISE)) {
             handleSessionInit(intent);
         } else if (action.equals(ACTION_SEND_COMMAND)) {
@@ -512,96 +1049,204 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
             handleDismissNotification(intent);
         } else if (action.equals(ACTION_SESSION_RECONNECT)) {
             handleSessionReconnect(intent);
+        } else if (action.equals(ACTION_REQUEST_COMMAND)) {
+            handleRequestCommand(intent);
+        } else if (action.equals(ACTION_OUTBOX_DRAIN)) {
+            handleOutboxDrain(intent);
+        } else if (action.equals(ACTION_NETWORK_CHANGED)) {
+            handleNetworkChanged(intent);
+        } else if (action.equals(ACTION_CAPTURE_EXPORT)) {
+            handleCaptureExport(intent);
+        } else if (action.equals(ACTION_CAPTURE_REPLAY)) {
+            handleCaptureReplay(intent);
         } else {
             Log.w(TAG, "Unhandled intent: " + action);
         }
     }
 
     /**
-     * Gets the <code>type</code> parameter from a raw JSON message from the Robust server.
+     * A handler for a single type of command received from the Robust session.
+     */
+    private interface CommandHandler {
+        public void onCommand(RobustSession session, RobustCommand command);
+    }
+
+    /**
+     * Wraps a handler so that it runs on the persistence thread, through the session's
+     * <code>InboundQueue</code>, rather than on the event loop. Such handlers publish through
+     * <code>PublishQueue</code>, so that a busy main thread holds them back in turn.
      *
-     * @param json
+     * @param handler
      * @return
-     * @throws JSONException
      */
-    private String getTypeFromJSON(String json) throws JSONException {
-        JSONObject o = new JSONObject(json);
-        return o.optString(RobustCommand.PARAM_TYPE, null);
+    private static CommandHandler persisted(final CommandHandler handler) {
+        return new CommandHandler() {
+            @Override
+            public void onCommand(final RobustSession session, final RobustCommand command) {
+                session.getInboundQueue().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handler.onCommand(session, command);
+                    }
+                });
+            }
+        };
     }
 
     /**
-     * Handles raw JSON messages received from the Robust session.
+     * Registers the handlers for each command type received from the Robust server.
      *
-     * Generally passes through the command and the session to relevant handlers.
+     * Handlers run on the session's event loop, except those writing to the database, which are
+     * handed to the persistence thread.
+     */
+    private void registerCommandHandlers() {
+        mCommandHandlers.put(RobustCommand.TYPE_AUTH, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                onReceiveAuthCommand((AuthCommand) command, session);
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_MESSAGE, persisted(new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                onReceiveMessageCommand((MessageCommand) command, session);
+            }
+        }));
+
+        mCommandHandlers.put(RobustCommand.TYPE_BACKLOG, persisted(new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                onReceiveBacklogCommand((BacklogCommand) command, session);
+            }
+        }));
+
+        mCommandHandlers.put(RobustCommand.TYPE_USER, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                onReceiveUserCommand((UserCommand) command, session);
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_ERROR, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                BusProvider.getInstance().post((ErrorCommand) command);
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_JOIN, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                onReceiveJoinCommand((JoinCommand) command, session);
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_PART, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                onReceivePartCommand((PartCommand) command, session);
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_COMPRESS, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                session.onCompress((CompressCommand) command);
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_FRAMING, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                session.onFraming((FramingCommand) command);
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_PING, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                Log.d(TAG, "Ping received; responding.");
+                session.sendMessage(RobustCommand.createPong());
+            }
+        });
+
+        mCommandHandlers.put(RobustCommand.TYPE_PONG, new CommandHandler() {
+            @Override
+            public void onCommand(RobustSession session, RobustCommand command) {
+                // No response required.
+            }
+        });
+    }
+
+    /**
+     * Handles commands received from the Robust session.
+     *
+     * Passes through the command and the session to the handler registered for its type.
      *
      * @param session
-     * @param message
+     * @param command
      */
     @Override
-    public void onMessageReceived(RobustSession session, String message) {
-        String type;
-        RobustCommand command;
+    public void onCommandReceived(RobustSession session, RobustCommand command) {
+        CommandHandler handler = mCommandHandlers.get(command.getType());
 
-        Log.d(TAG, String.format("<- '%s'", message));
-
-        try {
-            type = getTypeFromJSON(message);
-        } catch (JSONException e) {
-            type = null;
-        }
-
-        if (type == null) {
-            Log.w(TAG, "received garbage message.");
-            Log.d(TAG, message);
+        if (handler == null) {
+            Log.w(TAG, String.format("No handler for message type: %s", command.getType()));
             return;
         }
 
-        if (type.equals(RobustCommand.TYPE_AUTH)) {
-            command = AuthCommand.fromJSON(message);
-            onReceiveAuthCommand((AuthCommand) command, session);
-        } else if (type.equals(RobustCommand.TYPE_MESSAGE)) {
-            command = MessageCommand.fromJSON(message);
-            onReceiveMessageCommand((MessageCommand) command, session);
-        } else if (type.equals(RobustCommand.TYPE_BACKLOG)) {
-            command = BacklogCommand.fromJSON(message);
-            onReceiveBacklogCommand((BacklogCommand) command);
-        } else if (type.equals(RobustCommand.TYPE_USER)) {
-            command = UserCommand.fromJSON(message);
-            onReceiveUserCommand((UserCommand) command);
-        } else if (type.equals(RobustCommand.TYPE_ERROR)) {
-            command = ErrorCommand.fromJSON(message);
-            BusProvider.getInstance().post((ErrorCommand) command);
-        } else if (type.equals(RobustCommand.TYPE_JOIN)) {
-            command = JoinCommand.fromJSON(message);
-            onReceiveJoinCommand((JoinCommand) command, session);
-        } else if (type.equals(RobustCommand.TYPE_PART)) {
-            command = PartCommand.fromJSON(message);
-            onReceivePartCommand((PartCommand) command, session);
-        } else if (type.equals(RobustCommand.TYPE_PING)) {
-            Log.d(TAG, "Ping received; responding.");
-            session.sendMessage(RobustCommand.createPong());
-        } else if (type.equals(RobustCommand.TYPE_PONG)) {
-            ; // No response required.
-        } else {
-            Log.w(TAG, String.format("Received unknown message type: %s", type));
-            Log.d(TAG, message);
+        handler.onCommand(session, command);
+    }
+
+    /**
+     * Requests the messages of each channel newer than the newest already stored.
+     *
+     * @param session
+     * @param targets
+     * @return
+     */
+    @Override
+    public List<RobustCommand> getCatchUpRequests(RobustSession session, List<String> targets) {
+        ArrayList<RobustCommand> requests = new ArrayList<RobustCommand>(targets.size());
+
+        for (String target : targets) {
+            long fromTs = DatabaseHelper.Messages.getNewestTimestamp(this, target);
+
+            requests.add(new BacklogCommand.Builder()
+                    .setTarget(target)
+                    .setFromDate(fromTs + 1)
+                    .build());
         }
+
+        return requests;
     }
 
     /**
      * Handles <code>BacklogCommand</code>.
      *
+     * Chunks are posted to the bus even when requested, so views can show them as they arrive.
+     *
      * @param backlog
+     * @param session
      */
-    private void onReceiveBacklogCommand(BacklogCommand backlog) {
+    private void onReceiveBacklogCommand(BacklogCommand backlog, RobustSession session) {
         DatabaseHelper.Messages.upsert(this, backlog);
 
-        BusProvider.getInstance().post(backlog);
+        PublishQueue.getInstance().publish(backlog);
+        session.postCompleteRequest(backlog);
     }
 
     private void onReceiveAuthCommand(AuthCommand command, RobustSession session) {
         session.onAuth(command);
 
+        if (session.isAuthenticated()) {
+            // Drained on the service thread, as waiting for writes here would block the event
+            // loop doing the writing.
+            startService(createIntent(this, ACTION_OUTBOX_DRAIN,
+                    session.getHost(), session.getPort()));
+        }
+
         BusProvider.getInstance().post(command);
     }
 
@@ -611,28 +1256,49 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
      * @param message
      * @param session
      */
-    private void onReceiveMessageCommand(MessageCommand message, RobustSession session) {
-        boolean isNew = DatabaseHelper.Messages.upsert(this, message);
+    private void onReceiveMessageCommand(final MessageCommand message, RobustSession session) {
+        // Only wait for the write when a notification depends on it, so that messages arriving
+        // together are committed together.
+        if (!shouldNotify(message, session)) {
+            DatabaseHelper.Messages.upsert(this, message);
+        } else if (DatabaseWriter.await(DatabaseHelper.Messages.upsert(this, message))) {
+            // The notification state belongs to the main thread; see handleDismissNotification.
+            PublishQueue.getInstance().execute(new Runnable() {
+                @Override
+                public void run() {
+                    generateMessageNotification(message);
+                }
+            });
+        }
+
+        PublishQueue.getInstance().publish(message);
+    }
 
+    /**
+     * Returns whether a message highlights the session's user, and notifications are wanted.
+     *
+     * @param message
+     * @param session
+     * @return
+     */
+    private boolean shouldNotify(MessageCommand message, RobustSession session) {
         RobustUser user = session.getState().getUser();
 
-        if (isNew &&
+        return user != null &&
                 sAllowNotifications &&
                 mPreferences.hasNotificationsEnabled() &&
-                message.getBody().contains(user.getHandle())) {
-
-            generateMessageNotification(message);
-        }
-
-        BusProvider.getInstance().post(message);
+                message.getBody().contains(user.getHandle());
     }
 
     /**
      * Handles <code>UserCommand</code>.
      *
+     * Replies to requests go only to the requester; others are posted to the bus.
+     *
      * @param command
+     * @param session
      */
-    private void onReceiveUserCommand(UserCommand command) {
+    private void onReceiveUserCommand(UserCommand command, RobustSession session) {
         RobustUser user = command.getUser();
 
         if (user.getId() != null) {
@@ -641,7 +1307,9 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
             }
         }
 
-        BusProvider.getInstance().post(command);
+        if (!session.completeRequest(command)) {
+            BusProvider.getInstance().post(command);
+        }
     }
 
     /**
@@ -652,7 +1320,7 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
      */
     private void onReceiveJoinCommand(JoinCommand command, RobustSession session) {
         String target = command.getTarget();
-        session.getState().addChannel(target);
+        session.onJoined(target);
 
         BusProvider.getInstance().post(command);
     }
@@ -665,7 +1333,7 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
      */
     private void onReceivePartCommand(PartCommand command, RobustSession session) {
         String target = command.getTarget();
-        session.getState().removeChannel(target);
+        session.onParted(target);
 
         BusProvider.getInstance().post(command);
     }
@@ -700,7 +1368,7 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
     }
 
     /**
-     * Generates notifications for relevant messages.
+     * Generates notifications for relevant messages. Only call on the main thread.
      *
      * Shows a list of recent highlights (user's handle being said in a channel).
      *
@@ -842,41 +1510,14 @@ public class MessengerService extends BackgroundIntentService implements OnSessi
      */
     @Override
     public void onSessionFinished(RobustSession session) {
-        final String host = session.getHost();
-        final int port = session.getPort();
-
-        final String hostString = formatHostString(host, port);
-
-        broadcastSessionState(session);
-
         if (!mIsClosing && session.hasError()) {
-            Log.e(TAG, "Session has error.", session.getError());
-
-            int retries = session.getRetries();
-
-            if (retries >= 3) {
-                Log.i(TAG, String.format("Failed to reconnect. (%s)", hostString));
-                mSessions.remove(hostString);
-                return;
-            }
-
-            int timeout = (retries + 1) * 3;
+            Log.e(TAG, String.format("Session has error. (%s)", session), session.getError());
 
-            Log.i(TAG, String.format("Reconnecting in %s seconds. (%s)", timeout, hostString));
-
-            mEventLoopGroup.schedule(new Runnable() {
-                @Override
-                public void run() {
-                    Log.i(TAG, String.format("Attempting to reconnect. (%s)", hostString));
-                    RobustSession s = getSession(host, port);
-                    if (s != null) {
-                        s.reconnect();
-                    }
-                }
-            }, timeout, TimeUnit.SECONDS);
-        } else if (session.isRestarting()) {
-            // Do nothing.
+            // Retries forever, backing off; see RobustSession.scheduleReconnect().
+            session.scheduleReconnect();
         }
+
+        broadcastSessionState(session);
     }
 
     /**
@@ -0,0 +1,339 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Pairs requests sent on a channel with their replies, by correlation key.
+ *
+ * Replies with the same key arrive in the order the requests were sent, so each completes the
+ * oldest request waiting on its key. A request identical to one already waiting is not sent
+ * again; its caller waits on the same reply.
+ *
+ * Timeouts are kept on a hashed timer wheel ticked by the channel's event loop, so adding or
+ * removing a request costs the same however many are waiting. The wheel only ticks while there
+ * are requests waiting. Every request fails once the channel closes, unless first moved to a new
+ * channel with <code>transferTo</code>.
+ *
+ * Apart from <code>add</code>, only call on the channel's event loop.
+ */
+class PendingRequests {
+    private static final String TAG = Constants.createTag(PendingRequests.class);
+
+    /** How often the wheel ticks; timeouts are accurate to about this. */
+    static final long TICK_MILLIS = 100;
+
+    /** The number of slots on the wheel. Longer timeouts go round more than once. */
+    static final int WHEEL_SIZE = 64;
+
+    private final Channel mChannel;
+    private final EventLoop mEventLoop;
+
+    private final HashMap<String, ArrayDeque<Request>> mRequests =
+            new HashMap<String, ArrayDeque<Request>>();
+    private final ArrayList<HashSet<Request>> mWheel = new ArrayList<HashSet<Request>>(WHEEL_SIZE);
+
+    private int mCursor = 0;
+    private int mCount = 0;
+    private ScheduledFuture<?> mTicker;
+    private boolean mClosed = false;
+
+    /**
+     * A request waiting for its reply, and every caller waiting on it.
+     */
+    private static class Request {
+        private final RobustCommand mCommand;
+        private final String mKey;
+        private final String mJSON;
+        private final ArrayList<Promise<RobustCommand>> mPromises =
+                new ArrayList<Promise<RobustCommand>>();
+
+        private int mSlot;
+        private int mRounds;
+
+        Request(RobustCommand command, String key, String json) {
+            mCommand = command;
+            mKey = key;
+            mJSON = json;
+        }
+    }
+
+    PendingRequests(Channel channel) {
+        mChannel = channel;
+        mEventLoop = channel.eventLoop();
+
+        for (int i = 0; i < WHEEL_SIZE; ++i) {
+            mWheel.add(new HashSet<Request>());
+        }
+
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                failAll(new ClosedChannelException());
+            }
+        });
+    }
+
+    /**
+     * Sends a request, returning a future completed by its reply. May be called from any thread;
+     * on the event loop, the request is written straight away, so it shares the flush of any
+     * other commands written in the same turn.
+     *
+     * The future fails with a <code>TimeoutException</code> if no reply arrives in time, or
+     * with a <code>ClosedChannelException</code> if the channel closes first. Cancelling it
+     * stops waiting, without affecting any other caller of the same request.
+     *
+     * @param request a command with a correlation key.
+     * @param timeoutMillis
+     * @return
+     */
+    Future<RobustCommand> add(final RobustCommand request, final long timeoutMillis) {
+        final Promise<RobustCommand> promise = mEventLoop.newPromise();
+
+        if (request.getCorrelationKey() == null) {
+            return promise.setFailure(new IllegalArgumentException(
+                    String.format("%s has no correlation key", request.getType())));
+        }
+
+        if (mEventLoop.inEventLoop()) {
+            register(request, promise, timeoutMillis);
+            return promise;
+        }
+
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                register(request, promise, timeoutMillis);
+            }
+        });
+
+        return promise;
+    }
+
+    /**
+     * Completes the oldest request waiting on the reply's key.
+     *
+     * @param reply
+     * @return whether a request was waiting for the reply.
+     */
+    boolean complete(RobustCommand reply) {
+        String key = reply.getCorrelationKey();
+
+        if (key == null) {
+            return false;
+        }
+
+        ArrayDeque<Request> queue = mRequests.get(key);
+
+        if (queue == null) {
+            return false;
+        }
+
+        Request request = queue.poll();
+        remove(request, queue);
+
+        for (Promise<RobustCommand> promise : request.mPromises) {
+            promise.trySuccess(reply);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of requests waiting for a reply.
+     *
+     * @return
+     */
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Moves every request still waiting to another channel, sending each again there with the
+     * time it had left, so that replacing a connection doesn't fail its callers. Nothing waits
+     * here afterwards.
+     *
+     * @param other the requests of the new channel, on the same event loop.
+     */
+    void transferTo(PendingRequests other) {
+        for (Request request : takeAll()) {
+            int ticks = (request.mSlot - mCursor + WHEEL_SIZE) % WHEEL_SIZE;
+
+            if (ticks == 0) {
+                ticks = WHEEL_SIZE;
+            }
+
+            long remainingMillis = (ticks + (long) request.mRounds * WHEEL_SIZE) * TICK_MILLIS;
+
+            for (Promise<RobustCommand> promise : request.mPromises) {
+                other.register(request.mCommand, promise, remainingMillis);
+            }
+        }
+    }
+
+    private void register(RobustCommand command, final Promise<RobustCommand> promise,
+                          long timeoutMillis) {
+        if (promise.isDone()) {
+            return;
+        }
+
+        if (mClosed) {
+            promise.tryFailure(new ClosedChannelException());
+            return;
+        }
+
+        String key = command.getCorrelationKey();
+        String json = command.toJSON();
+        ArrayDeque<Request> queue = mRequests.get(key);
+
+        if (queue == null) {
+            queue = new ArrayDeque<Request>();
+            mRequests.put(key, queue);
+        }
+
+        Request request = null;
+
+        for (Request waiting : queue) {
+            if (waiting.mJSON.equals(json)) {
+                request = waiting;
+                break;
+            }
+        }
+
+        if (request == null) {
+            request = new Request(command, key, json);
+            queue.add(request);
+            schedule(request, timeoutMillis);
+
+            mChannel.writeAndFlush(command);
+        } else {
+            Log.v(TAG, String.format("Already waiting on %s", key));
+        }
+
+        final Request added = request;
+        added.mPromises.add(promise);
+
+        promise.addListener(new GenericFutureListener<Future<RobustCommand>>() {
+            @Override
+            public void operationComplete(Future<RobustCommand> future) throws Exception {
+                if (future.isCancelled()) {
+                    onCancelled(added, promise);
+                }
+            }
+        });
+    }
+
+    private void onCancelled(Request request, Promise<RobustCommand> promise) {
+        // The request itself stays queued even with nobody waiting on it, or its reply would
+        // complete the next request for the key instead.
+        request.mPromises.remove(promise);
+    }
+
+    private void schedule(Request request, long timeoutMillis) {
+        int ticks = (int) Math.max(1, (timeoutMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+
+        request.mSlot = (mCursor + ticks) % WHEEL_SIZE;
+        request.mRounds = (ticks - 1) / WHEEL_SIZE;
+        mWheel.get(request.mSlot).add(request);
+
+        if (mCount++ == 0) {
+            mTicker = mEventLoop.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Forgets a request that has been taken from its queue.
+     */
+    private void remove(Request request, ArrayDeque<Request> queue) {
+        if (queue.isEmpty()) {
+            mRequests.remove(request.mKey);
+        }
+
+        if (mWheel.get(request.mSlot).remove(request) && --mCount == 0) {
+            mTicker.cancel(false);
+            mTicker = null;
+        }
+    }
+
+    /**
+     * Moves the wheel on a slot, failing the requests that have run out of time. Called by the
+     * ticker.
+     */
+    void tick() {
+        mCursor = (mCursor + 1) % WHEEL_SIZE;
+
+        ArrayList<Request> expired = new ArrayList<Request>();
+
+        for (Request request : mWheel.get(mCursor)) {
+            if (request.mRounds > 0) {
+                request.mRounds--;
+            } else {
+                expired.add(request);
+            }
+        }
+
+        for (Request request : expired) {
+            ArrayDeque<Request> queue = mRequests.get(request.mKey);
+            queue.remove(request);
+            remove(request, queue);
+
+            Log.d(TAG, String.format("Timed out waiting on %s", request.mKey));
+
+            for (Promise<RobustCommand> promise : request.mPromises) {
+                promise.tryFailure(new TimeoutException(request.mKey));
+            }
+        }
+    }
+
+    private void failAll(Throwable cause) {
+        for (Request request : takeAll()) {
+            for (Promise<RobustCommand> promise : request.mPromises) {
+                promise.tryFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * Forgets every request, in the order they were sent for each key, and accepts no more.
+     */
+    private ArrayList<Request> takeAll() {
+        mClosed = true;
+
+        ArrayList<Request> requests = new ArrayList<Request>();
+
+        for (ArrayDeque<Request> queue : mRequests.values()) {
+            requests.addAll(queue);
+        }
+
+        for (Request request : requests) {
+            ArrayDeque<Request> queue = mRequests.get(request.mKey);
+            queue.remove(request);
+            remove(request, queue);
+        }
+
+        return requests;
+    }
+}
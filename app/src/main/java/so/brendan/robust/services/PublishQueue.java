@@ -0,0 +1,174 @@
+package so.brendan.robust.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import so.brendan.robust.models.StageStats;
+import so.brendan.robust.utils.BusProvider;
+import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.StageMeter;
+
+/**
+ * A bounded handoff of persisted commands from the persistence thread to the main thread, where
+ * they are posted to the bus. The last stage of the pipeline received commands pass through.
+ *
+ * Tasks that need the main thread, such as updating notifications, can be queued too; they run
+ * in order with the events around them.
+ *
+ * Events are posted in batches, each given at most <code>FRAME_BUDGET_NANOS</code> of the main
+ * thread before the rest wait for the next turn of its looper, so a large backlog arriving at
+ * once doesn't hold up drawing. Once <code>CAPACITY</code> events are waiting, the persistence
+ * thread waits for room, which in turn fills <code>InboundQueue</code> and pauses reads, so a
+ * busy main thread slows the server down rather than letting events pile up.
+ */
+class PublishQueue {
+    private static final String TAG = Constants.createTag(PublishQueue.class);
+
+    /** The number of waiting events at which the persistence thread waits. */
+    static final int CAPACITY = 256;
+
+    /** How long each batch may take, so the main thread can still draw at 60 frames a second. */
+    static final long FRAME_BUDGET_NANOS = 4 * 1000000;
+
+    private static final PublishQueue INSTANCE = new PublishQueue();
+
+    private final BlockingQueue<Object> mQueue = new ArrayBlockingQueue<Object>(CAPACITY);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private final StageMeter mMeter = new StageMeter("publish", CAPACITY);
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            drain();
+        }
+    };
+
+    static PublishQueue getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues an event to be posted to the bus on the main thread, waiting for room if the queue
+     * is full. Events from the main thread are posted straight away, after any already waiting.
+     *
+     * @param event
+     */
+    void publish(Object event) {
+        enqueue(event);
+    }
+
+    /**
+     * Queues a task to run on the main thread, after any events and tasks already waiting. Tasks
+     * from the main thread run straight away, after any already waiting.
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        enqueue(new Task(task));
+    }
+
+    private void enqueue(final Object item) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            drainAll();
+            dispatch(item);
+            return;
+        }
+
+        try {
+            mQueue.put(item);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting to publish, posting to the main thread.");
+            Thread.currentThread().interrupt();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    drainAll();
+                    dispatch(item);
+                }
+            });
+            return;
+        }
+
+        mMeter.setDepth(mQueue.size());
+        schedule();
+    }
+
+    private void schedule() {
+        if (!mScheduled.getAndSet(true)) {
+            mHandler.post(mDrain);
+        }
+    }
+
+    /**
+     * Posts waiting events until the frame budget runs out, then leaves the rest for the next
+     * turn of the looper.
+     */
+    private void drain() {
+        long start = System.nanoTime();
+        Object event;
+
+        while (System.nanoTime() - start < FRAME_BUDGET_NANOS && (event = mQueue.poll()) != null) {
+            post(event);
+        }
+
+        if (!mQueue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void drainAll() {
+        Object event;
+
+        while ((event = mQueue.poll()) != null) {
+            post(event);
+        }
+    }
+
+    private void post(Object event) {
+        long start = System.nanoTime();
+
+        try {
+            dispatch(event);
+        } finally {
+            mMeter.recordService(System.nanoTime() - start);
+            mMeter.setDepth(mQueue.size());
+        }
+    }
+
+    private void dispatch(Object item) {
+        if (item instanceof Task) {
+            ((Task) item).mRunnable.run();
+        } else {
+            BusProvider.getInstance().post(item);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the queue's depth and how long each event took to post.
+     *
+     * @return
+     */
+    StageStats getStats() {
+        return mMeter.getStats();
+    }
+
+    /**
+     * Wraps queued tasks, so they can't be mistaken for events.
+     */
+    private static class Task {
+        private final Runnable mRunnable;
+
+        Task(Runnable runnable) {
+            mRunnable = runnable;
+        }
+    }
+
+    private PublishQueue() {}
+}
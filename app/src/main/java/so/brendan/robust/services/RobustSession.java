@@ -2,24 +2,61 @@ package so.brendan.robust.services;
 
 import android.util.Log;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.ChannelPromiseNotifier;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleState;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 import so.brendan.robust.interactors.SessionAuthenticator;
 import so.brendan.robust.listeners.OnIdleStateListener;
 import so.brendan.robust.listeners.OnSessionEventListener;
+import so.brendan.robust.models.ConnectionTimings;
+import so.brendan.robust.models.InboundQueueStats;
+import so.brendan.robust.models.StageStats;
 import so.brendan.robust.models.RobustSessionState;
+import so.brendan.robust.models.RobustUser;
 import so.brendan.robust.models.commands.AuthCommand;
+import so.brendan.robust.models.commands.CompressCommand;
+import so.brendan.robust.models.commands.FramingCommand;
 import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Clock;
 import so.brendan.robust.utils.Constants;
+import so.brendan.robust.utils.DecorrelatedJitterPolicy;
+import so.brendan.robust.utils.DnsCache;
+import so.brendan.robust.utils.HeartbeatIntervals;
+import so.brendan.robust.utils.LatencyHistogram;
+import so.brendan.robust.utils.ReconnectPolicy;
+import so.brendan.robust.utils.SslContextProvider;
 
 /**
  * Handles all session-related functionality for connecting with the Robust server.
@@ -28,7 +65,14 @@ import so.brendan.robust.utils.Constants;
  * authentication mechanisms to be defined with a standard interface.
  *
  * Automatically attempts to reconnect when connection lost, and will automatically handle
- * reauthentication where possible.
+ * reauthentication where possible. When the device changes networks, the session can instead
+ * move to a new connection before dropping the old one; see <code>ConnectionMigration</code>.
+ *
+ * All of the session's state is changed only on its event loop, which every connection it makes
+ * shares. Public methods may be called from any thread; those that change state hand the work
+ * to the event loop. Its status moves through <code>SessionStatus</code> by compare-and-set, so
+ * it can be read from any thread, and <code>getState()</code> returns a snapshot published
+ * after each change.
  */
 public class RobustSession implements OnIdleStateListener {
     private static final String TAG = Constants.createTag(RobustSession.class);
@@ -44,39 +88,149 @@ public class RobustSession implements OnIdleStateListener {
     public static final int STATE_AUTHENTICATED = 2;
     public static final int STATE_UNREGISTERED = 3;
 
-    private RobustSessionState mState;
-    private boolean mFinished = false;
-    private Throwable mError = null;
-    private SSLSession mSSLSession = null;
-    private boolean mRestarting = false;
+    /** How many connection attempts the phase timings are kept for. */
+    private static final int TIMING_WINDOW = 32;
+
+    /**
+     * The outbound buffer sizes between which the channel stops and starts being writable. Kept
+     * small, so that commands wait in <code>MessengerPriorityHandler</code>, where they can still
+     * be reordered, rather than in the socket's buffer.
+     */
+    private static final int WRITE_BUFFER_HIGH_WATER_MARK = 32 * 1024;
+    private static final int WRITE_BUFFER_LOW_WATER_MARK = 8 * 1024;
+
+    /** How long to wait for the backlog of a channel when catching up. */
+    private static final long CATCH_UP_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** Set on a channel once the session has moved to another, to the channel it moved to. */
+    private static final AttributeKey<Channel> REPLACED_BY = AttributeKey.valueOf("replacedBy");
+
+    /** Where host names are looked up, as the lookup blocks and the event loop mustn't. */
+    private static final ExecutorService sResolver = Executors.newCachedThreadPool(
+            new DefaultThreadFactory("robust-dns", true));
+
+    // Compression states
+    private static final int COMPRESSION_NONE = 0;
+    private static final int COMPRESSION_REQUESTED = 1;
+    private static final int COMPRESSION_ACTIVE = 2;
+
+    private final AtomicReference<SessionStatus> mStatus =
+            new AtomicReference<SessionStatus>(SessionStatus.DISCONNECTED);
+
+    /** The latest snapshot of the session's state, replaced after each change. */
+    private volatile RobustSessionState mState;
+
+    /** The logged in user. Replaced rather than changed, as snapshots share it. */
+    private volatile RobustUser mUser;
+
+    private volatile Throwable mError = null;
+    private volatile SSLSession mSSLSession = null;
+    private volatile boolean mSSLSessionResumed = false;
+    private volatile long mHandshakeMillis = -1;
+    private volatile boolean mRestarting = false;
+
+    /** The event loop the session's state is confined to. */
+    private final EventLoop mEventLoop;
+    private volatile Channel mChannel;
+    private HappyEyeballsConnector mConnector;
+
+    /** The move to a new connection under way, or null if none. */
+    private ConnectionMigration mMigration;
+
+    /** Whether the addresses for a move are being resolved, before it has started. */
+    private boolean mMigrationResolving = false;
 
-    private EventLoopGroup mEventLoopGroup;
-    private Channel mChannel;
+    /** The requests waiting for replies on the current connection. */
+    private volatile PendingRequests mRequests;
+
+    /** Received commands waiting to be persisted. */
+    private final InboundQueue mInbound = new InboundQueue();
 
     private String mHost;
     private int mPort;
 
-    private SessionAuthenticator mAuthenticator;
+    private volatile SessionAuthenticator mAuthenticator;
     private OnSessionEventListener mListener;
-    private int mRetries;
+    private volatile int mRetries;
+
+    private Clock mClock = Clock.SYSTEM;
+    private ReconnectPolicy mReconnectPolicy = new DecorrelatedJitterPolicy(mClock, new Random());
+    private ScheduledFuture<?> mPendingReconnect;
+    private int mReconnectAttempts = 0;
+    private long mReconnectDelayMillis = 0;
+    private long mNextReconnectTime = 0;
+
+    private boolean mStreamCompression;
+    private volatile int mCompressionState = COMPRESSION_NONE;
+
+    private boolean mBinaryFraming;
+    private volatile boolean mBinaryFramingActive = false;
+
+    private final LatencyHistogram[] mPhaseLatencies =
+            new LatencyHistogram[ConnectionTimings.PHASE_COUNT];
+
+    /** The next phase to be timed in the current connection attempt, or -1 if none. */
+    private int mNextPhase = -1;
+    private long mConnectStartNanos;
+    private long mPhaseStartNanos;
+
+    /** Whether catch-up has been requested on the current connection. */
+    private boolean mCatchUpRequested = false;
 
     RobustSession(EventLoopGroup eventLoopGroup,
                   String host, int port,
                   SessionAuthenticator authenticator,
-                  OnSessionEventListener listener) {
+                  OnSessionEventListener listener,
+                  boolean streamCompression,
+                  boolean binaryFraming) {
+
+        mEventLoop = eventLoopGroup.next();
+        mHost = host;
+        mPort = port;
+        mListener = listener;
+        mStreamCompression = streamCompression;
+        mBinaryFraming = binaryFraming;
+        mAuthenticator = authenticator;
+        mRetries = 0;
+
+        for (int i = 0; i < mPhaseLatencies.length; ++i) {
+            mPhaseLatencies[i] = new LatencyHistogram(TIMING_WINDOW);
+        }
+
+        publishState();
 
-        mEventLoopGroup = eventLoopGroup;
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+    }
+
+    /**
+     * Creates a session around an already open channel, without connecting. Used to dispatch
+     * commands replayed by <code>WireReplay</code>.
+     *
+     * @param channel
+     * @param host
+     * @param port
+     * @param listener
+     */
+    RobustSession(Channel channel, String host, int port, OnSessionEventListener listener) {
+        mEventLoop = channel.eventLoop();
+        mChannel = channel;
+        mInbound.setChannel(channel);
         mHost = host;
         mPort = port;
         mListener = listener;
-        mState = new RobustSessionState();
         mRetries = 0;
 
-        if (authenticator != null) {
-            setAuthenticator(authenticator);
+        for (int i = 0; i < mPhaseLatencies.length; ++i) {
+            mPhaseLatencies[i] = new LatencyHistogram(TIMING_WINDOW);
         }
 
-        connect();
+        mStatus.set(SessionStatus.CONNECTED);
+        publishState();
     }
 
     /**
@@ -98,12 +252,21 @@ public class RobustSession implements OnIdleStateListener {
             throw new ChannelException("Channel has been finalised.");
         }
 
-        mRestarting = true;
-
-        finish().addListener(new ChannelFutureListener() {
+        runOnEventLoop(new Runnable() {
             @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                reconnect();
+            public void run() {
+                if (isFinished()) {
+                    return;
+                }
+
+                mRestarting = true;
+
+                finish().addListener(new GenericFutureListener<Future<Void>>() {
+                    @Override
+                    public void operationComplete(Future<Void> future) throws Exception {
+                        reconnect();
+                    }
+                });
             }
         });
     }
@@ -118,13 +281,179 @@ public class RobustSession implements OnIdleStateListener {
             throw new ChannelException("Channel has not been finalised.");
         }
 
-        mFinished = false;
-        mRetries++;
-        connect();
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (isFinished()) {
+                    mRetries++;
+                    connect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the policy deciding how long to wait between reconnect attempts. Only call on the
+     * event loop.
+     *
+     * @param policy
+     * @param clock the clock the policy runs on.
+     */
+    void setReconnectPolicy(ReconnectPolicy policy, Clock clock) {
+        mReconnectPolicy = policy;
+        mClock = clock;
+    }
+
+    /**
+     * Schedules a reconnect after the delay chosen by the reconnect policy.
+     */
+    void scheduleReconnect() {
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingReconnect != null) {
+                    return;
+                }
+
+                long delay = mReconnectPolicy.nextDelayMillis();
+
+                mReconnectAttempts = mReconnectPolicy.getAttempts();
+                mReconnectDelayMillis = delay;
+                mNextReconnectTime = mClock.elapsedRealtime() + delay;
+                publishState();
+
+                Log.i(TAG, String.format("Reconnecting in %s ms, attempt %s. (%s)", delay,
+                        mReconnectAttempts, RobustSession.this));
+
+                mPendingReconnect = mEventLoop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        runPendingReconnect();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Reconnects straight away if a reconnect is pending, such as when the network comes back.
+     *
+     * @return whether a reconnect was pending.
+     */
+    public boolean retryNow() {
+        if (!isReconnectPending()) {
+            return false;
+        }
+
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (mPendingReconnect == null) {
+                    return;
+                }
+
+                Log.i(TAG, String.format("Retrying now. (%s)", RobustSession.this));
+
+                mPendingReconnect.cancel(false);
+                runPendingReconnect();
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Returns whether a reconnect is scheduled.
+     *
+     * @return
+     */
+    public boolean isReconnectPending() {
+        return getState().isReconnectPending();
+    }
+
+    private void runPendingReconnect() {
+        if (mPendingReconnect == null) {
+            return;
+        }
+
+        mPendingReconnect = null;
+        mReconnectDelayMillis = 0;
+        mNextReconnectTime = 0;
+        publishState();
+
+        if (isFinished()) {
+            Log.i(TAG, String.format("Attempting to reconnect. (%s)", this));
+            mRetries++;
+            connect();
+        }
+    }
+
+    /**
+     * Runs a task on the session's event loop; straight away, if already on it.
+     *
+     * @param task
+     */
+    private void runOnEventLoop(Runnable task) {
+        if (mEventLoop.inEventLoop()) {
+            task.run();
+        } else {
+            mEventLoop.execute(task);
+        }
+    }
+
+    /**
+     * Returns the session's status.
+     *
+     * @return
+     */
+    public SessionStatus getStatus() {
+        return mStatus.get();
+    }
+
+    /**
+     * Moves the session to another status, if allowed from the current one, then publishes a new
+     * snapshot of its state. Only call on the event loop.
+     *
+     * @param next
+     * @return whether the status changed.
+     */
+    private boolean moveTo(SessionStatus next) {
+        while (true) {
+            SessionStatus current = mStatus.get();
+
+            if (!current.canMoveTo(next)) {
+                if (current != next) {
+                    Log.w(TAG, String.format("Ignoring move from %s to %s. (%s)", current, next,
+                            this));
+                }
+
+                return false;
+            }
+
+            if (mStatus.compareAndSet(current, next)) {
+                publishState();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Publishes a new snapshot of the session's state.
+     */
+    private void publishState() {
+        RobustSessionState state = new RobustSessionState();
+        SessionStatus status = mStatus.get();
+
+        state.setConnectionState(status.getConnectionState());
+        state.setAuthenticationState(status.getAuthenticationState());
+        state.setUser(mUser);
+        state.setReconnect(mReconnectAttempts, mReconnectDelayMillis, mNextReconnectTime);
+
+        mState = state;
     }
 
     /**
-     * Returns the session state.
+     * Returns a snapshot of the session state. It doesn't change; call again for the latest.
      *
      * @return
      */
@@ -132,38 +461,113 @@ public class RobustSession implements OnIdleStateListener {
         return mState;
     }
 
+    /**
+     * Adds a channel to those the user has joined.
+     *
+     * @param channel
+     */
+    public void onJoined(final String channel) {
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                RobustUser user = mUser;
+
+                if (user == null || user.getChannels() == null ||
+                        user.getChannels().contains(channel)) {
+                    return;
+                }
+
+                List<String> channels = new ArrayList<String>(user.getChannels());
+                channels.add(channel);
+
+                mUser = user.withChannels(channels);
+                publishState();
+            }
+        });
+    }
+
+    /**
+     * Removes a channel from those the user has joined.
+     *
+     * @param channel
+     */
+    public void onParted(final String channel) {
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                RobustUser user = mUser;
+
+                if (user == null || user.getChannels() == null ||
+                        !user.getChannels().contains(channel)) {
+                    return;
+                }
+
+                List<String> channels = new ArrayList<String>(user.getChannels());
+                channels.remove(channel);
+
+                mUser = user.withChannels(channels);
+                publishState();
+            }
+        });
+    }
+
     /**
      * Returns whether the session is finished.
      *
      * @return
      */
     public boolean isFinished() {
-        return mFinished;
+        return mStatus.get() == SessionStatus.FINISHED;
     }
 
     /**
-     * Asynchronous. Finishes the session and returns a future.
+     * Asynchronous. Finishes the session and returns a future. Only call on the event loop.
      *
      * @return
      */
-    ChannelFuture finish() {
+    Future<Void> finish() {
         return finish(true);
     }
 
     /**
-     * Asynchronous. Finishes the session and returns a future.
+     * Asynchronous. Finishes the session and returns a future. Only call on the event loop.
      *
      * @return
      */
-    ChannelFuture finish(boolean clearRetries) {
+    Future<Void> finish(boolean clearRetries) {
         final RobustSession session = this;
-        reset(clearRetries);
+        Channel channel = mChannel;
+
+        if (!moveTo(SessionStatus.FINISHED)) {
+            // Already finished, so only make sure the channel is closed.
+            return channel == null ? mEventLoop.<Void>newSucceededFuture(null) : channel.close();
+        }
 
-        mFinished = true;
+        if (clearRetries) {
+            mRetries = 0;
+        }
 
         mSSLSession = null;
+        mSSLSessionResumed = false;
+        mHandshakeMillis = -1;
+
+        if (mConnector != null) {
+            mConnector.cancel();
+            mConnector = null;
+        }
+
+        if (mMigration != null) {
+            mMigration.cancel();
+            mMigration = null;
+        }
+
+        if (channel == null) {
+            // Finished before a connection was ever made.
+            mListener.onSessionFinished(session);
+            return mEventLoop.newSucceededFuture(null);
+        }
 
-        return mChannel.close().addListener(new ChannelFutureListener() {
+        return channel.close().addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
                 mListener.onSessionFinished(session);
@@ -178,7 +582,7 @@ public class RobustSession implements OnIdleStateListener {
      *
      * @return
      */
-    ChannelFuture finish(Throwable throwable) {
+    Future<Void> finish(Throwable throwable) {
         mError = throwable;
         return finish(false);
     }
@@ -222,168 +626,943 @@ public class RobustSession implements OnIdleStateListener {
     /**
      * Sends a Robust message in the appropriate format.
      *
+     * The flush is coalesced with any other commands sent in the same event loop turn by
+     * <code>MessengerFlushHandler</code>.
+     *
      * @param msg
      */
-    public void sendMessage(RobustCommand msg) {
-        Log.d(TAG, String.format("Sending: '%s'", msg.toJSON()));
+    public void sendMessage(final RobustCommand msg) {
+        Log.d(TAG, String.format("Sending: %s", msg.getType()));
+
+        Channel channel = mChannel;
+
+        if (channel != null) {
+            channel.writeAndFlush(msg);
+            return;
+        }
+
+        // The first connection hasn't started yet; it will have by the time this runs.
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                Channel channel = mChannel;
 
-        mChannel.writeAndFlush(msg.toJSON() + '\n');
+                if (channel == null) {
+                    Log.w(TAG, String.format("Dropped %s; not connected.", msg.getType()));
+                    return;
+                }
+
+                channel.writeAndFlush(msg);
+            }
+        });
     }
 
     /**
-     * Sets the authenticator for the session.
+     * Sends several Robust messages in order, flushing once after the last.
      *
-     * @param authenticator
+     * @param msgs
+     * @return a future for each message, in the same order, completed once it has been written,
+     *         or failed straight away if there is no connection.
      */
-    void setAuthenticator(SessionAuthenticator authenticator) {
-        if (authenticator == null) {
-            Log.e(TAG, "authenticator cannot be null!");
-            return;
+    public List<Future<Void>> sendMessages(final List<RobustCommand> msgs) {
+        final Channel channel = mChannel;
+
+        if (channel == null) {
+            ArrayList<Future<Void>> failed = new ArrayList<Future<Void>>(msgs.size());
+
+            for (int i = 0; i < msgs.size(); ++i) {
+                failed.add(mEventLoop.<Void>newFailedFuture(new ClosedChannelException()));
+            }
+
+            return failed;
         }
 
-        mAuthenticator = authenticator;
+        final ArrayList<ChannelPromise> promises = new ArrayList<ChannelPromise>(msgs.size());
+
+        for (int i = 0; i < msgs.size(); ++i) {
+            promises.add(channel.newPromise());
+        }
+
+        Log.d(TAG, String.format("Sending %s commands", msgs.size()));
+
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                Channel target = channel.attr(REPLACED_BY).get();
+
+                if (target == null) {
+                    for (int i = 0; i < msgs.size(); ++i) {
+                        channel.write(msgs.get(i), promises.get(i));
+                    }
+
+                    channel.flush();
+                    return;
+                }
+
+                // The session moved to a new connection in the meantime.
+                for (int i = 0; i < msgs.size(); ++i) {
+                    target.write(msgs.get(i)).addListener(
+                            new ChannelPromiseNotifier(promises.get(i)));
+                }
+
+                target.flush();
+            }
+        });
+
+        return new ArrayList<Future<Void>>(promises);
     }
 
     /**
-     * Returns whether an authenticator is present for the session.
+     * Sends a request, returning a future completed by the matching reply.
      *
+     * The future fails if the session is not authenticated, if no reply arrives within the
+     * timeout, or if the connection closes first. An identical request already waiting for its
+     * reply is not sent again.
+     *
+     * @param command a command with a correlation key.
+     * @param timeoutMillis
      * @return
      */
-    boolean hasAuthenticator() {
-        return mAuthenticator != null;
+    public Future<RobustCommand> request(RobustCommand command, long timeoutMillis) {
+        PendingRequests requests = mRequests;
+
+        if (requests == null || !isAuthenticated()) {
+            return ImmediateEventExecutor.INSTANCE.newFailedFuture(
+                    new ChannelException("Session is not authenticated."));
+        }
+
+        Log.d(TAG, String.format("Requesting: %s", command.getCorrelationKey()));
+
+        return requests.add(command, timeoutMillis);
     }
 
     /**
-     * Authenticates the session if an authenticator is provided.
+     * Completes the request waiting on a reply, if any. Only call on the event loop.
      *
+     * @param reply
+     * @return whether a request was waiting for the reply.
      */
-    public void authenticate() {
-        Log.d(TAG, "authenticate");
-        int state = getState().getAuthenticationState();
+    boolean completeRequest(RobustCommand reply) {
+        PendingRequests requests = mRequests;
+        return requests != null && requests.complete(reply);
+    }
 
-        if (state == STATE_AUTHENTICATED) {
-            return; // nothing to do;
-        }
+    /**
+     * Completes the request waiting on a reply, if any. May be called from any thread.
+     *
+     * @param reply
+     */
+    void postCompleteRequest(final RobustCommand reply) {
+        final PendingRequests requests = mRequests;
 
-        if (mAuthenticator == null) {
-            getState().setAuthenticationState(STATE_UNREGISTERED);
-            mListener.onAuthenticatorMissing(this);
+        if (requests == null) {
             return;
         }
 
-        if (state != STATE_AUTHENTICATING) {
-            getState().setAuthenticationState(STATE_AUTHENTICATING);
-
-            RobustCommand msg = mAuthenticator.authenticate();
-            if (msg != null) {
-                sendMessage(msg);
+        mEventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                requests.complete(reply);
             }
-        }
+        });
     }
 
     /**
-     * Returns whether the session is connected.
+     * Returns how long interactive commands, such as messages, have recently waited behind a
+     * congested channel, or null if not connected.
      *
      * @return
      */
-    public boolean isConnected() {
-        return getState().getConnectionState() == STATE_CONNECTED;
+    public LatencyHistogram getInteractiveSendDelay() {
+        Channel channel = mChannel;
+
+        if (channel == null) {
+            return null;
+        }
+
+        MessengerPriorityHandler handler = channel.pipeline().get(MessengerPriorityHandler.class);
+        return handler == null ? null : handler.getInteractiveDelay();
     }
 
     /**
-     * Returns whether the session is authenticated.
+     * Returns the queue handing received commands to the persistence thread.
      *
      * @return
      */
-    public boolean isAuthenticated() {
-        return getState().getAuthenticationState() == STATE_AUTHENTICATED;
+    InboundQueue getInboundQueue() {
+        return mInbound;
     }
 
     /**
-     * Returns whether the session is currently restarting.
+     * Returns a snapshot of the queue of received commands waiting to be persisted.
      *
      * @return
      */
-    public boolean isRestarting() {
-        return mRestarting;
+    public InboundQueueStats getInboundQueueStats() {
+        return mInbound.getStats();
     }
 
     /**
-     * Resets the session state back to defaults.
+     * Returns a snapshot of each stage received commands pass through, in order: decoding on the
+     * event loop, persisting, and publishing on the main thread. Decoding is left out while there
+     * is no connection.
      *
-     * @param clearRetries
+     * @return
      */
-    private void reset(boolean clearRetries) {
-        mFinished = false;
-
-        if (clearRetries) {
-            mRetries = 0;
+    public List<StageStats> getPipelineStats() {
+        List<StageStats> stats = new ArrayList<StageStats>();
+        Channel channel = mChannel;
+        MessengerCommandDecoder decoder =
+                channel == null ? null : channel.pipeline().get(MessengerCommandDecoder.class);
+
+        if (decoder != null) {
+            stats.add(decoder.getStats());
         }
 
-        RobustSessionState state = getState();
+        stats.add(mInbound.getStageStats());
+        stats.add(PublishQueue.getInstance().getStats());
 
-        state.setConnectionState(STATE_DISCONNECTED);
-        state.setAuthenticationState(STATE_NOT_AUTHENTICATED);
+        return stats;
     }
 
     /**
-     * Connects the session to the Robust server.
+     * Returns the mean number of commands sent per socket flush on the current connection.
+     *
+     * @return
      */
-    private void connect() {
-        Bootstrap b = new Bootstrap();
-
-        b.group(mEventLoopGroup)
-                .channel(NioSocketChannel.class)
-                .handler(new MessengerChannelInitializer(this, mHost, mPort));
-
-        mRestarting = false;
-
-        // Start the connection attempt.
-        getState().setConnectionState(RobustSession.STATE_CONNECTING);
-        mListener.onSessionStateChange(this, true, false);
+    public double getFramesPerFlush() {
+        Channel channel = mChannel;
 
-        ChannelFuture f = b.connect(mHost, mPort);
-
-        mChannel = f.channel();
+        if (channel == null) {
+            return 0;
+        }
 
-        f.addListener(new MessengerChannelFutureListener(this, mListener));
+        MessengerFlushHandler handler = channel.pipeline().get(MessengerFlushHandler.class);
+        return handler == null ? 0 : handler.getFramesPerFlush();
     }
 
     /**
-     * Sets the <code>SSLSession</code> object for this session.
+     * Sets the authenticator for the session.
      *
-     * @param session
+     * @param authenticator
      */
-    public void setSSLSession(SSLSession session) {
-        try {
-            for (int i = 0; i < session.getPeerCertificateChain().length; i++) {
-                Log.d(TAG, String.format("%s\n%s",
-                        session.getPeerCertificateChain()[i].getSubjectDN().toString(),
-                        session.getPeerCertificateChain()[i].getIssuerDN().toString()));
-
-            }
-
-        } catch (SSLPeerUnverifiedException e) {
-            e.printStackTrace();
+    void setAuthenticator(final SessionAuthenticator authenticator) {
+        if (authenticator == null) {
+            Log.e(TAG, "authenticator cannot be null!");
+            return;
         }
 
-        mSSLSession = session;
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                mAuthenticator = authenticator;
+            }
+        });
     }
 
     /**
-     * Returns the <code>SSLSession</code> object for this session.
+     * Returns whether an authenticator is present for the session.
+     *
+     * @return
+     */
+    boolean hasAuthenticator() {
+        return mAuthenticator != null;
+    }
+
+    /**
+     * Starts the session on a new connection, once connected.
+     *
+     * Framing, compression, authentication and the catch-up of every channel the user had
+     * joined are all requested in the same event loop turn, so they leave in one flush, sent as
+     * soon as the TLS handshake completes. Their replies are handled as they arrive. Should the
+     * channels not be known until authenticated, catch-up waits for that instead.
+     */
+    void bootstrap() {
+        requestFraming();
+        requestCompression();
+        authenticate();
+
+        if (getStatus() == SessionStatus.AUTHENTICATING) {
+            requestCatchUp();
+        }
+    }
+
+    /**
+     * Requests the backlog each joined channel missed while disconnected, at most once per
+     * connection.
+     */
+    private void requestCatchUp() {
+        RobustUser user = mUser;
+        PendingRequests requests = mRequests;
+
+        if (mCatchUpRequested || requests == null || user == null ||
+                user.getChannels() == null || user.getChannels().isEmpty()) {
+            return;
+        }
+
+        mCatchUpRequested = true;
+
+        List<RobustCommand> commands = mListener.getCatchUpRequests(this,
+                new ArrayList<String>(user.getChannels()));
+
+        if (commands.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, String.format("Catching up %s channels", commands.size()));
+
+        final long startNanos = mConnectStartNanos;
+
+        // Only touched on the event loop.
+        final int[] remaining = { commands.size() };
+
+        GenericFutureListener<Future<RobustCommand>> listener =
+                new GenericFutureListener<Future<RobustCommand>>() {
+            @Override
+            public void operationComplete(Future<RobustCommand> future) throws Exception {
+                if (!future.isSuccess()) {
+                    Log.w(TAG, String.format("Catch-up failed: %s", future.cause()));
+                }
+
+                if (--remaining[0] == 0) {
+                    long millis = (System.nanoTime() - startNanos) / 1000000;
+
+                    mPhaseLatencies[ConnectionTimings.PHASE_CATCH_UP].record(millis);
+                    Log.i(TAG, String.format("Caught up in %s ms", millis));
+                }
+            }
+        };
+
+        for (RobustCommand command : commands) {
+            requests.add(command, CATCH_UP_TIMEOUT_MILLIS).addListener(listener);
+        }
+    }
+
+    /**
+     * Asks the server to switch to length-prefixed CBOR frames, if enabled for this session.
+     */
+    void requestFraming() {
+        if (mBinaryFraming) {
+            sendMessage(FramingCommand.request(FramingCommand.MODE_CBOR));
+        }
+    }
+
+    /**
+     * Returns whether commands are being sent as length-prefixed CBOR.
+     *
+     * @return
+     */
+    public boolean isBinaryFraming() {
+        return mBinaryFramingActive;
+    }
+
+    /**
+     * Handles the server's reply to a framing request. The decoder has already switched itself,
+     * so only the encoder needs switching. Only call on the event loop.
+     *
+     * @param command
+     */
+    public void onFraming(FramingCommand command) {
+        if (!command.hasSuccess() || !FramingCommand.MODE_CBOR.equals(command.getMode())) {
+            Log.d(TAG, "Server refused binary framing.");
+            return;
+        }
+
+        MessengerCommandEncoder encoder = mChannel.pipeline().get(MessengerCommandEncoder.class);
+
+        if (encoder != null) {
+            Log.d(TAG, "Switching to binary framing.");
+            encoder.setBinaryFraming();
+            mBinaryFramingActive = true;
+        }
+    }
+
+    /**
+     * Asks the server to compress its stream, if enabled for this session.
+     *
+     * The compressed stream is found by watching for the start of a zlib stream between
+     * newline-delimited frames, so it is not requested alongside binary framing.
+     *
+     * Must be called on the channel's event loop, before anything has been received.
+     */
+    void requestCompression() {
+        if (!mStreamCompression || mBinaryFraming) {
+            return;
+        }
+
+        MessengerInflateHandler handler = mChannel.pipeline().get(MessengerInflateHandler.class);
+
+        if (handler == null) {
+            return;
+        }
+
+        handler.arm();
+        mCompressionState = COMPRESSION_REQUESTED;
+
+        sendMessage(CompressCommand.request(CompressCommand.MODE_ZLIB,
+                MessengerInflateHandler.DICTIONARY_NAME));
+    }
+
+    /**
+     * Stops waiting for a compressed stream from the server.
+     */
+    private void cancelCompression() {
+        mCompressionState = COMPRESSION_NONE;
+
+        MessengerInflateHandler handler = mChannel.pipeline().get(MessengerInflateHandler.class);
+
+        if (handler != null) {
+            handler.disarm();
+        }
+    }
+
+    /**
+     * Returns whether the server's stream is compressed.
+     *
+     * @return
+     */
+    public boolean isCompressed() {
+        return mCompressionState == COMPRESSION_ACTIVE;
+    }
+
+    /**
+     * Handles the server's reply to a compression request. Only call on the event loop.
+     *
+     * @param command
+     */
+    public void onCompress(CompressCommand command) {
+        if (command.hasSuccess()) {
+            Log.d(TAG, String.format("Server compressing stream with %s", command.getMode()));
+            mCompressionState = COMPRESSION_ACTIVE;
+        } else {
+            Log.d(TAG, "Server refused compression.");
+            cancelCompression();
+        }
+    }
+
+    /**
+     * Authenticates the session if an authenticator is provided. Until connected, this waits for
+     * the connection to bootstrap the session.
+     *
+     */
+    public void authenticate() {
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                authenticateNow();
+            }
+        });
+    }
+
+    private void authenticateNow() {
+        Log.d(TAG, "authenticate");
+        SessionStatus status = getStatus();
+
+        if (status != SessionStatus.CONNECTED && status != SessionStatus.UNREGISTERED) {
+            return; // nothing to do, or not yet;
+        }
+
+        if (mAuthenticator == null) {
+            // Authentication now waits on the user, which says nothing about the connection.
+            stopPhaseTiming();
+
+            moveTo(SessionStatus.UNREGISTERED);
+            mListener.onAuthenticatorMissing(this);
+            return;
+        }
+
+        if (moveTo(SessionStatus.AUTHENTICATING)) {
+            RobustCommand msg = mAuthenticator.authenticate();
+            if (msg != null) {
+                sendMessage(msg);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the session is connected.
+     *
+     * @return
+     */
+    public boolean isConnected() {
+        return getStatus().getConnectionState() == STATE_CONNECTED;
+    }
+
+    /**
+     * Returns whether the session is authenticated.
+     *
+     * @return
+     */
+    public boolean isAuthenticated() {
+        return getStatus() == SessionStatus.AUTHENTICATED;
+    }
+
+    /**
+     * Returns whether the session is currently restarting.
+     *
+     * @return
+     */
+    public boolean isRestarting() {
+        return mRestarting;
+    }
+
+    /**
+     * Connects the session to the Robust server. Only call on the event loop.
+     */
+    private void connect() {
+        if (!moveTo(SessionStatus.CONNECTING)) {
+            return;
+        }
+
+        // Every attempt of the race shares the session's event loop; see HappyEyeballsConnector.
+        final Bootstrap b = createBootstrap(mEventLoop,
+                new MessengerChannelInitializer(this, mHost, mPort));
+
+        mRestarting = false;
+        mCompressionState = COMPRESSION_NONE;
+        mBinaryFramingActive = false;
+        mCatchUpRequested = false;
+
+        // Start the connection attempt.
+        mListener.onSessionStateChange(this, true, false);
+
+        startPhaseTiming();
+
+        // The old channel, if any, is closed; nothing is current until an attempt starts.
+        mChannel = null;
+
+        resolveAddresses().addListener(
+                new GenericFutureListener<Future<List<InetSocketAddress>>>() {
+            @Override
+            public void operationComplete(Future<List<InetSocketAddress>> future) {
+                startConnector(b, future.getNow());
+            }
+        });
+    }
+
+    /**
+     * Races connection attempts to the resolved addresses, unless the session has finished or
+     * started connecting again while they were being resolved.
+     *
+     * @param b
+     * @param addresses
+     */
+    private void startConnector(Bootstrap b, List<InetSocketAddress> addresses) {
+        if (mStatus.get() != SessionStatus.CONNECTING || mConnector != null) {
+            return;
+        }
+
+        markPhase(ConnectionTimings.PHASE_DNS);
+
+        mConnector = new HappyEyeballsConnector(b, mEventLoop, addresses,
+                HappyEyeballsConnector.ATTEMPT_DELAY_MILLIS);
+
+        // Until an attempt wins, the first stands in for the session's channel.
+        mChannel = mConnector.start();
+
+        mConnector.future().addListener(new MessengerChannelFutureListener(this, mListener));
+    }
+
+    /**
+     * Creates a bootstrap for connecting on a single event loop.
+     *
+     * @param eventLoop
+     * @param initializer
+     * @return
+     */
+    Bootstrap createBootstrap(EventLoop eventLoop, MessengerChannelInitializer initializer) {
+        Bootstrap b = new Bootstrap();
+
+        b.group(eventLoop)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, WRITE_BUFFER_HIGH_WATER_MARK)
+                .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, WRITE_BUFFER_LOW_WATER_MARK)
+                .handler(initializer);
+
+        return b;
+    }
+
+    /**
+     * Returns the addresses to race connection attempts to, best first, once resolved.
+     *
+     * Cached addresses are returned straight away. Otherwise the lookup blocks, so it is made on
+     * <code>sResolver</code> and the future completes back on the event loop. It never fails;
+     * a host that can't be resolved is left for the connection attempt to fail on.
+     *
+     * @return
+     */
+    private Future<List<InetSocketAddress>> resolveAddresses() {
+        List<InetAddress> cached = DnsCache.getInstance().getCached(mHost);
+
+        if (cached != null) {
+            return mEventLoop.newSucceededFuture(toSocketAddresses(cached));
+        }
+
+        final Promise<List<InetSocketAddress>> promise = mEventLoop.newPromise();
+
+        sResolver.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<InetAddress> resolved = new ArrayList<InetAddress>();
+
+                try {
+                    resolved = DnsCache.getInstance().resolve(mHost);
+                } catch (UnknownHostException e) {
+                    Log.e(TAG, String.format("Could not resolve %s", mHost));
+                }
+
+                promise.setSuccess(toSocketAddresses(resolved));
+            }
+        });
+
+        return promise;
+    }
+
+    private List<InetSocketAddress> toSocketAddresses(List<InetAddress> resolved) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+        for (InetAddress address : resolved) {
+            addresses.add(new InetSocketAddress(address, mPort));
+        }
+
+        if (addresses.isEmpty()) {
+            // Let the bootstrap fail the attempt, so it is handled like any other failure.
+            addresses.add(InetSocketAddress.createUnresolved(mHost, mPort));
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Returns the key of the network the current connection was made on, or null if not
+     * connected.
+     *
+     * @return
+     */
+    public String getNetworkKey() {
+        Channel channel = mChannel;
+
+        if (channel == null) {
+            return null;
+        }
+
+        HeartbeatController heartbeat = channel.pipeline().get(HeartbeatController.class);
+        return heartbeat == null ? null : heartbeat.getNetworkKey();
+    }
+
+    /**
+     * Moves the session to a new connection on whichever network is now active. The current
+     * connection carries on until the new one is authenticated, then outgoing commands move over
+     * and it is closed.
+     *
+     * Does nothing unless authenticated, or if a move is already under way.
+     *
+     * @return whether the session was authenticated, and so could be moved.
+     */
+    public boolean migrate() {
+        if (!isAuthenticated()) {
+            return false;
+        }
+
+        runOnEventLoop(new Runnable() {
+            @Override
+            public void run() {
+                if (!isAuthenticated() || mMigration != null || mMigrationResolving) {
+                    return;
+                }
+
+                Log.i(TAG, String.format("Moving to a new connection on %s. (%s)",
+                        HeartbeatIntervals.getInstance().getNetworkKey(), RobustSession.this));
+
+                // The addresses may differ on the new network. Resolving them again is slowest
+                // right at a handover, so the current connection carries on meanwhile.
+                DnsCache.getInstance().invalidate(mHost);
+
+                final Channel channel = mChannel;
+                mMigrationResolving = true;
+
+                resolveAddresses().addListener(
+                        new GenericFutureListener<Future<List<InetSocketAddress>>>() {
+                    @Override
+                    public void operationComplete(Future<List<InetSocketAddress>> future) {
+                        mMigrationResolving = false;
+
+                        if (!isAuthenticated() || mChannel != channel || mMigration != null) {
+                            return;
+                        }
+
+                        mMigration = new ConnectionMigration(RobustSession.this, mEventLoop,
+                                future.getNow());
+                        mMigration.start();
+                    }
+                });
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Switches to the candidate connection of a move, once it has authenticated. Called on the
+     * event loop shared by both channels, so nothing is written in between.
+     *
+     * @param migration
+     * @param auth the candidate's login reply.
+     */
+    void onMigrated(ConnectionMigration migration, AuthCommand auth) {
+        Channel channel = migration.getChannel();
+
+        if (mMigration != migration) {
+            channel.close();
+            return;
+        }
+
+        mMigration = null;
+
+        Channel old = mChannel;
+        PendingRequests oldRequests = mRequests;
+        PendingRequests requests = new PendingRequests(channel);
+
+        channel.pipeline().replace("handler", "handler", new MessengerChannelHandler(this));
+
+        // The old channel closing is no longer the session's concern.
+        old.pipeline().remove(MessengerChannelHandler.class);
+        old.attr(REPLACED_BY).set(channel);
+
+        mChannel = channel;
+        mRequests = requests;
+        mInbound.setChannel(channel);
+        mBinaryFramingActive = migration.isBinaryFraming();
+        mCompressionState = migration.isCompressed() ? COMPRESSION_ACTIVE : COMPRESSION_NONE;
+        mCatchUpRequested = false;
+
+        if (migration.getSSLSession() != null) {
+            setSSLSession(migration.getSSLSession(), migration.getHandshakeMillis());
+        }
+
+        if (oldRequests != null) {
+            oldRequests.transferTo(requests);
+        }
+
+        MessengerPriorityHandler priority = old.pipeline().get(MessengerPriorityHandler.class);
+
+        if (priority != null) {
+            priority.transferTo(channel);
+        }
+
+        old.close();
+
+        Log.i(TAG, String.format("Moved to a new connection in %s ms. (%s)",
+                migration.getElapsedMillis(), this));
+
+        // Handled like any other login, which catches up on what the move may have missed.
+        mListener.onCommandReceived(this, auth);
+    }
+
+    /**
+     * Handles a move that never completed. The old connection is kept, unless the network it was
+     * made on is gone, in which case it is most likely dead and the session reconnects instead.
+     *
+     * @param migration
+     * @param cause
+     */
+    void onMigrationFailed(ConnectionMigration migration, Throwable cause) {
+        if (mMigration != migration) {
+            return;
+        }
+
+        mMigration = null;
+
+        String key = getNetworkKey();
+
+        if (key != null && !key.equals(HeartbeatIntervals.getInstance().getNetworkKey())) {
+            finish(cause);
+        }
+    }
+
+    /**
+     * Returns whether binary framing is enabled for this session.
+     *
+     * @return
+     */
+    boolean hasBinaryFraming() {
+        return mBinaryFraming;
+    }
+
+    /**
+     * Returns whether stream compression is enabled for this session. Not used alongside binary
+     * framing.
+     *
+     * @return
+     */
+    boolean hasStreamCompression() {
+        return mStreamCompression && !mBinaryFraming;
+    }
+
+    /**
+     * Returns a login command from the authenticator, or null if there is none.
+     *
+     * @return
+     */
+    RobustCommand createAuthCommand() {
+        return mAuthenticator == null ? null : mAuthenticator.authenticate();
+    }
+
+    /**
+     * Starts timing the phases of a connection attempt.
+     */
+    private void startPhaseTiming() {
+        mConnectStartNanos = System.nanoTime();
+        mPhaseStartNanos = mConnectStartNanos;
+        mNextPhase = ConnectionTimings.PHASE_DNS;
+    }
+
+    /**
+     * Stops timing the current connection attempt, discarding any phases left.
+     */
+    private void stopPhaseTiming() {
+        mNextPhase = -1;
+    }
+
+    /**
+     * Records the end of a phase of the current connection attempt, if it's the one expected.
+     *
+     * @param phase
+     */
+    private void markPhase(int phase) {
+        if (phase != mNextPhase) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        mPhaseLatencies[phase].record((now - mPhaseStartNanos) / 1000000);
+        mPhaseStartNanos = now;
+        mNextPhase++;
+
+        if (phase == ConnectionTimings.PHASE_AUTH) {
+            mPhaseLatencies[ConnectionTimings.PHASE_TOTAL].record(
+                    (now - mConnectStartNanos) / 1000000);
+            mNextPhase = -1;
+
+            Log.i(TAG, String.format("Connected in %s ms (dns %s, tcp %s, tls %s, auth %s)",
+                    mPhaseLatencies[ConnectionTimings.PHASE_TOTAL].getLast(),
+                    mPhaseLatencies[ConnectionTimings.PHASE_DNS].getLast(),
+                    mPhaseLatencies[ConnectionTimings.PHASE_TCP].getLast(),
+                    mPhaseLatencies[ConnectionTimings.PHASE_TLS].getLast(),
+                    mPhaseLatencies[ConnectionTimings.PHASE_AUTH].getLast()));
+        }
+    }
+
+    /**
+     * Returns whether a channel is the session's connection, rather than one that lost the race
+     * to connect or has since been replaced. Only call on the event loop.
+     *
+     * @param channel
+     * @return
+     */
+    boolean isCurrentChannel(Channel channel) {
+        return channel == mChannel;
+    }
+
+    /**
+     * Called once a TCP connection is established, with the channel that won the race.
+     *
+     * @param channel
+     */
+    void onConnected(Channel channel) {
+        markPhase(ConnectionTimings.PHASE_TCP);
+
+        mChannel = channel;
+        moveTo(SessionStatus.CONNECTED);
+        mConnector = null;
+        mRequests = new PendingRequests(channel);
+        mInbound.setChannel(channel);
+
+        InetSocketAddress address = (InetSocketAddress) channel.remoteAddress();
+
+        if (address != null) {
+            DnsCache.getInstance().promote(mHost, address.getAddress());
+        }
+    }
+
+    /**
+     * Returns a snapshot of how long each phase of connecting has recently taken.
+     *
+     * @return
+     */
+    public ConnectionTimings getConnectionTimings() {
+        Channel channel = mChannel;
+        HeartbeatController heartbeat = channel == null ?
+                null : channel.pipeline().get(HeartbeatController.class);
+
+        return new ConnectionTimings(mHost, mPort, mPhaseLatencies,
+                heartbeat == null ? null : heartbeat.getRtt());
+    }
+
+    /**
+     * Sets the <code>SSLSession</code> object for this session, once the handshake is done.
+     *
+     * @param session
+     * @param handshakeMillis how long the handshake took.
+     */
+    public void setSSLSession(SSLSession session, long handshakeMillis) {
+        mSSLSessionResumed = SslContextProvider.getInstance().recordSession(mHost, mPort, session);
+        mHandshakeMillis = handshakeMillis;
+        markPhase(ConnectionTimings.PHASE_TLS);
+
+        Log.i(TAG, String.format("TLS %s in %s ms", mSSLSessionResumed ?
+                "session resumed" : "full handshake", handshakeMillis));
+
+        try {
+            for (int i = 0; i < session.getPeerCertificateChain().length; i++) {
+                Log.d(TAG, String.format("%s\n%s",
+                        session.getPeerCertificateChain()[i].getSubjectDN().toString(),
+                        session.getPeerCertificateChain()[i].getIssuerDN().toString()));
+
+            }
+
+        } catch (SSLPeerUnverifiedException e) {
+            e.printStackTrace();
+        }
+
+        mSSLSession = session;
+    }
+
+    /**
+     * Returns the <code>SSLSession</code> object for this session.
      */
     public SSLSession getSSLSession() {
         return mSSLSession;
     }
 
     /**
-     * Listener for raw messages received from the socket.
+     * Returns whether the current TLS session was resumed from a previous connection, rather than
+     * negotiated with a full handshake.
+     *
+     * @return
+     */
+    public boolean isSSLSessionResumed() {
+        return mSSLSessionResumed;
+    }
+
+    /**
+     * Returns how long the TLS handshake of the current connection took, or -1 if not done.
+     *
+     * @return
+     */
+    public long getHandshakeMillis() {
+        return mHandshakeMillis;
+    }
+
+    /**
+     * Listener for commands decoded from the socket.
      *
-     * @param message
+     * @param command
      */
-    public void onMessageReceived(String message) {
-        mListener.onMessageReceived(this, message);
+    public void onCommandReceived(RobustCommand command) {
+        mListener.onCommandReceived(this, command);
     }
 
     @Override
@@ -392,8 +1571,9 @@ public class RobustSession implements OnIdleStateListener {
     }
 
     /**
-     * Handles socket idle state. Will fire a ping after a specified amount of time, and will
-     * attempt to reconnect if no reply received within specified period of time.
+     * Handles socket idle state. Pings are sent by <code>HeartbeatController</code>, which
+     * reports a reader idle state when one goes unanswered; the session then finishes, so as to
+     * reconnect.
      *
      * @param state
      */
@@ -401,26 +1581,48 @@ public class RobustSession implements OnIdleStateListener {
     public void onIdleState(IdleState state) {
         if (state == IdleState.READER_IDLE) {
             finish(new Throwable("No response received from server."));
-        } else if (state == IdleState.WRITER_IDLE) {
-            sendMessage(RobustCommand.createPing());
         }
     }
 
     /**
-     * Handles authentication changes.
+     * Handles authentication changes. Only call on the event loop.
      *
      * @param command
      */
     public void onAuth(AuthCommand command) {
+        if (mCompressionState == COMPRESSION_REQUESTED) {
+            // The server replied to the login without ever replying to the compression
+            // request, so it must not support it.
+            Log.d(TAG, "No reply to compression request; continuing uncompressed.");
+            cancelCompression();
+        }
+
         if (command.hasSuccess()) {
+            // Already authenticated when the login was for a new connection; see onMigrated.
+            if (!isAuthenticated() && !moveTo(SessionStatus.AUTHENTICATED)) {
+                return;
+            }
+
             Log.d(TAG, String.format("session authenticated: %s", hashCode()));
+            markPhase(ConnectionTimings.PHASE_AUTH);
+
+            mUser = command.getUser();
 
-            getState().setAuthenticationState(STATE_AUTHENTICATED);
-            getState().setUser(command.getUser());
+            mReconnectPolicy.onConnected();
+            mReconnectAttempts = mReconnectPolicy.getAttempts();
+            mReconnectDelayMillis = 0;
+            mNextReconnectTime = 0;
+            publishState();
+
+            // On the first connection, the joined channels are only known from now.
+            requestCatchUp();
         } else {
             Log.d(TAG, "session auth challenge");
+            stopPhaseTiming();
 
-            getState().setAuthenticationState(STATE_UNREGISTERED);
+            if (!moveTo(SessionStatus.UNREGISTERED)) {
+                return;
+            }
         }
 
         mListener.onSessionStateChange(this, false, true);
@@ -0,0 +1,79 @@
+package so.brendan.robust.services;
+
+/**
+ * The lifecycle of a <code>RobustSession</code>, combining its connection and authentication.
+ *
+ * Each status only moves to the statuses listed in <code>canMoveTo</code>, so a late event from
+ * an old connection, such as a login reply after the session has finished, can't put the
+ * session into a state it has already left.
+ *
+ * <pre>
+ * DISCONNECTED -> CONNECTING -> CONNECTED -> AUTHENTICATING -> AUTHENTICATED
+ *                     ^                  \              \
+ *                     |                   -> UNREGISTERED -> (AUTHENTICATING)
+ *                     |
+ *                  FINISHED  (reached from any status but DISCONNECTED)
+ * </pre>
+ */
+public enum SessionStatus {
+    DISCONNECTED(RobustSession.STATE_DISCONNECTED, RobustSession.STATE_NOT_AUTHENTICATED),
+    CONNECTING(RobustSession.STATE_CONNECTING, RobustSession.STATE_NOT_AUTHENTICATED),
+    CONNECTED(RobustSession.STATE_CONNECTED, RobustSession.STATE_NOT_AUTHENTICATED),
+    AUTHENTICATING(RobustSession.STATE_CONNECTED, RobustSession.STATE_AUTHENTICATING),
+    AUTHENTICATED(RobustSession.STATE_CONNECTED, RobustSession.STATE_AUTHENTICATED),
+    UNREGISTERED(RobustSession.STATE_CONNECTED, RobustSession.STATE_UNREGISTERED),
+    FINISHED(RobustSession.STATE_DISCONNECTED, RobustSession.STATE_NOT_AUTHENTICATED);
+
+    private final int mConnectionState;
+    private final int mAuthenticationState;
+
+    SessionStatus(int connectionState, int authenticationState) {
+        mConnectionState = connectionState;
+        mAuthenticationState = authenticationState;
+    }
+
+    /**
+     * Returns the connection state, as one of the <code>RobustSession</code> constants.
+     *
+     * @return
+     */
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    /**
+     * Returns the authentication state, as one of the <code>RobustSession</code> constants.
+     *
+     * @return
+     */
+    public int getAuthenticationState() {
+        return mAuthenticationState;
+    }
+
+    /**
+     * Returns whether a session may move from this status to another.
+     *
+     * @param next
+     * @return
+     */
+    public boolean canMoveTo(SessionStatus next) {
+        switch (this) {
+            case DISCONNECTED:
+                return next == CONNECTING;
+            case CONNECTING:
+                return next == CONNECTED || next == FINISHED;
+            case CONNECTED:
+                return next == AUTHENTICATING || next == UNREGISTERED || next == FINISHED;
+            case AUTHENTICATING:
+                return next == AUTHENTICATED || next == UNREGISTERED || next == FINISHED;
+            case AUTHENTICATED:
+                return next == FINISHED;
+            case UNREGISTERED:
+                return next == AUTHENTICATING || next == FINISHED;
+            case FINISHED:
+                return next == CONNECTING;
+            default:
+                return false;
+        }
+    }
+}
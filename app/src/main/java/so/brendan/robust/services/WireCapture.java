@@ -0,0 +1,254 @@
+package so.brendan.robust.services;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A bounded record of the most recent bytes read from and written to the session's sockets.
+ *
+ * Inbound entries are the plaintext bytes of each socket read, after TLS and any inflation, and
+ * outbound entries are each encoded frame, each with a <code>System.nanoTime()</code> timestamp.
+ * The start of each connection is marked, as framing and compression are negotiated afresh.
+ * Once full, the oldest entries are dropped first.
+ *
+ * The capture can be written to a file, and read back for <code>WireReplay</code>.
+ *
+ * Recording is off until enabled, as it copies every read and write and holds the user's
+ * messages; see <code>RobustPreferences.hasWireCapture()</code>.
+ *
+ * Singleton; use <code>getInstance()</code>.
+ */
+public class WireCapture {
+    public static final int DIRECTION_INBOUND = 0;
+    public static final int DIRECTION_OUTBOUND = 1;
+
+    /** An empty entry marking the start of a new connection. */
+    public static final int DIRECTION_CONNECT = 2;
+
+    private static final int MAX_ENTRIES = 1024;
+    private static final int MAX_BYTES = 2 * 1024 * 1024;
+
+    private static final byte[] MAGIC = "RBCAP1".getBytes(Charset.forName("US-ASCII"));
+
+    private static final WireCapture sInstance = new WireCapture(MAX_ENTRIES, MAX_BYTES);
+
+    private final int mMaxBytes;
+
+    private final int[] mDirections;
+    private final long[] mTimes;
+    private final byte[][] mData;
+
+    /** Index of the oldest entry. */
+    private int mHead = 0;
+    private int mCount = 0;
+    private int mBytes = 0;
+    private long mDropped = 0;
+
+    private volatile boolean mEnabled = false;
+
+    public static WireCapture getInstance() {
+        return sInstance;
+    }
+
+    private WireCapture(int maxEntries, int maxBytes) {
+        mMaxBytes = maxBytes;
+        mDirections = new int[maxEntries];
+        mTimes = new long[maxEntries];
+        mData = new byte[maxEntries][];
+    }
+
+    /**
+     * A single captured read or write.
+     */
+    public static class Entry {
+        private final int mDirection;
+        private final long mTimeNanos;
+        private final byte[] mData;
+
+        Entry(int direction, long timeNanos, byte[] data) {
+            mDirection = direction;
+            mTimeNanos = timeNanos;
+            mData = data;
+        }
+
+        public int getDirection() {
+            return mDirection;
+        }
+
+        public long getTimeNanos() {
+            return mTimeNanos;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Turns recording on or off. Turning it off also discards what was recorded.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    /**
+     * Records a copy of the readable bytes of the buffer, without changing its indexes.
+     *
+     * @param direction
+     * @param buf
+     */
+    public void record(int direction, ByteBuf buf) {
+        long time = System.nanoTime();
+        int length = buf.readableBytes();
+
+        if (length > mMaxBytes) {
+            synchronized (this) {
+                mDropped++;
+            }
+            return;
+        }
+
+        byte[] data = new byte[length];
+        buf.getBytes(buf.readerIndex(), data);
+
+        synchronized (this) {
+            while (mCount == mData.length || mBytes + length > mMaxBytes) {
+                evictOldest();
+            }
+
+            int index = (mHead + mCount) % mData.length;
+
+            mDirections[index] = direction;
+            mTimes[index] = time;
+            mData[index] = data;
+            mCount++;
+            mBytes += length;
+        }
+    }
+
+    private void evictOldest() {
+        mBytes -= mData[mHead].length;
+        mData[mHead] = null;
+        mHead = (mHead + 1) % mData.length;
+        mCount--;
+        mDropped++;
+    }
+
+    /**
+     * Discards all entries.
+     */
+    public synchronized void clear() {
+        Arrays.fill(mData, null);
+        mHead = 0;
+        mCount = 0;
+        mBytes = 0;
+        mDropped = 0;
+    }
+
+    /**
+     * Returns the number of entries dropped since the capture was last cleared, either to make
+     * room or because they were larger than the whole capture.
+     *
+     * @return
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns a copy of the captured entries, oldest first.
+     *
+     * @return
+     */
+    public synchronized List<Entry> getEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(mCount);
+
+        for (int i = 0; i < mCount; ++i) {
+            int index = (mHead + i) % mData.length;
+            entries.add(new Entry(mDirections[index], mTimes[index], mData[index]));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Writes the captured entries to a stream.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        List<Entry> entries = getEntries();
+        DataOutputStream data = new DataOutputStream(out);
+
+        data.write(MAGIC);
+        data.writeInt(entries.size());
+
+        for (Entry entry : entries) {
+            data.writeByte(entry.getDirection());
+            data.writeLong(entry.getTimeNanos());
+            data.writeInt(entry.getData().length);
+            data.write(entry.getData());
+        }
+
+        data.flush();
+    }
+
+    /**
+     * Reads entries previously written with <code>writeTo</code>.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static List<Entry> readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+
+        data.readFully(magic);
+
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a wire capture.");
+        }
+
+        int count = data.readInt();
+        ArrayList<Entry> entries = new ArrayList<Entry>(count);
+
+        for (int i = 0; i < count; ++i) {
+            int direction = data.readByte();
+            long time = data.readLong();
+            int length = data.readInt();
+
+            if (length < 0) {
+                throw new EOFException("Corrupt wire capture.");
+            }
+
+            byte[] bytes = new byte[length];
+            data.readFully(bytes);
+
+            entries.add(new Entry(direction, time, bytes));
+        }
+
+        return entries;
+    }
+}
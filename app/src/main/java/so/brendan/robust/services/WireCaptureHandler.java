@@ -0,0 +1,141 @@
+package so.brendan.robust.services;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.CborReader;
+
+/**
+ * Records the plaintext bytes passing through the pipeline into the shared
+ * <code>WireCapture</code>.
+ *
+ * Sits between the inflate handler and the frame codecs, so it sees exactly the bytes a replay
+ * needs to feed back into the decoder.
+ *
+ * Authentication carries the user's credentials both ways, so it is left out. Outbound auth
+ * frames are skipped. Inbound reads are only recorded once the decoder has passed on the reply
+ * to authentication and is at the start of a frame; should the connection have switched to
+ * binary framing by then, a framing reply is recorded first so that a replay switches too.
+ * Without a decoder behind it, every read is recorded.
+ */
+public class WireCaptureHandler extends ChannelDuplexHandler {
+    private static final byte[] FRAMING_REPLY =
+            "{\"type\":\"framing\",\"mode\":\"cbor\",\"success\":true}\n".getBytes(
+                    Charset.forName("UTF-8"));
+
+    private final WireCapture mCapture;
+
+    /** Whether inbound reads are recorded yet. */
+    private boolean mRecordingInbound = false;
+
+    public WireCaptureHandler(WireCapture capture) {
+        mCapture = capture;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (mCapture.isEnabled()) {
+            mCapture.record(WireCapture.DIRECTION_CONNECT, Unpooled.EMPTY_BUFFER);
+        }
+
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof ByteBuf && mCapture.isEnabled()) {
+            if (!mRecordingInbound) {
+                mRecordingInbound = startRecordingInbound(ctx);
+            }
+
+            if (mRecordingInbound) {
+                mCapture.record(WireCapture.DIRECTION_INBOUND, (ByteBuf) msg);
+            }
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf && mCapture.isEnabled() && !isAuthFrame((ByteBuf) msg)) {
+            mCapture.record(WireCapture.DIRECTION_OUTBOUND, (ByteBuf) msg);
+        }
+
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * Returns whether inbound reads can be recorded from this one on, recording the framing
+     * reply first if need be.
+     *
+     * @param ctx
+     * @return
+     */
+    private boolean startRecordingInbound(ChannelHandlerContext ctx) {
+        MessengerCommandDecoder decoder = ctx.pipeline().get(MessengerCommandDecoder.class);
+
+        if (decoder == null) {
+            return true;
+        }
+
+        if (!decoder.hasDecodedAuth() || decoder.hasPartialFrame()) {
+            return false;
+        }
+
+        if (decoder.isBinaryFraming()) {
+            mCapture.record(WireCapture.DIRECTION_INBOUND, Unpooled.wrappedBuffer(FRAMING_REPLY));
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns whether an encoded frame is an auth command, or can't be told apart from one.
+     *
+     * @param frame
+     * @return
+     */
+    static boolean isAuthFrame(ByteBuf frame) {
+        int index = frame.readerIndex();
+        int length = frame.readableBytes();
+
+        if (length > 0 && frame.getByte(index) == '{') {
+            return RobustCommand.TYPE_AUTH.equals(
+                    BacklogStreamDecoder.peekType(frame, index, length));
+        }
+
+        if (length < 4) {
+            return true;
+        }
+
+        // A length-prefixed CBOR frame.
+        try {
+            CborReader in = new CborReader(new ByteBufInputStream(
+                    frame.slice(index + 4, length - 4)));
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+                if (RobustCommand.PARAM_TYPE.equals(in.nextName())) {
+                    return RobustCommand.TYPE_AUTH.equals(in.nextString());
+                }
+
+                in.skipValue();
+            }
+
+            return true;
+        } catch (IOException e) {
+            return true;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package so.brendan.robust.services;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import so.brendan.robust.listeners.OnSessionEventListener;
+import so.brendan.robust.models.commands.RobustCommand;
+import so.brendan.robust.utils.Constants;
+
+/**
+ * Feeds the inbound bytes of a <code>WireCapture</code> back through the session's frame codecs
+ * and on to a listener, as if they had just arrived from the server.
+ *
+ * Commands are dispatched through a session that isn't connected to anything, so only
+ * <code>onCommandReceived</code> reaches the listener; the state of the real sessions is left
+ * alone. Anything the dispatch sends back, such as a pong, is discarded.
+ *
+ * Replays run on the calling thread, either at the recorded pace or as fast as possible.
+ */
+public class WireReplay {
+    private static final String TAG = Constants.createTag(WireReplay.class);
+
+    private static final String REPLAY_HOST = "replay";
+
+    private final OnSessionEventListener mListener;
+
+    private EmbeddedChannel mChannel;
+    private RobustSession mSession;
+
+    private int mCommandCount;
+    private long mDispatchNanos;
+
+    public WireReplay(OnSessionEventListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * The outcome of a replay.
+     */
+    public static class Result {
+        private final int mReadCount;
+        private final long mByteCount;
+        private final int mCommandCount;
+        private final int mErrorCount;
+        private final long mElapsedNanos;
+        private final long mMaxReadNanos;
+        private final long mDispatchNanos;
+
+        Result(int readCount, long byteCount, int commandCount, int errorCount,
+               long elapsedNanos, long maxReadNanos, long dispatchNanos) {
+            mReadCount = readCount;
+            mByteCount = byteCount;
+            mCommandCount = commandCount;
+            mErrorCount = errorCount;
+            mElapsedNanos = elapsedNanos;
+            mMaxReadNanos = maxReadNanos;
+            mDispatchNanos = dispatchNanos;
+        }
+
+        /**
+         * Returns the number of captured reads replayed.
+         *
+         * @return
+         */
+        public int getReadCount() {
+            return mReadCount;
+        }
+
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        public int getCommandCount() {
+            return mCommandCount;
+        }
+
+        /**
+         * Returns the number of reads the decoder failed on.
+         *
+         * @return
+         */
+        public int getErrorCount() {
+            return mErrorCount;
+        }
+
+        /**
+         * Returns the time spent decoding and dispatching, excluding any time spent waiting to
+         * keep to the recorded pace.
+         *
+         * @return
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * Returns the longest time spent decoding and dispatching a single read.
+         *
+         * @return
+         */
+        public long getMaxReadNanos() {
+            return mMaxReadNanos;
+        }
+
+        /**
+         * Returns the time spent in the listener, out of the elapsed time.
+         *
+         * @return
+         */
+        public long getDispatchNanos() {
+            return mDispatchNanos;
+        }
+
+        /**
+         * Returns the number of commands decoded and dispatched per second.
+         *
+         * @return
+         */
+        public double getCommandsPerSecond() {
+            return mElapsedNanos == 0 ? 0 : mCommandCount * 1e9 / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s reads, %s bytes, %s commands, %s errors in %.1f ms " +
+                            "(%.0f commands/s, %.1f ms dispatching, slowest read %.2f ms)",
+                    mReadCount, mByteCount, mCommandCount, mErrorCount, mElapsedNanos / 1e6,
+                    getCommandsPerSecond(), mDispatchNanos / 1e6, mMaxReadNanos / 1e6);
+        }
+    }
+
+    /**
+     * Replays the inbound entries of a capture.
+     *
+     * @param entries
+     * @param realtime whether to wait between reads as long as they were apart when captured.
+     * @return
+     * @throws InterruptedException
+     */
+    public Result replay(List<WireCapture.Entry> entries, boolean realtime)
+            throws InterruptedException {
+        int reads = 0;
+        int errors = 0;
+        long bytes = 0;
+        long elapsed = 0;
+        long maxRead = 0;
+
+        long lastCaptured = -1;
+        long lastReplayed = 0;
+
+        mCommandCount = 0;
+        mDispatchNanos = 0;
+
+        openChannel();
+
+        try {
+            for (WireCapture.Entry entry : entries) {
+                if (entry.getDirection() == WireCapture.DIRECTION_CONNECT) {
+                    // Framing and compression start again with each connection.
+                    closeChannel();
+                    openChannel();
+                    continue;
+                }
+
+                if (entry.getDirection() != WireCapture.DIRECTION_INBOUND) {
+                    continue;
+                }
+
+                if (realtime && lastCaptured >= 0) {
+                    long wait = (entry.getTimeNanos() - lastCaptured) -
+                            (System.nanoTime() - lastReplayed);
+
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+
+                lastCaptured = entry.getTimeNanos();
+                lastReplayed = System.nanoTime();
+
+                try {
+                    mChannel.writeInbound(Unpooled.wrappedBuffer(entry.getData()));
+                } catch (Exception e) {
+                    Log.w(TAG, "Replayed read failed to decode", e);
+                    errors++;
+                }
+
+                long taken = System.nanoTime() - lastReplayed;
+
+                elapsed += taken;
+                maxRead = Math.max(maxRead, taken);
+                reads++;
+                bytes += entry.getData().length;
+
+                discardOutbound();
+            }
+        } finally {
+            closeChannel();
+        }
+
+        Result result = new Result(reads, bytes, mCommandCount, errors, elapsed, maxRead,
+                mDispatchNanos);
+
+        Log.i(TAG, String.format("Replayed %s", result));
+
+        return result;
+    }
+
+    private void openChannel() {
+        mChannel = new EmbeddedChannel(
+                new MessengerCommandDecoder(MessengerChannelInitializer.MAX_FRAME_LENGTH,
+                        MessengerChannelInitializer.MAX_BINARY_FRAME_LENGTH),
+                new MessengerCommandEncoder(),
+                new ReplayHandler());
+
+        mSession = new RobustSession(mChannel, REPLAY_HOST, 0, new ReplayListener());
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            mChannel.finish();
+            discardOutbound();
+
+            Object msg;
+
+            while ((msg = mChannel.readInbound()) != null) {
+                ReferenceCountUtil.release(msg);
+            }
+
+            mChannel = null;
+            mSession = null;
+        }
+    }
+
+    private void discardOutbound() {
+        Object msg;
+
+        while ((msg = mChannel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * Passes decoded commands to the replay's session, timing the listener.
+     */
+    private class ReplayHandler extends SimpleChannelInboundHandler<RobustCommand> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, RobustCommand msg) {
+            long start = System.nanoTime();
+
+            mSession.onCommandReceived(msg);
+
+            mDispatchNanos += System.nanoTime() - start;
+            mCommandCount++;
+        }
+    }
+
+    /**
+     * Forwards only received commands, so the replay's session never appears to the listener to
+     * connect, authenticate or finish.
+     */
+    private class ReplayListener implements OnSessionEventListener {
+        @Override
+        public void onSessionStateChange(RobustSession session, boolean connectionChanged,
+                                         boolean authChanged) {}
+
+        @Override
+        public void onSessionFinished(RobustSession session) {}
+
+        @Override
+        public void onAuthenticatorMissing(RobustSession session) {}
+
+        @Override
+        public void onCommandReceived(RobustSession session, RobustCommand command) {
+            mListener.onCommandReceived(session, command);
+        }
+
+        @Override
+        public List<RobustCommand> getCatchUpRequests(RobustSession session,
+                                                      List<String> targets) {
+            return new ArrayList<RobustCommand>();
+        }
+    }
+}
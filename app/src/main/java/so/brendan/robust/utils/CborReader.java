@@ -0,0 +1,507 @@
+package so.brendan.robust.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads CBOR (RFC 7049) through the <code>JsonReader</code> interface, so the streaming Gson
+ * adapters of the command models can decode from CBOR unchanged.
+ *
+ * Supports definite and indefinite length maps, arrays and strings, integers, floats of all
+ * sizes, booleans and null. Tags are skipped, byte strings are read as ISO-8859-1 text, and map
+ * keys that aren't text are converted to their string form.
+ */
+public class CborReader extends JsonReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+
+    /** Remaining items of each open container, or -1 if of indefinite length. */
+    private long[] mRemaining = new long[16];
+
+    /** Whether each open container is a map. */
+    private boolean[] mIsMap = new boolean[16];
+
+    /** Whether each open map expects a key next. */
+    private boolean[] mExpectKey = new boolean[16];
+
+    private int mDepth = 0;
+    private boolean mTopLevelRead = false;
+
+    private final InputStream mIn;
+    private int mPeeked = -1;
+
+    public CborReader(InputStream in) {
+        // The parent's reader is never used; everything comes straight from the stream.
+        super(new StringReader(""));
+        mIn = in;
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        push(false, readArgument(read()));
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        pop();
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        push(true, readArgument(read()));
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        pop();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY &&
+                token != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        if (mDepth == 0) {
+            if (mTopLevelRead) {
+                return JsonToken.END_DOCUMENT;
+            }
+        } else {
+            long remaining = mRemaining[mDepth - 1];
+
+            if (remaining == 0 || (remaining < 0 && peekByte() == BREAK)) {
+                return mIsMap[mDepth - 1] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+            }
+
+            if (mIsMap[mDepth - 1] && mExpectKey[mDepth - 1]) {
+                return JsonToken.NAME;
+            }
+        }
+
+        int initial = skipTags();
+
+        switch (initial >> 5) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                return JsonToken.NUMBER;
+            case MAJOR_BYTES:
+            case MAJOR_TEXT:
+                return JsonToken.STRING;
+            case MAJOR_ARRAY:
+                return JsonToken.BEGIN_ARRAY;
+            case MAJOR_MAP:
+                return JsonToken.BEGIN_OBJECT;
+            default:
+                switch (initial) {
+                    case 0xf4:
+                    case 0xf5:
+                        return JsonToken.BOOLEAN;
+                    case 0xf6:
+                    case 0xf7:
+                        return JsonToken.NULL;
+                    case 0xf9:
+                    case 0xfa:
+                    case 0xfb:
+                        return JsonToken.NUMBER;
+                    default:
+                        throw syntaxError(String.format("Unsupported item 0x%02x", initial));
+                }
+        }
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        expect(JsonToken.NAME);
+
+        int initial = skipTags();
+        String name;
+
+        switch (initial >> 5) {
+            case MAJOR_TEXT:
+            case MAJOR_BYTES:
+                name = readString();
+                break;
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                name = Long.toString(readLong());
+                break;
+            default:
+                throw syntaxError("Unsupported map key");
+        }
+
+        mExpectKey[mDepth - 1] = false;
+        return name;
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+
+        if (token == JsonToken.NUMBER) {
+            int initial = peekByte();
+            String value = initial >> 5 == MAJOR_SIMPLE ?
+                    Double.toString(readDouble()) : Long.toString(readLong());
+            endValue();
+            return value;
+        }
+
+        expect(JsonToken.STRING);
+        String value = readString();
+        endValue();
+        return value;
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        boolean value = read() == 0xf5;
+        endValue();
+        return value;
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+        read();
+        endValue();
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        expect(JsonToken.NUMBER);
+
+        double value = peekByte() >> 5 == MAJOR_SIMPLE ? readDouble() : readLong();
+        endValue();
+        return value;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        expect(JsonToken.NUMBER);
+
+        long value;
+
+        if (peekByte() >> 5 == MAJOR_SIMPLE) {
+            double d = readDouble();
+            value = (long) d;
+
+            if (value != d) {
+                throw new NumberFormatException("Expected a long but was " + d);
+            }
+        } else {
+            value = readLong();
+        }
+
+        endValue();
+        return value;
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        long value = nextLong();
+
+        if (value != (int) value) {
+            throw new NumberFormatException("Expected an int but was " + value);
+        }
+
+        return (int) value;
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        JsonToken token = peek();
+
+        switch (token) {
+            case NAME:
+                nextName();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case STRING:
+            case NUMBER:
+                nextString();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw new IllegalStateException("Cannot skip " + token);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    @Override
+    public String getPath() {
+        return "$";
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+
+        if (token != expected) {
+            throw new IllegalStateException(
+                    String.format("Expected %s but was %s", expected, token));
+        }
+    }
+
+    private void push(boolean isMap, long length) {
+        if (mDepth == mRemaining.length) {
+            mRemaining = Arrays.copyOf(mRemaining, mDepth * 2);
+            mIsMap = Arrays.copyOf(mIsMap, mDepth * 2);
+            mExpectKey = Arrays.copyOf(mExpectKey, mDepth * 2);
+        }
+
+        mRemaining[mDepth] = length;
+        mIsMap[mDepth] = isMap;
+        mExpectKey[mDepth] = isMap;
+        mDepth++;
+    }
+
+    private void pop() throws IOException {
+        if (mRemaining[mDepth - 1] < 0) {
+            // Consume the break.
+            read();
+        }
+
+        mDepth--;
+        endValue();
+    }
+
+    /**
+     * Records that a complete value has been read in the current container.
+     */
+    private void endValue() {
+        if (mDepth == 0) {
+            mTopLevelRead = true;
+            return;
+        }
+
+        int i = mDepth - 1;
+
+        if (mRemaining[i] > 0) {
+            mRemaining[i]--;
+        }
+
+        if (mIsMap[i]) {
+            mExpectKey[i] = true;
+        }
+    }
+
+    /**
+     * Skips any tags, returning the initial byte of the tagged item without consuming it.
+     */
+    private int skipTags() throws IOException {
+        int initial = peekByte();
+
+        while (initial >> 5 == MAJOR_TAG) {
+            readArgument(read());
+            initial = peekByte();
+        }
+
+        return initial;
+    }
+
+    private long readLong() throws IOException {
+        int initial = read();
+        long argument = readArgument(initial);
+
+        if (argument < 0) {
+            throw syntaxError("Integer out of range");
+        }
+
+        return initial >> 5 == MAJOR_NEGATIVE ? -1 - argument : argument;
+    }
+
+    private double readDouble() throws IOException {
+        int initial = read();
+
+        switch (initial) {
+            case 0xf9:
+                return halfToDouble((int) readUnsigned(2));
+            case 0xfa:
+                return Float.intBitsToFloat((int) readUnsigned(4));
+            case 0xfb:
+                return Double.longBitsToDouble(readUnsigned(8));
+            default:
+                throw syntaxError("Expected a float");
+        }
+    }
+
+    private static double halfToDouble(int half) {
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 31) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    /**
+     * Reads a text or byte string, joining the chunks of an indefinite length string.
+     */
+    private String readString() throws IOException {
+        int initial = read();
+        Charset charset = initial >> 5 == MAJOR_TEXT ? UTF_8 : ISO_8859_1;
+        long length = readArgument(initial);
+
+        if (length >= 0) {
+            return new String(readBytes(length), charset);
+        }
+
+        StringBuilder builder = new StringBuilder();
+
+        while (peekByte() != BREAK) {
+            builder.append(new String(readBytes(readArgument(read())), charset));
+        }
+
+        read();
+
+        return builder.toString();
+    }
+
+    private byte[] readBytes(long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw syntaxError("String too long");
+        }
+
+        byte[] bytes = new byte[(int) length];
+        int offset = 0;
+
+        if (mPeeked >= 0 && length > 0) {
+            bytes[offset++] = (byte) mPeeked;
+            mPeeked = -1;
+        }
+
+        while (offset < bytes.length) {
+            int n = mIn.read(bytes, offset, bytes.length - offset);
+
+            if (n < 0) {
+                throw new EOFException();
+            }
+
+            offset += n;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Reads the argument following an initial byte.
+     *
+     * @param initial
+     * @return the argument, or -1 for an indefinite length.
+     * @throws IOException
+     */
+    private long readArgument(int initial) throws IOException {
+        int info = initial & 0x1f;
+
+        if (info < 24) {
+            return info;
+        }
+
+        switch (info) {
+            case 24:
+                return readUnsigned(1);
+            case 25:
+                return readUnsigned(2);
+            case 26:
+                return readUnsigned(4);
+            case 27:
+                return readUnsigned(8);
+            case INDEFINITE:
+                return -1;
+            default:
+                throw syntaxError("Invalid additional information " + info);
+        }
+    }
+
+    private long readUnsigned(int bytes) throws IOException {
+        long value = 0;
+
+        for (int i = 0; i < bytes; ++i) {
+            value = (value << 8) | read();
+        }
+
+        return value;
+    }
+
+    private int peekByte() throws IOException {
+        if (mPeeked < 0) {
+            mPeeked = mIn.read();
+
+            if (mPeeked < 0) {
+                throw new EOFException("End of input");
+            }
+        }
+
+        return mPeeked;
+    }
+
+    private int read() throws IOException {
+        int b = peekByte();
+        mPeeked = -1;
+        return b;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message);
+    }
+}
@@ -0,0 +1,218 @@
+package so.brendan.robust.utils;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Writes CBOR (RFC 7049) through the <code>JsonWriter</code> interface, so the streaming Gson
+ * adapters of the command models can encode to CBOR unchanged.
+ *
+ * Objects and arrays are written with indefinite lengths, so nothing needs to be counted or
+ * buffered ahead of time. Integral numbers are written as integers and all other numbers as
+ * doubles.
+ */
+public class CborWriter extends JsonWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1 << 5;
+    private static final int MAJOR_TEXT = 3 << 5;
+
+    private static final int INDEFINITE_ARRAY = 0x9f;
+    private static final int INDEFINITE_MAP = 0xbf;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int DOUBLE = 0xfb;
+    private static final int BREAK = 0xff;
+
+    private final OutputStream mOut;
+    private String mDeferredName;
+
+    public CborWriter(OutputStream out) {
+        // The parent's writer is never used; everything goes straight to the stream.
+        super(new StringWriter(0));
+        mOut = out;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        writeDeferredName();
+        mOut.write(INDEFINITE_ARRAY);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        mOut.write(BREAK);
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        writeDeferredName();
+        mOut.write(INDEFINITE_MAP);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        mOut.write(BREAK);
+        return this;
+    }
+
+    @Override
+    public JsonWriter name(String name) throws IOException {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+
+        if (mDeferredName != null) {
+            throw new IllegalStateException();
+        }
+
+        mDeferredName = name;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+
+        writeDeferredName();
+        writeText(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+        if (mDeferredName != null && !getSerializeNulls()) {
+            // Skip the name and the value, as JsonWriter does.
+            mDeferredName = null;
+            return this;
+        }
+
+        writeDeferredName();
+        mOut.write(NULL);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) throws IOException {
+        writeDeferredName();
+        mOut.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(double value) throws IOException {
+        writeDeferredName();
+        writeDouble(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) throws IOException {
+        writeDeferredName();
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+
+        writeDeferredName();
+
+        if (value instanceof Long || value instanceof Integer ||
+                value instanceof Short || value instanceof Byte) {
+            writeLong(value.longValue());
+        } else {
+            writeDouble(value.doubleValue());
+        }
+
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeDeferredName() throws IOException {
+        if (mDeferredName != null) {
+            writeText(mDeferredName);
+            mDeferredName = null;
+        }
+    }
+
+    private void writeText(String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+
+        writeHead(MAJOR_TEXT, bytes.length);
+        mOut.write(bytes);
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value < 0) {
+            writeHead(MAJOR_NEGATIVE, -1 - value);
+        } else {
+            writeHead(MAJOR_UNSIGNED, value);
+        }
+    }
+
+    private void writeDouble(double value) throws IOException {
+        long bits = Double.doubleToLongBits(value);
+
+        mOut.write(DOUBLE);
+
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mOut.write((int) (bits >>> shift));
+        }
+    }
+
+    /**
+     * Writes the initial byte of an item and its argument in the shortest form.
+     *
+     * @param major
+     * @param value
+     * @throws IOException
+     */
+    private void writeHead(int major, long value) throws IOException {
+        if (value < 24) {
+            mOut.write(major | (int) value);
+        } else if (value < 0x100) {
+            mOut.write(major | 24);
+            mOut.write((int) value);
+        } else if (value < 0x10000) {
+            mOut.write(major | 25);
+            mOut.write((int) (value >>> 8));
+            mOut.write((int) value);
+        } else if (value < 0x100000000L) {
+            mOut.write(major | 26);
+
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                mOut.write((int) (value >>> shift));
+            }
+        } else {
+            mOut.write(major | 27);
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mOut.write((int) (value >>> shift));
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package so.brendan.robust.utils;
+
+import android.os.SystemClock;
+
+/**
+ * A source of the current time, so that time-dependent logic can be driven by a fake clock.
+ */
+public interface Clock {
+    /**
+     * The system clock, counting milliseconds since boot, including time spent in deep sleep.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /**
+     * Returns milliseconds since some fixed point in the past.
+     *
+     * @return
+     */
+    public long elapsedRealtime();
+}
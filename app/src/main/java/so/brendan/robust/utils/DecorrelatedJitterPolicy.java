@@ -0,0 +1,78 @@
+package so.brendan.robust.utils;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with decorrelated jitter: each delay is picked at random between the base
+ * delay and three times the previous delay, up to a cap.
+ *
+ * The randomness spreads out clients that lost their connections at the same moment, such as
+ * when the server restarts, so they don't all come back at once.
+ *
+ * Attempts are only forgotten once a connection has stayed up for <code>stableMillis</code>, so a
+ * server that accepts logins and then immediately drops them still gets backed off from.
+ */
+public class DecorrelatedJitterPolicy implements ReconnectPolicy {
+    public static final long DEFAULT_BASE_MILLIS = 1000;
+    public static final long DEFAULT_CAP_MILLIS = 5 * 60 * 1000;
+    public static final long DEFAULT_STABLE_MILLIS = 60 * 1000;
+
+    private final Clock mClock;
+    private final Random mRandom;
+    private final long mBaseMillis;
+    private final long mCapMillis;
+    private final long mStableMillis;
+
+    private long mLastDelayMillis;
+    private int mAttempts = 0;
+
+    /** When the session last connected, or -1 if it hasn't since the last attempt. */
+    private long mConnectedAt = -1;
+
+    public DecorrelatedJitterPolicy(Clock clock, Random random) {
+        this(clock, random, DEFAULT_BASE_MILLIS, DEFAULT_CAP_MILLIS, DEFAULT_STABLE_MILLIS);
+    }
+
+    public DecorrelatedJitterPolicy(Clock clock, Random random,
+                                    long baseMillis, long capMillis, long stableMillis) {
+        mClock = clock;
+        mRandom = random;
+        mBaseMillis = baseMillis;
+        mCapMillis = capMillis;
+        mStableMillis = stableMillis;
+        mLastDelayMillis = baseMillis;
+    }
+
+    @Override
+    public synchronized void onConnected() {
+        mConnectedAt = mClock.elapsedRealtime();
+    }
+
+    @Override
+    public synchronized long nextDelayMillis() {
+        if (mConnectedAt >= 0 && mClock.elapsedRealtime() - mConnectedAt >= mStableMillis) {
+            reset();
+        }
+
+        mConnectedAt = -1;
+
+        long upper = Math.min(mCapMillis, mLastDelayMillis * 3);
+        long delay = mBaseMillis + (long) (mRandom.nextDouble() * Math.max(0, upper - mBaseMillis));
+
+        mLastDelayMillis = Math.min(mCapMillis, delay);
+        mAttempts++;
+
+        return mLastDelayMillis;
+    }
+
+    @Override
+    public synchronized void reset() {
+        mLastDelayMillis = mBaseMillis;
+        mAttempts = 0;
+    }
+
+    @Override
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,182 @@
+package so.brendan.robust.utils;
+
+import android.util.Log;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A process-wide cache of resolved host addresses, so that reconnects don't wait on DNS.
+ *
+ * Addresses are ordered as RFC 8305 recommends for racing connection attempts: alternating
+ * between IPv6 and IPv4, starting with the family of the first address returned. The address
+ * that last connected successfully is moved to the front.
+ *
+ * Singleton; use <code>getInstance()</code>.
+ */
+public class DnsCache {
+    private static final String TAG = Constants.createTag(DnsCache.class);
+
+    /** How long resolved addresses are reused for. */
+    private static final long TTL_MILLIS = 60 * 1000;
+
+    private static final DnsCache sInstance = new DnsCache();
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    public static DnsCache getInstance() {
+        return sInstance;
+    }
+
+    private DnsCache() {}
+
+    private static class Entry {
+        private final List<InetAddress> mAddresses;
+        private final long mExpiresNanos;
+
+        Entry(List<InetAddress> addresses, long expiresNanos) {
+            mAddresses = addresses;
+            mExpiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * Returns the cached addresses of a host, without resolving them.
+     *
+     * @param host
+     * @return the addresses, or null if not cached or expired.
+     */
+    public synchronized List<InetAddress> getCached(String host) {
+        Entry entry = mEntries.get(host);
+
+        if (entry == null || entry.mExpiresNanos - System.nanoTime() <= 0) {
+            return null;
+        }
+
+        mHits++;
+        return new ArrayList<InetAddress>(entry.mAddresses);
+    }
+
+    /**
+     * Returns the addresses of a host, resolving them first if not cached or expired. Blocks
+     * while resolving.
+     *
+     * @param host
+     * @return
+     * @throws UnknownHostException
+     */
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        synchronized (this) {
+            Entry entry = mEntries.get(host);
+
+            if (entry != null && entry.mExpiresNanos - System.nanoTime() > 0) {
+                mHits++;
+                return new ArrayList<InetAddress>(entry.mAddresses);
+            }
+
+            mMisses++;
+        }
+
+        List<InetAddress> addresses = interleave(InetAddress.getAllByName(host));
+
+        Log.d(TAG, String.format("Resolved %s to %s", host, addresses));
+
+        synchronized (this) {
+            mEntries.put(host, new Entry(addresses,
+                    System.nanoTime() + TTL_MILLIS * 1000000));
+        }
+
+        return new ArrayList<InetAddress>(addresses);
+    }
+
+    /**
+     * Forgets the addresses of a host, so that the next lookup resolves them again.
+     *
+     * @param host
+     */
+    public synchronized void invalidate(String host) {
+        mEntries.remove(host);
+    }
+
+    /**
+     * Moves an address that has just connected to the front, so it is tried first next time.
+     *
+     * @param host
+     * @param address
+     */
+    public synchronized void promote(String host, InetAddress address) {
+        Entry entry = mEntries.get(host);
+
+        if (entry == null || !entry.mAddresses.contains(address) ||
+                entry.mAddresses.get(0).equals(address)) {
+            return;
+        }
+
+        ArrayList<InetAddress> addresses = new ArrayList<InetAddress>(entry.mAddresses.size());
+
+        addresses.add(address);
+
+        for (InetAddress other : entry.mAddresses) {
+            if (!other.equals(address)) {
+                addresses.add(other);
+            }
+        }
+
+        mEntries.put(host, new Entry(addresses, entry.mExpiresNanos));
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Orders addresses by alternating address family, starting with that of the first address.
+     *
+     * @param addresses
+     * @return
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        LinkedList<InetAddress> first = new LinkedList<InetAddress>();
+        LinkedList<InetAddress> second = new LinkedList<InetAddress>();
+
+        if (addresses.length == 0) {
+            return new ArrayList<InetAddress>();
+        }
+
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+
+        ArrayList<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+
+        while (!first.isEmpty() || !second.isEmpty()) {
+            if (!first.isEmpty()) {
+                ordered.add(first.removeFirst());
+            }
+
+            if (!second.isEmpty()) {
+                ordered.add(second.removeFirst());
+            }
+        }
+
+        return ordered;
+    }
+}
@@ -0,0 +1,48 @@
+package so.brendan.robust.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import so.brendan.robust.models.RobustUser;
+import so.brendan.robust.models.commands.AuthCommand;
+import so.brendan.robust.models.commands.BacklogCommand;
+import so.brendan.robust.models.commands.CompressCommand;
+import so.brendan.robust.models.commands.ControlCommand;
+import so.brendan.robust.models.commands.ErrorCommand;
+import so.brendan.robust.models.commands.FramingCommand;
+import so.brendan.robust.models.commands.JoinCommand;
+import so.brendan.robust.models.commands.MessageCommand;
+import so.brendan.robust.models.commands.PartCommand;
+import so.brendan.robust.models.commands.UserCommand;
+
+/**
+ * A singleton provider of the shared, immutable Gson instance.
+ *
+ * Building a Gson instance rebuilds its reflection metadata and adapter caches, so one is built
+ * for the lifetime of the process. The command models register hand-written streaming adapters
+ * so that the message path never falls back to reflection.
+ */
+public class GsonProvider {
+    private static final Gson GSON = new GsonBuilder()
+            .disableHtmlEscaping()
+            .registerTypeAdapter(AuthCommand.class, new AuthCommand.GsonAdapter())
+            .registerTypeAdapter(BacklogCommand.class, new BacklogCommand.GsonAdapter())
+            .registerTypeAdapter(CompressCommand.class, new CompressCommand.GsonAdapter())
+            .registerTypeAdapter(ControlCommand.class, new ControlCommand.GsonAdapter())
+            .registerTypeAdapter(ErrorCommand.class, new ErrorCommand.GsonAdapter())
+            .registerTypeAdapter(FramingCommand.class, new FramingCommand.GsonAdapter())
+            .registerTypeAdapter(JoinCommand.class, new JoinCommand.GsonAdapter())
+            .registerTypeAdapter(MessageCommand.class, new MessageCommand.GsonAdapter())
+            .registerTypeAdapter(MessageCommand.MessageSender.class,
+                    new MessageCommand.MessageSender.GsonAdapter())
+            .registerTypeAdapter(PartCommand.class, new PartCommand.GsonAdapter())
+            .registerTypeAdapter(UserCommand.class, new UserCommand.GsonAdapter())
+            .registerTypeAdapter(RobustUser.class, new RobustUser.GsonAdapter())
+            .create();
+
+    public static Gson getInstance() {
+        return GSON;
+    }
+
+    private GsonProvider() {}
+}
@@ -0,0 +1,217 @@
+package so.brendan.robust.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Learns, for each network, the longest interval between heartbeats that keeps an idle
+ * connection alive, along with the round trip time of the heartbeats.
+ *
+ * NATs and firewalls drop idle flows after a timeout that differs from network to network. A
+ * network starts at <code>INITIAL_INTERVAL_MILLIS</code>. Each time an interval survives
+ * <code>SUCCESSES_TO_PROMOTE</code> heartbeats in a row, a longer one is probed, until a
+ * heartbeat goes unanswered. After that, probes bisect between the longest interval known to
+ * work and the shortest known to fail. Learnt intervals are kept across restarts.
+ *
+ * Singleton; use <code>getInstance()</code>, after calling <code>init(Context)</code>.
+ */
+public class HeartbeatIntervals {
+    private static final String TAG = Constants.createTag(HeartbeatIntervals.class);
+
+    public static final long MIN_INTERVAL_MILLIS = 60 * 1000;
+    public static final long MAX_INTERVAL_MILLIS = 28 * 60 * 1000;
+    public static final long INITIAL_INTERVAL_MILLIS = 3 * 60 * 1000;
+
+    /** The network key when no network is connected. */
+    public static final String NETWORK_NONE = "none";
+
+    /** The network key before <code>init(Context)</code> has been called. */
+    public static final String NETWORK_UNKNOWN = "unknown";
+
+    /** Probing stops once the bounds are this close. */
+    private static final long RESOLUTION_MILLIS = 60 * 1000;
+
+    /** How many heartbeats an interval must survive before a longer one is probed. */
+    private static final int SUCCESSES_TO_PROMOTE = 3;
+
+    /** How many round trip times are kept for each network. */
+    private static final int RTT_WINDOW = 32;
+
+    private static final String PREFS_NAME = "heartbeat";
+
+    private static final HeartbeatIntervals sInstance = new HeartbeatIntervals();
+
+    private final HashMap<String, Network> mNetworks = new HashMap<String, Network>();
+
+    private Context mContext;
+    private SharedPreferences mPreferences;
+
+    public static HeartbeatIntervals getInstance() {
+        return sInstance;
+    }
+
+    private HeartbeatIntervals() {}
+
+    private static class Network {
+        /** The longest interval known to keep the connection alive. */
+        private long mStable = INITIAL_INTERVAL_MILLIS;
+
+        /** The interval currently in use, which may be longer than the stable one. */
+        private long mProbe = INITIAL_INTERVAL_MILLIS;
+
+        /** The shortest interval known to lose the connection, or 0 if none. */
+        private long mCeiling = 0;
+
+        private int mSuccesses = 0;
+
+        private final LatencyHistogram mRtt = new LatencyHistogram(RTT_WINDOW);
+    }
+
+    /**
+     * Loads the learnt intervals.
+     *
+     * @param context
+     */
+    public synchronized void init(Context context) {
+        mContext = context.getApplicationContext();
+        mPreferences = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns a key identifying the current network, such as its type and SSID or APN.
+     *
+     * @return
+     */
+    public synchronized String getNetworkKey() {
+        if (mContext == null) {
+            return NETWORK_UNKNOWN;
+        }
+
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+
+        if (info == null || !info.isConnected()) {
+            return NETWORK_NONE;
+        }
+
+        return info.getExtraInfo() == null ?
+                info.getTypeName() : info.getTypeName() + ":" + info.getExtraInfo();
+    }
+
+    /**
+     * Returns the interval to use between heartbeats on a network.
+     *
+     * @param key
+     * @return
+     */
+    public synchronized long getInterval(String key) {
+        return getNetwork(key).mProbe;
+    }
+
+    /**
+     * Returns the recent heartbeat round trip times on a network.
+     *
+     * @param key
+     * @return
+     */
+    public synchronized LatencyHistogram getRtt(String key) {
+        return getNetwork(key).mRtt.copy();
+    }
+
+    /**
+     * Records a heartbeat answered after the connection had been idle for a while.
+     *
+     * @param key
+     * @param idleMillis how long the connection was idle before the heartbeat.
+     * @param rttMillis
+     */
+    public synchronized void onSuccess(String key, long idleMillis, long rttMillis) {
+        Network network = getNetwork(key);
+
+        network.mRtt.record(rttMillis);
+
+        if (idleMillis < network.mProbe || ++network.mSuccesses < SUCCESSES_TO_PROMOTE) {
+            return;
+        }
+
+        network.mSuccesses = 0;
+        network.mStable = Math.max(network.mStable, network.mProbe);
+
+        long next = network.mCeiling > 0 ?
+                (network.mStable + network.mCeiling) / 2 : network.mStable * 3 / 2;
+
+        next = Math.min(next, MAX_INTERVAL_MILLIS);
+
+        if (next - network.mStable >= RESOLUTION_MILLIS) {
+            Log.d(TAG, String.format("%s: %s s holds; probing %s s", key,
+                    network.mStable / 1000, next / 1000));
+            network.mProbe = next;
+        }
+
+        save(key, network);
+    }
+
+    /**
+     * Records a heartbeat that went unanswered after the connection had been idle for a while.
+     *
+     * @param key
+     * @param idleMillis how long the connection was idle before the heartbeat.
+     */
+    public synchronized void onFailure(String key, long idleMillis) {
+        Network network = getNetwork(key);
+
+        network.mSuccesses = 0;
+
+        if (idleMillis > network.mStable) {
+            // The probe went too far.
+            network.mCeiling = network.mCeiling > 0 ?
+                    Math.min(network.mCeiling, idleMillis) : idleMillis;
+        } else {
+            // Even the stable interval failed, so the network has changed its mind.
+            network.mCeiling = Math.max(idleMillis, MIN_INTERVAL_MILLIS);
+            network.mStable = Math.max(network.mStable / 2, MIN_INTERVAL_MILLIS);
+        }
+
+        network.mProbe = network.mStable;
+
+        Log.d(TAG, String.format("%s: lost after %s s idle; back to %s s", key,
+                idleMillis / 1000, network.mStable / 1000));
+
+        save(key, network);
+    }
+
+    private Network getNetwork(String key) {
+        Network network = mNetworks.get(key);
+
+        if (network == null) {
+            network = new Network();
+
+            if (mPreferences != null) {
+                network.mStable = mPreferences.getLong(key + ".stable", INITIAL_INTERVAL_MILLIS);
+                network.mCeiling = mPreferences.getLong(key + ".ceiling", 0);
+                network.mProbe = network.mStable;
+            }
+
+            mNetworks.put(key, network);
+        }
+
+        return network;
+    }
+
+    private void save(String key, Network network) {
+        if (mPreferences == null) {
+            return;
+        }
+
+        mPreferences.edit()
+                .putLong(key + ".stable", network.mStable)
+                .putLong(key + ".ceiling", network.mCeiling)
+                .apply();
+    }
+}
@@ -0,0 +1,115 @@
+package so.brendan.robust.utils;
+
+import java.util.Arrays;
+
+/**
+ * A rolling record of the most recent latency samples, in milliseconds.
+ *
+ * Only the last <code>capacity</code> samples are kept, so percentiles follow current conditions
+ * rather than the whole lifetime of the process. Thread-safe.
+ */
+public class LatencyHistogram {
+    private final long[] mSamples;
+    private int mNext = 0;
+    private int mSize = 0;
+    private long mTotalCount = 0;
+
+    public LatencyHistogram(int capacity) {
+        mSamples = new long[capacity];
+    }
+
+    private LatencyHistogram(LatencyHistogram other) {
+        mSamples = other.mSamples.clone();
+        mNext = other.mNext;
+        mSize = other.mSize;
+        mTotalCount = other.mTotalCount;
+    }
+
+    /**
+     * Records a sample, replacing the oldest if full.
+     *
+     * @param millis
+     */
+    public synchronized void record(long millis) {
+        mSamples[mNext] = millis;
+        mNext = (mNext + 1) % mSamples.length;
+        mSize = Math.min(mSize + 1, mSamples.length);
+        mTotalCount++;
+    }
+
+    /**
+     * Returns an independent copy, for handing to other threads.
+     *
+     * @return
+     */
+    public synchronized LatencyHistogram copy() {
+        return new LatencyHistogram(this);
+    }
+
+    /**
+     * Returns the number of samples currently held.
+     *
+     * @return
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of samples ever recorded.
+     *
+     * @return
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Returns the most recent sample, or -1 if there are none.
+     *
+     * @return
+     */
+    public synchronized long getLast() {
+        if (mSize == 0) {
+            return -1;
+        }
+
+        return mSamples[(mNext + mSamples.length - 1) % mSamples.length];
+    }
+
+    /**
+     * Returns the sample at the given percentile of those held, or -1 if there are none.
+     *
+     * @param percentile between 0 and 100.
+     * @return
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mSize == 0) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(mSamples, mSize);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile / 100 * mSize) - 1;
+        return sorted[Math.max(0, Math.min(mSize - 1, index))];
+    }
+
+    public long getMedian() {
+        return getPercentile(50);
+    }
+
+    public long getMax() {
+        return getPercentile(100);
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mSize == 0) {
+            return "no samples";
+        }
+
+        return String.format("last %s ms, p50 %s ms, p90 %s ms, max %s ms (n=%s)",
+                getLast(), getMedian(), getPercentile(90), getMax(), mSize);
+    }
+}
@@ -0,0 +1,217 @@
+package so.brendan.robust.utils;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A base for hand-written streaming Gson adapters of JSON objects.
+ *
+ * Subclasses only deal with individual fields, so the fields of an object can be read from a
+ * reader that has already consumed the start of the object and some of its fields, such as a
+ * <code>type</code> peeked by a decoder.
+ *
+ * Null values are skipped on write, matching Gson's default behaviour.
+ *
+ * @param <T>
+ */
+public abstract class ObjectTypeAdapter<T> extends TypeAdapter<T> {
+    /**
+     * Creates an empty instance to be populated by <code>readField</code>.
+     *
+     * @return
+     */
+    protected abstract T create();
+
+    /**
+     * Reads the value of the named field into the instance. Unknown fields should be skipped.
+     *
+     * @param in
+     * @param name
+     * @param value
+     * @throws IOException
+     */
+    protected abstract void readField(JsonReader in, String name, T value) throws IOException;
+
+    /**
+     * Writes the fields of the instance, without the enclosing object.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    protected abstract void writeFields(JsonWriter out, T value) throws IOException;
+
+    @Override
+    public T read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        in.beginObject();
+        T value = readFields(in);
+        in.endObject();
+
+        return value;
+    }
+
+    /**
+     * Reads the remaining fields of an object that has already been started.
+     *
+     * Does not consume the end of the object.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public T readFields(JsonReader in) throws IOException {
+        T value = create();
+
+        while (in.hasNext()) {
+            readField(in, in.nextName(), value);
+        }
+
+        return value;
+    }
+
+    @Override
+    public void write(JsonWriter out, T value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        writeFields(out, value);
+        out.endObject();
+    }
+
+    protected static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextString();
+    }
+
+    protected static Long nextLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextLong();
+    }
+
+    protected static Integer nextInteger(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextInt();
+    }
+
+    protected static Boolean nextBoolean(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextBoolean();
+    }
+
+    protected static List<String> nextStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        ArrayList<String> list = new ArrayList<String>();
+
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(nextString(in));
+        }
+        in.endArray();
+
+        return list;
+    }
+
+    protected static <E> List<E> nextList(JsonReader in, TypeAdapter<E> adapter)
+            throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        ArrayList<E> list = new ArrayList<E>();
+
+        in.beginArray();
+        while (in.hasNext()) {
+            list.add(adapter.read(in));
+        }
+        in.endArray();
+
+        return list;
+    }
+
+    protected static void writeField(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    protected static void writeField(JsonWriter out, String name, Number value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    protected static void writeField(JsonWriter out, String name, Boolean value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value.booleanValue());
+        }
+    }
+
+    protected static void writeStringList(JsonWriter out, String name, List<String> values)
+            throws IOException {
+        if (values == null) {
+            return;
+        }
+
+        out.name(name).beginArray();
+        for (String value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    protected static <E> void writeField(JsonWriter out, String name, E value,
+                                         TypeAdapter<E> adapter) throws IOException {
+        if (value != null) {
+            out.name(name);
+            adapter.write(out, value);
+        }
+    }
+
+    protected static <E> void writeList(JsonWriter out, String name, List<E> values,
+                                        TypeAdapter<E> adapter) throws IOException {
+        if (values == null) {
+            return;
+        }
+
+        out.name(name).beginArray();
+        for (E value : values) {
+            adapter.write(out, value);
+        }
+        out.endArray();
+    }
+}
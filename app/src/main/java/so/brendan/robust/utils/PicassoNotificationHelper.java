@@ -5,11 +5,12 @@ import android.content.Context;
 import android.util.Log;
 import android.widget.RemoteViews;
 
-import com.squareup.otto.Subscribe;
 import com.squareup.picasso.Picasso;
 
 import so.brendan.robust.App;
+import so.brendan.robust.listeners.OnCommandReplyListener;
 import so.brendan.robust.models.RobustUser;
+import so.brendan.robust.models.commands.RobustCommand;
 import so.brendan.robust.models.commands.UserCommand;
 import so.brendan.robust.services.MessengerService;
 
@@ -20,7 +21,7 @@ import so.brendan.robust.services.MessengerService;
  * get the images. Once URL is received, we request the image from Picasso and insert it directly
  * into the RemoveView.
  */
-public class PicassoNotificationHelper {
+public class PicassoNotificationHelper implements OnCommandReplyListener {
     private static final String TAG = Constants.createTag(PicassoNotificationHelper.class);
 
     private Context mContext;
@@ -29,6 +30,7 @@ public class PicassoNotificationHelper {
     private int mResId;
     private int mNotificationId;
     private Notification mNotification;
+    private String mRequestToken;
 
     public PicassoNotificationHelper(Context context, String userId,
                                      RemoteViews remoteViews,
@@ -60,7 +62,7 @@ public class PicassoNotificationHelper {
     };
 
     /**
-     * Runs the process on the main thread so it can receive messages from the bus.
+     * Runs the process on the main thread, where the reply to any request is received.
      */
     public void start() {
         App.runOnMainThread(mRunnable);
@@ -70,15 +72,17 @@ public class PicassoNotificationHelper {
      * Requests the user data from the server.
      */
     private void requestUser() {
-        BusProvider.getInstance().register(this);
-        MessengerService.sendCommand(mContext, new UserCommand(mUserId));
+        mRequestToken = MessengerService.requestCommand(mContext, new UserCommand(mUserId), this);
     }
 
     /**
-     * Stops listening for a <code>UserCommand</code>.
+     * Stops waiting for the user data.
      */
     public void cancel() {
-        BusProvider.getInstance().unregister(this);
+        if (mRequestToken != null) {
+            MessengerService.cancelRequest(mRequestToken);
+            mRequestToken = null;
+        }
     }
 
     /**
@@ -97,15 +101,15 @@ public class PicassoNotificationHelper {
                         mNotification);
     }
 
-    /**
-     * Listens for a <code>UserCommand</code> message from the service.
-     * @param command
-     */
-    @Subscribe
-    public void onUserCommand(final UserCommand command) {
-        if (command.getUser().getId().equals(mUserId)) {
-            cancel();
-            setImage(command.getUser());
-        }
+    @Override
+    public void onReply(RobustCommand reply) {
+        mRequestToken = null;
+        setImage(((UserCommand) reply).getUser());
+    }
+
+    @Override
+    public void onReplyFailed(Throwable cause) {
+        mRequestToken = null;
+        Log.w(TAG, String.format("Could not get user %s: %s", mUserId, cause));
     }
 }
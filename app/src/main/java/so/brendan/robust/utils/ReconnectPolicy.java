@@ -0,0 +1,32 @@
+package so.brendan.robust.utils;
+
+/**
+ * Decides how long to wait before each attempt to reconnect a session.
+ *
+ * There is no limit on attempts; a policy only decides how far apart they are.
+ */
+public interface ReconnectPolicy {
+    /**
+     * Reports that the session connected and authenticated.
+     */
+    public void onConnected();
+
+    /**
+     * Returns how long to wait before the next attempt, counting it as made.
+     *
+     * @return
+     */
+    public long nextDelayMillis();
+
+    /**
+     * Forgets any previous attempts, so the next delay is the shortest.
+     */
+    public void reset();
+
+    /**
+     * Returns the number of attempts since the last reset.
+     *
+     * @return
+     */
+    public int getAttempts();
+}
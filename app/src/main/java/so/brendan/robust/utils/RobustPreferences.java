@@ -19,6 +19,9 @@ public class RobustPreferences {
     public static final String PREF_SERVER_PORT = "server_port";
     public static final String PREF_LAST_USED_TARGET = "last_used_target";
     public static final String PREF_LOW_BANDWIDTH_IMAGES = "low_bandwidth_images";
+    public static final String PREF_STREAM_COMPRESSION = "stream_compression";
+    public static final String PREF_BINARY_FRAMING = "binary_framing";
+    public static final String PREF_WIRE_CAPTURE = "wire_capture";
 
     private SharedPreferences mPreferences;
 
@@ -112,4 +115,16 @@ public class RobustPreferences {
     public boolean hasLowBandwidthImages() {
         return mPreferences.getBoolean(PREF_LOW_BANDWIDTH_IMAGES, false);
     }
+
+    public boolean hasStreamCompression() {
+        return mPreferences.getBoolean(PREF_STREAM_COMPRESSION, false);
+    }
+
+    public boolean hasBinaryFraming() {
+        return mPreferences.getBoolean(PREF_BINARY_FRAMING, false);
+    }
+
+    public boolean hasWireCapture() {
+        return mPreferences.getBoolean(PREF_WIRE_CAPTURE, false);
+    }
 }
@@ -0,0 +1,162 @@
+package so.brendan.robust.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import io.netty.handler.ssl.SslContext;
+
+/**
+ * A singleton provider of the client <code>SslContext</code> shared by every session.
+ *
+ * Loading the Android CA store and building the trust managers is expensive, so it is done once
+ * per process rather than on every connection attempt. The context is only rebuilt once
+ * <code>invalidate()</code> is called, nominally when the system trust store changes.
+ *
+ * The context also holds the client session cache, so reconnecting to a host can resume the
+ * previous TLS session with an abbreviated handshake.
+ */
+public class SslContextProvider {
+    private static final String TAG = Constants.createTag(SslContextProvider.class);
+
+    /** Sessions kept for resumption, enough for a few hosts over a few reconnects each. */
+    private static final int SESSION_CACHE_SIZE = 16;
+
+    /** How long a session is kept for resumption; the server may well expire it sooner. */
+    private static final int SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+
+    private static final SslContextProvider sInstance = new SslContextProvider();
+
+    private SslContext mContext;
+    private int mBuildCount = 0;
+    private long mBuildTimeMillis = 0;
+
+    /** The ID of the last session established with each host:port. */
+    private final HashMap<String, byte[]> mSessionIds = new HashMap<String, byte[]>();
+
+    public static SslContextProvider getInstance() {
+        return sInstance;
+    }
+
+    private SslContextProvider() {}
+
+    /**
+     * Returns the shared context, building it first if necessary.
+     *
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public synchronized SslContext getContext() throws GeneralSecurityException, IOException {
+        if (mContext == null) {
+            long start = System.nanoTime();
+
+            // Default Android keystore
+            KeyStore ks = KeyStore.getInstance("AndroidCAStore");
+            ks.load(null, null);
+
+            // Default trust manager.
+            String tmfAlgorithm = TrustManagerFactory.getDefaultAlgorithm();
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(tmfAlgorithm);
+            tmf.init(ks);
+
+            mContext = SslContext.newClientContext(tmf);
+
+            SSLSessionContext sessionContext = mContext.sessionContext();
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+
+            mBuildCount++;
+            mBuildTimeMillis = (System.nanoTime() - start) / 1000000;
+
+            Log.i(TAG, String.format("SSL context built in %s ms", mBuildTimeMillis));
+        }
+
+        return mContext;
+    }
+
+    /**
+     * Returns whether the context has been built and not invalidated since.
+     *
+     * @return
+     */
+    public synchronized boolean isReady() {
+        return mContext != null;
+    }
+
+    /**
+     * Asynchronous. Builds the context on a background thread, so the first connection doesn't
+     * have to.
+     */
+    public void warm() {
+        if (isReady()) {
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getContext();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while creating SSL context", e);
+                }
+            }
+        }, SslContextProvider.class.getSimpleName());
+
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Discards the context, so that the next connection picks up changes to the trust store.
+     */
+    public synchronized void invalidate() {
+        Log.d(TAG, "SSL context invalidated.");
+        mContext = null;
+        mSessionIds.clear();
+    }
+
+    /**
+     * Records the session just established with a peer, returning whether it resumed the
+     * previous session with that peer rather than starting a new one.
+     *
+     * @param host
+     * @param port
+     * @param session
+     * @return
+     */
+    public synchronized boolean recordSession(String host, int port, SSLSession session) {
+        String key = String.format("%s:%s", host, port);
+        byte[] id = session.getId();
+        byte[] previous = mSessionIds.put(key, id);
+
+        return id != null && id.length > 0 && Arrays.equals(id, previous);
+    }
+
+    /**
+     * Returns the number of times the context has been built.
+     *
+     * @return
+     */
+    public synchronized int getBuildCount() {
+        return mBuildCount;
+    }
+
+    /**
+     * Returns how long the context took to build the last time it was built.
+     *
+     * @return
+     */
+    public synchronized long getBuildTimeMillis() {
+        return mBuildTimeMillis;
+    }
+}
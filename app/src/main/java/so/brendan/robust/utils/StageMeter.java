@@ -0,0 +1,99 @@
+package so.brendan.robust.utils;
+
+import so.brendan.robust.models.StageStats;
+
+/**
+ * Measures one stage of a pipeline: how much is waiting for it, and how long it spends on each
+ * item.
+ *
+ * Service times are kept in a <code>LatencyHistogram</code> in microseconds rather than
+ * milliseconds, as most items take well under a millisecond. Thread-safe, as items are usually
+ * queued on one thread and serviced on another.
+ */
+public class StageMeter {
+    /** How many service times are kept. */
+    private static final int SERVICE_WINDOW = 256;
+
+    private final String mName;
+    private final int mCapacity;
+    private final LatencyHistogram mServiceTimes = new LatencyHistogram(SERVICE_WINDOW);
+
+    private int mDepth = 0;
+    private int mMaxDepth = 0;
+    private long mProcessed = 0;
+
+    /**
+     * @param name
+     * @param capacity how much may wait before the stage feeding this one is held back.
+     */
+    public StageMeter(String name, int capacity) {
+        mName = name;
+        mCapacity = capacity;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records an item joining the queue.
+     *
+     * @return the depth including the item.
+     */
+    public synchronized int onEnqueued() {
+        return setDepth(mDepth + 1);
+    }
+
+    /**
+     * Records an item leaving the queue once serviced.
+     *
+     * @param serviceNanos how long the stage spent on the item.
+     * @return the depth without the item.
+     */
+    public synchronized int onServiced(long serviceNanos) {
+        mProcessed++;
+        mServiceTimes.record(serviceNanos / 1000);
+        return setDepth(mDepth - 1);
+    }
+
+    /**
+     * Sets the depth directly, for stages whose queue isn't counted in items.
+     *
+     * @param depth
+     * @return
+     */
+    public synchronized int setDepth(int depth) {
+        mDepth = depth;
+        mMaxDepth = Math.max(mMaxDepth, depth);
+        return depth;
+    }
+
+    /**
+     * Records an item serviced without having queued here, such as a decoded frame.
+     *
+     * @param serviceNanos
+     */
+    public synchronized void recordService(long serviceNanos) {
+        mProcessed++;
+        mServiceTimes.record(serviceNanos / 1000);
+    }
+
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Returns a snapshot for posting to views.
+     *
+     * @return
+     */
+    public synchronized StageStats getStats() {
+        return new StageStats(mName, mDepth, mMaxDepth, mCapacity, mProcessed,
+                mServiceTimes.getMedian(), mServiceTimes.getPercentile(90),
+                mServiceTimes.getMax());
+    }
+}
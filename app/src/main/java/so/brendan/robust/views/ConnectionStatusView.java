@@ -35,6 +35,13 @@ public interface ConnectionStatusView {
      */
     public void setProtocol(String protocol);
 
+    /**
+     * Sets how the TLS session was established, and how long it took.
+     *
+     * @param handshake
+     */
+    public void setHandshake(String handshake);
+
     /**
      * Sets the current certificate chain.
      *